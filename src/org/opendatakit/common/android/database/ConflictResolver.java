@@ -0,0 +1,216 @@
+/*
+ * Copyright (C) 2014 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.common.android.database;
+
+import org.opendatakit.common.android.provider.ConflictType;
+import org.opendatakit.common.android.provider.DataTableColumns;
+import org.opendatakit.common.android.provider.SyncState;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+/**
+ * Resolves all the conflicts of a data table with a handful of set-based
+ * statements in one transaction.
+ * <p>
+ * A row in conflict is present twice (with the same _id): the local version,
+ * with a conflict type of LOCAL_DELETED_OLD_VALUES or
+ * LOCAL_UPDATED_UPDATED_VALUES, and the server version, with a conflict type
+ * of SERVER_DELETED_OLD_VALUES or SERVER_UPDATED_UPDATED_VALUES. The policy
+ * picks the winner of each pair into a temp table, after which:
+ * <ul>
+ * <li>local wins -- the server version is deleted; the local version takes
+ * the server's row etag and becomes deleting (if deleted locally) or
+ * updating, so that the next sync pushes it;</li>
+ * <li>server wins -- the local version is deleted; the server version becomes
+ * rest, or, if the server deleted the row, all versions of the row are
+ * deleted.</li>
+ * </ul>
+ * </p>
+ */
+public class ConflictResolver {
+  private static final String t = "ConflictResolver";
+
+  private static final String WINNERS_TABLE_NAME = "temp._conflict_winners";
+  private static final String WINNER_ID = "_id";
+  private static final String WINNER_TAKE_LOCAL = "_take_local";
+  private static final String WINNER_LOCAL_TYPE = "_local_type";
+  private static final String WINNER_SERVER_TYPE = "_server_type";
+  private static final String WINNER_SERVER_ETAG = "_server_etag";
+
+  private static final String LOCAL_TYPES = "(" + ConflictType.LOCAL_DELETED_OLD_VALUES + ","
+      + ConflictType.LOCAL_UPDATED_UPDATED_VALUES + ")";
+  private static final String SERVER_TYPES = "(" + ConflictType.SERVER_DELETED_OLD_VALUES + ","
+      + ConflictType.SERVER_UPDATED_UPDATED_VALUES + ")";
+
+  public enum Policy {
+    SERVER_WINS, LOCAL_WINS,
+    /** the version with the later savepoint timestamp wins; ties go to local */
+    NEWEST_SAVEPOINT_WINS
+  }
+
+  /**
+   * The outcome of resolveConflicts().
+   */
+  public static final class Result {
+    /** rows resolved in favor of the local version */
+    public final int localWins;
+    /** rows resolved in favor of the server version */
+    public final int serverWins;
+    // indexed by ConflictType value
+    private final int[] countsByType;
+
+    Result(int localWins, int serverWins, int[] countsByType) {
+      this.localWins = localWins;
+      this.serverWins = serverWins;
+      this.countsByType = countsByType;
+    }
+
+    /**
+     * @param conflictType
+     *          -- one of the ConflictType constants
+     * @return the number of resolved rows whose local or server version had
+     *         that conflict type.
+     */
+    public int getCount(int conflictType) {
+      return (conflictType >= 0 && conflictType < countsByType.length) ? countsByType[conflictType]
+          : 0;
+    }
+
+    public int getTotal() {
+      return localWins + serverWins;
+    }
+  }
+
+  private ConflictResolver() {
+  }
+
+  /**
+   * Resolve every conflict of the table according to the policy. Rows whose
+   * local or server version is missing are left in conflict.
+   *
+   * @param db
+   *          -- a writable database
+   * @param tableId
+   * @param policy
+   * @return
+   */
+  public static Result resolveConflicts(SQLiteDatabase db, String tableId, Policy policy) {
+    String dbTableName = DataModelDatabaseHelper.getDbTableName(db, tableId);
+    if (dbTableName == null) {
+      throw new IllegalArgumentException("Unknown tableId " + tableId);
+    }
+    String table = DataModelDatabaseHelper.quoteDbTableName(dbTableName);
+
+    String takeLocal;
+    switch (policy) {
+    case LOCAL_WINS:
+      takeLocal = "1";
+      break;
+    case SERVER_WINS:
+      takeLocal = "0";
+      break;
+    default:
+      takeLocal = "CASE WHEN l." + DataTableColumns.SAVEPOINT_TIMESTAMP + " >= s."
+          + DataTableColumns.SAVEPOINT_TIMESTAMP + " THEN 1 ELSE 0 END";
+      break;
+    }
+
+    String winnersOf = " IN (SELECT " + WINNER_ID + " FROM " + WINNERS_TABLE_NAME + " WHERE "
+        + WINNER_TAKE_LOCAL + "=";
+
+    int localWins = 0;
+    int serverWins = 0;
+    int[] countsByType = new int[4];
+    db.beginTransaction();
+    try {
+      //@formatter:off
+      db.execSQL("DROP TABLE IF EXISTS " + WINNERS_TABLE_NAME);
+      db.execSQL("CREATE TABLE " + WINNERS_TABLE_NAME + " ("
+          + WINNER_ID + " TEXT NOT NULL PRIMARY KEY, "
+          + WINNER_TAKE_LOCAL + " INTEGER NOT NULL, "
+          + WINNER_LOCAL_TYPE + " INTEGER NOT NULL, "
+          + WINNER_SERVER_TYPE + " INTEGER NOT NULL, "
+          + WINNER_SERVER_ETAG + " TEXT NULL)");
+      // pair up the local and server versions (both use the conflict-row index)
+      db.execSQL("INSERT INTO " + WINNERS_TABLE_NAME + " SELECT l." + DataTableColumns.ID + ", "
+          + takeLocal + ", l." + DataTableColumns.CONFLICT_TYPE + ", s."
+          + DataTableColumns.CONFLICT_TYPE + ", s." + DataTableColumns.ROW_ETAG
+          + " FROM " + table + " AS l JOIN " + table + " AS s ON s." + DataTableColumns.ID
+          + "=l." + DataTableColumns.ID + " AND s." + DataTableColumns.CONFLICT_TYPE + " IN "
+          + SERVER_TYPES + " WHERE l." + DataTableColumns.CONFLICT_TYPE + " IN " + LOCAL_TYPES);
+      //@formatter:on
+
+      Cursor c = null;
+      try {
+        c = db.rawQuery("SELECT " + WINNER_TAKE_LOCAL + ", " + WINNER_LOCAL_TYPE + ", "
+            + WINNER_SERVER_TYPE + ", count(*) FROM " + WINNERS_TABLE_NAME + " GROUP BY "
+            + WINNER_TAKE_LOCAL + ", " + WINNER_LOCAL_TYPE + ", " + WINNER_SERVER_TYPE, null);
+        while (c.moveToNext()) {
+          int count = c.getInt(3);
+          if (c.getInt(0) != 0) {
+            localWins += count;
+          } else {
+            serverWins += count;
+          }
+          countsByType[c.getInt(1)] += count;
+          countsByType[c.getInt(2)] += count;
+        }
+      } finally {
+        if (c != null && !c.isClosed()) {
+          c.close();
+        }
+      }
+
+      //@formatter:off
+      // local wins
+      db.execSQL("DELETE FROM " + table + " WHERE " + DataTableColumns.CONFLICT_TYPE + " IN "
+          + SERVER_TYPES + " AND " + DataTableColumns.ID + winnersOf + "1)");
+      db.execSQL("UPDATE " + table + " SET "
+          + DataTableColumns.SYNC_STATE + "=CASE " + DataTableColumns.CONFLICT_TYPE
+            + " WHEN " + ConflictType.LOCAL_DELETED_OLD_VALUES + " THEN '" + SyncState.deleting.name()
+            + "' ELSE '" + SyncState.updating.name() + "' END, "
+          + DataTableColumns.ROW_ETAG + "=(SELECT w." + WINNER_SERVER_ETAG + " FROM "
+            + WINNERS_TABLE_NAME + " AS w WHERE w." + WINNER_ID + "=" + table + "."
+            + DataTableColumns.ID + "), "
+          + DataTableColumns.CONFLICT_TYPE + "=NULL"
+          + " WHERE " + DataTableColumns.CONFLICT_TYPE + " IN " + LOCAL_TYPES
+          + " AND " + DataTableColumns.ID + winnersOf + "1)");
+
+      // server wins
+      db.execSQL("DELETE FROM " + table + " WHERE " + DataTableColumns.ID + " IN (SELECT "
+          + WINNER_ID + " FROM " + WINNERS_TABLE_NAME + " WHERE " + WINNER_TAKE_LOCAL + "=0 AND "
+          + WINNER_SERVER_TYPE + "=" + ConflictType.SERVER_DELETED_OLD_VALUES + ")");
+      db.execSQL("DELETE FROM " + table + " WHERE " + DataTableColumns.CONFLICT_TYPE + " IN "
+          + LOCAL_TYPES + " AND " + DataTableColumns.ID + winnersOf + "0)");
+      db.execSQL("UPDATE " + table + " SET "
+          + DataTableColumns.SYNC_STATE + "='" + SyncState.rest.name() + "', "
+          + DataTableColumns.CONFLICT_TYPE + "=NULL"
+          + " WHERE " + DataTableColumns.CONFLICT_TYPE + "="
+          + ConflictType.SERVER_UPDATED_UPDATED_VALUES
+          + " AND " + DataTableColumns.ID + winnersOf + "0)");
+      //@formatter:on
+
+      db.execSQL("DROP TABLE " + WINNERS_TABLE_NAME);
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+    Log.i(t, "resolveConflicts: " + tableId + " " + policy.name() + " local wins: " + localWins
+        + " server wins: " + serverWins);
+    return new Result(localWins, serverWins, countsByType);
+  }
+}
@@ -14,22 +14,37 @@
 
 package org.opendatakit.common.android.database;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import org.apache.commons.lang3.StringUtils;
 import org.codehaus.jackson.JsonParseException;
 import org.codehaus.jackson.map.JsonMappingException;
 import org.opendatakit.common.android.provider.ColumnDefinitionsColumns;
+import org.opendatakit.common.android.provider.DataTableColumns;
 import org.opendatakit.common.android.provider.FormsColumns;
 import org.opendatakit.common.android.provider.InstanceColumns;
 import org.opendatakit.common.android.provider.KeyValueStoreColumns;
+import org.opendatakit.common.android.provider.SyncState;
 import org.opendatakit.common.android.provider.TableDefinitionsColumns;
 import org.opendatakit.common.android.utilities.ODKFileUtils;
 
+import android.content.ContentValues;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.util.Log;
@@ -40,7 +55,14 @@ import android.util.Log;
 public class DataModelDatabaseHelper extends WebKitDatabaseInfoHelper {
 
   static final String APP_KEY = "org.opendatakit.common";
-  static final int APP_VERSION = 1;
+  // 2: unit-of-retention columns of data tables have typed affinities
+  // 3: _deleted_tables
+  // 4: _change_counters
+  // 5: _data_model_cache
+  // 6: _row_change_journal and _row_change_cursors
+  // 7: dirty-row and conflict-row indexes on data tables
+  // 8: _database_id
+  static final int APP_VERSION = 8;
 
   static final String t = "DataModelDatabaseHelper";
 
@@ -91,93 +113,2288 @@ public class DataModelDatabaseHelper extends WebKitDatabaseInfoHelper {
 
   public static final String FORMS_TABLE_NAME = "_formDefs";
 
+  /**
+   * Optional FTS4 full-text index over selected columns of a data table.
+   *
+   * The index table is named dbTableName + FULL_TEXT_INDEX_SUFFIX and its
+   * docid is the rowid of the data table row. It is kept current by triggers
+   * on the data table, so every writer (Survey's WebSQL, Tables, this library)
+   * feeds it through the same write path as the data rows.
+   */
+  public static final String FULL_TEXT_INDEX_SUFFIX = "__fts";
+
+  /**
+   * Tables pending reclamation after deleteTableAndData(). A deleted data table
+   * is renamed to DELETED_TABLE_PREFIX + dbTableName + "_" + timestamp, listed
+   * here, and its rows are then deleted in chunks on a background thread.
+   */
+  public static final String DELETED_TABLES_TABLE_NAME = "_deleted_tables";
+  public static final String DELETED_TABLES_NAME = "_name";
+  public static final String DELETED_TABLES_ROWS_RECLAIMED = "_rows_reclaimed";
+  public static final String DELETED_TABLE_PREFIX = "_deleted_";
+
+  /**
+   * Rows deleted per transaction when reclaiming a deleted table.
+   */
+  public static final int DELETED_TABLE_CHUNK_SIZE = 1000;
+
+  /**
+   * Data tables still to be rewritten with typed columns (see
+   * migrateDataTableToTypedColumns()). Listed when the database is upgraded
+   * and then rewritten on a background thread, one table per transaction.
+   */
+  public static final String TYPED_COLUMNS_PENDING_TABLE_NAME = "_typed_columns_pending";
+  public static final String TYPED_COLUMNS_PENDING_TABLE_ID = "_table_id";
+
+  /**
+   * Per-table change counters, bumped by triggers on every insert, update and
+   * delete (by any writer) of the tables that have them. Caches compare the
+   * counter to the value they loaded at to detect stale entries.
+   */
+  public static final String CHANGE_COUNTERS_TABLE_NAME = "_change_counters";
+  public static final String CHANGE_COUNTERS_TABLE = "_table_name";
+  public static final String CHANGE_COUNTERS_COUNTER = "_counter";
+
+  /**
+   * Compiled column definitions and data model of each tableId, valid while
+   * the change counter of _column_definitions equals _counter. Only written
+   * by DatabaseMaintenance; reads never write it.
+   */
+  public static final String DATA_MODEL_CACHE_TABLE_NAME = "_data_model_cache";
+  public static final String DATA_MODEL_CACHE_TABLE_ID = "_table_id";
+  public static final String DATA_MODEL_CACHE_COUNTER = "_counter";
+  public static final String DATA_MODEL_CACHE_COLUMN_DEFINITIONS = "_column_definitions";
+  public static final String DATA_MODEL_CACHE_DATA_MODEL = "_data_model";
+
+  /**
+   * A single row holding a random id of the database file, assigned when the
+   * file is created (or upgraded) and again in each backup copy. In-memory
+   * caches key on it rather than on the path, which a restored or replaced
+   * file reuses.
+   */
+  public static final String DATABASE_ID_TABLE_NAME = "_database_id";
+  public static final String DATABASE_ID = "_id";
+
+  /**
+   * Journal of the inserts, updates and deletes of data-table rows, written by
+   * triggers on the data tables. _seq increases monotonically (it is never
+   * reused, even after compaction), so readers remember the last _seq they
+   * processed and ask for the changes since then instead of rescanning the
+   * data tables. A data table in an attached file has its own journal in that
+   * file; its _seq is only comparable with the cursors of that table.
+   */
+  public static final String ROW_CHANGE_JOURNAL_TABLE_NAME = "_row_change_journal";
+  public static final String ROW_CHANGE_SEQ = "_seq";
+  public static final String ROW_CHANGE_TABLE_ID = "_table_id";
+  public static final String ROW_CHANGE_ROW_ID = "_row_id";
+  public static final String ROW_CHANGE_OPERATION = "_operation";
+  public static final String ROW_CHANGE_INSERT = "insert";
+  public static final String ROW_CHANGE_UPDATE = "update";
+  public static final String ROW_CHANGE_DELETE = "delete";
+
+  /**
+   * The last journal _seq processed by each (consumer, tableId). Compaction
+   * never discards entries a consumer has not yet processed. The
+   * ROW_CHANGE_COMPACTED consumer records the highest _seq discarded.
+   */
+  public static final String ROW_CHANGE_CURSORS_TABLE_NAME = "_row_change_cursors";
+  public static final String ROW_CHANGE_CURSOR_CONSUMER = "_consumer";
+  public static final String ROW_CHANGE_CURSOR_TABLE_ID = "_table_id";
+  public static final String ROW_CHANGE_CURSOR_SEQ = "_seq";
+  public static final String ROW_CHANGE_COMPACTED = "_compacted";
+
+  /**
+   * Suffixes of the indexes on the rows of a data table that sync must visit:
+   * those not at rest and those in conflict. When SQLite supports partial
+   * indexes (3.8.0 and later) they cover only those rows, and are only used
+   * by queries whose selection implies the index predicate -- use
+   * getDirtyRowsSelection() and getConflictRowsSelection().
+   */
+  public static final String DIRTY_ROWS_INDEX_SUFFIX = "__dirty";
+  public static final String CONFLICT_ROWS_INDEX_SUFFIX = "__conflicts";
+
+  private static final String DIRTY_ROWS_PARTIAL_SELECTION = DataTableColumns.SYNC_STATE
+      + " <> '" + SyncState.rest.name() + "'";
+  private static final String DIRTY_ROWS_SELECTION = DataTableColumns.SYNC_STATE + " IN ('"
+      + SyncState.inserting.name() + "','" + SyncState.updating.name() + "','"
+      + SyncState.deleting.name() + "','" + SyncState.conflicting.name() + "')";
+  private static final String CONFLICT_ROWS_SELECTION = DataTableColumns.CONFLICT_TYPE
+      + " IS NOT NULL";
+
+  /**
+   * A data table can live in its own database file (see
+   * moveDataTableToAttachedFile()), ATTACHed to the connection under a schema
+   * named ATTACHED_SCHEMA_PREFIX + tableId. The file sits next to the main
+   * database file and is named schema + ATTACHED_FILE_SUFFIX.
+   */
+  public static final String ATTACHED_SCHEMA_PREFIX = "t_";
+  public static final String ATTACHED_FILE_SUFFIX = ".db";
+
+  private static final Pattern CREATE_TABLE_PREFIX = Pattern.compile(
+      "^CREATE\\s+TABLE\\s+(?:IF\\s+NOT\\s+EXISTS\\s+)?(?:\"(?:[^\"]|\"\")*\"|\\S+?)\\s*\\(",
+      Pattern.CASE_INSENSITIVE);
+  private static final Pattern CREATE_INDEX_PREFIX = Pattern.compile(
+      "^(CREATE\\s+(?:UNIQUE\\s+)?INDEX\\s+(?:IF\\s+NOT\\s+EXISTS\\s+)?)",
+      Pattern.CASE_INSENSITIVE);
+
+  // null until the SQLite library version has been checked
+  private static volatile Boolean partialIndexesSupported = null;
+
+  private static final ExecutorService deletedTableWorker = Executors.newFixedThreadPool(1);
+
+  private final AtomicBoolean deletedTableCleanupScheduled = new AtomicBoolean(false);
+  private final AtomicBoolean typedColumnsMigrationScheduled = new AtomicBoolean(false);
+
+  private final DatabaseMaintenance maintenance = new DatabaseMaintenance(this);
+
+  private volatile boolean perTableFilesEnabled = false;
+
   public DataModelDatabaseHelper(String dbPath, String databaseName) {
     super(dbPath, databaseName, null, APP_KEY, APP_VERSION);
   }
 
-  private void commonTableDefn(SQLiteDatabase db) {
-    // db.execSQL(SurveyConfigurationColumns.getTableCreateSql(SURVEY_CONFIGURATION_TABLE_NAME));
-    db.execSQL(InstanceColumns.getTableCreateSql(UPLOADS_TABLE_NAME));
-    db.execSQL(FormsColumns.getTableCreateSql(FORMS_TABLE_NAME));
-    db.execSQL(ColumnDefinitionsColumns.getTableCreateSql(COLUMN_DEFINITIONS_TABLE_NAME));
-    db.execSQL(KeyValueStoreColumns.getTableCreateSql(KEY_VALUE_STORE_DEFAULT_TABLE_NAME));
-    db.execSQL(KeyValueStoreColumns.getTableCreateSql(KEY_VALUE_STORE_ACTIVE_TABLE_NAME));
-    db.execSQL(KeyValueStoreColumns.getTableCreateSql(KEY_VALUE_STORE_SERVER_TABLE_NAME));
-    db.execSQL(KeyValueStoreColumns.getTableCreateSql(KEY_VALULE_STORE_SYNC_TABLE_NAME));
-    db.execSQL(TableDefinitionsColumns.getTableCreateSql(TABLE_DEFS_TABLE_NAME));
+  /**
+   * Cursors are produced by the {@link SqlTracer} of the appName, so that
+   * queries can be traced when it is enabled.
+   *
+   * @param appName
+   * @param dbPath
+   * @param databaseName
+   */
+  public DataModelDatabaseHelper(String appName, String dbPath, String databaseName) {
+    super(dbPath, databaseName, SqlTracer.getTracer(appName).getCursorFactory(), APP_KEY,
+        APP_VERSION);
+  }
+
+  private void commonTableDefn(SQLiteDatabase db) {
+    // db.execSQL(SurveyConfigurationColumns.getTableCreateSql(SURVEY_CONFIGURATION_TABLE_NAME));
+    db.execSQL(InstanceColumns.getTableCreateSql(UPLOADS_TABLE_NAME));
+    db.execSQL(FormsColumns.getTableCreateSql(FORMS_TABLE_NAME));
+    db.execSQL(ColumnDefinitionsColumns.getTableCreateSql(COLUMN_DEFINITIONS_TABLE_NAME));
+    db.execSQL(KeyValueStoreColumns.getTableCreateSql(KEY_VALUE_STORE_DEFAULT_TABLE_NAME));
+    db.execSQL(KeyValueStoreColumns.getTableCreateSql(KEY_VALUE_STORE_ACTIVE_TABLE_NAME));
+    db.execSQL(KeyValueStoreColumns.getTableCreateSql(KEY_VALUE_STORE_SERVER_TABLE_NAME));
+    db.execSQL(KeyValueStoreColumns.getTableCreateSql(KEY_VALULE_STORE_SYNC_TABLE_NAME));
+    db.execSQL(TableDefinitionsColumns.getTableCreateSql(TABLE_DEFS_TABLE_NAME));
+    db.execSQL("CREATE TABLE IF NOT EXISTS " + DELETED_TABLES_TABLE_NAME + " ("
+        + DELETED_TABLES_NAME + " TEXT NOT NULL PRIMARY KEY, "
+        + DELETED_TABLES_ROWS_RECLAIMED + " INTEGER NOT NULL DEFAULT 0)");
+    db.execSQL("CREATE TABLE IF NOT EXISTS " + TYPED_COLUMNS_PENDING_TABLE_NAME + " ("
+        + TYPED_COLUMNS_PENDING_TABLE_ID + " TEXT NOT NULL PRIMARY KEY)");
+    db.execSQL("CREATE TABLE IF NOT EXISTS " + CHANGE_COUNTERS_TABLE_NAME + " ("
+        + CHANGE_COUNTERS_TABLE + " TEXT NOT NULL PRIMARY KEY, "
+        + CHANGE_COUNTERS_COUNTER + " INTEGER NOT NULL DEFAULT 0)");
+    createChangeCounterTriggers(db, KEY_VALUE_STORE_DEFAULT_TABLE_NAME);
+    createChangeCounterTriggers(db, KEY_VALUE_STORE_ACTIVE_TABLE_NAME);
+    createChangeCounterTriggers(db, KEY_VALUE_STORE_SERVER_TABLE_NAME);
+    createChangeCounterTriggers(db, KEY_VALULE_STORE_SYNC_TABLE_NAME);
+    createChangeCounterTriggers(db, COLUMN_DEFINITIONS_TABLE_NAME);
+    db.execSQL("CREATE TABLE IF NOT EXISTS " + DATA_MODEL_CACHE_TABLE_NAME + " ("
+        + DATA_MODEL_CACHE_TABLE_ID + " TEXT NOT NULL PRIMARY KEY, "
+        + DATA_MODEL_CACHE_COUNTER + " INTEGER NOT NULL, "
+        + DATA_MODEL_CACHE_COLUMN_DEFINITIONS + " TEXT NOT NULL, "
+        + DATA_MODEL_CACHE_DATA_MODEL + " TEXT NOT NULL)");
+    db.execSQL("CREATE TABLE IF NOT EXISTS " + DATABASE_ID_TABLE_NAME + " ("
+        + DATABASE_ID + " TEXT NOT NULL)");
+    db.execSQL("INSERT INTO " + DATABASE_ID_TABLE_NAME + " (" + DATABASE_ID + ") SELECT ?"
+        + " WHERE NOT EXISTS (SELECT 1 FROM " + DATABASE_ID_TABLE_NAME + ")",
+        new Object[] { UUID.randomUUID().toString() });
+    createRowChangeJournalTable(db, "main");
+    //@formatter:off
+    db.execSQL("CREATE TABLE IF NOT EXISTS " + ROW_CHANGE_CURSORS_TABLE_NAME + " ("
+        + ROW_CHANGE_CURSOR_CONSUMER + " TEXT NOT NULL, "
+        + ROW_CHANGE_CURSOR_TABLE_ID + " TEXT NOT NULL, "
+        + ROW_CHANGE_CURSOR_SEQ + " INTEGER NOT NULL, "
+        + "PRIMARY KEY (" + ROW_CHANGE_CURSOR_CONSUMER + ", " + ROW_CHANGE_CURSOR_TABLE_ID + "))");
+    //@formatter:on
+  }
+
+  /**
+   * Install the triggers that bump the change counter of the table.
+   *
+   * @param db
+   * @param tableName
+   */
+  static void createChangeCounterTriggers(SQLiteDatabase db, String tableName) {
+    db.execSQL("INSERT OR IGNORE INTO " + CHANGE_COUNTERS_TABLE_NAME + " ("
+        + CHANGE_COUNTERS_TABLE + ", " + CHANGE_COUNTERS_COUNTER + ") VALUES (?, 0)",
+        new Object[] { tableName });
+    String bump = " ON \"" + tableName + "\" BEGIN UPDATE " + CHANGE_COUNTERS_TABLE_NAME + " SET "
+        + CHANGE_COUNTERS_COUNTER + "=" + CHANGE_COUNTERS_COUNTER + "+1 WHERE "
+        + CHANGE_COUNTERS_TABLE + "='" + tableName + "'; END";
+    db.execSQL("CREATE TRIGGER IF NOT EXISTS \"" + tableName + "_cc_ai\" AFTER INSERT" + bump);
+    db.execSQL("CREATE TRIGGER IF NOT EXISTS \"" + tableName + "_cc_au\" AFTER UPDATE" + bump);
+    db.execSQL("CREATE TRIGGER IF NOT EXISTS \"" + tableName + "_cc_ad\" AFTER DELETE" + bump);
+  }
+
+  /**
+   * @param db
+   * @param tableName
+   * @return the change counter of the table, or -1 if it has none.
+   */
+  public static long getChangeCounter(SQLiteDatabase db, String tableName) {
+    Cursor c = null;
+    try {
+      c = db.rawQuery("SELECT " + CHANGE_COUNTERS_COUNTER + " FROM " + CHANGE_COUNTERS_TABLE_NAME
+          + " WHERE " + CHANGE_COUNTERS_TABLE + "=?", new String[] { tableName });
+      if (c.moveToFirst()) {
+        return c.getLong(0);
+      }
+      return -1L;
+    } finally {
+      if (c != null && !c.isClosed()) {
+        c.close();
+      }
+    }
+  }
+
+  /**
+   * @return the background maintenance of this database.
+   */
+  public DatabaseMaintenance getMaintenance() {
+    return maintenance;
+  }
+
+  /**
+   * Tables awaiting reclaim are not backed up.
+   */
+  @Override
+  protected boolean includeInBackup(String tableName) {
+    return !tableName.startsWith(DELETED_TABLE_PREFIX);
+  }
+
+  /**
+   * Data tables moved to their own files (see moveDataTableToAttachedFile())
+   * would be missing from the copy, yet still listed in its
+   * _table_definitions, so the backup is refused while any exist.
+   */
+  @Override
+  protected void checkBackup(SQLiteDatabase source) throws IOException {
+    Cursor c = null;
+    try {
+      c = source.query(TABLE_DEFS_TABLE_NAME, new String[] { TableDefinitionsColumns.TABLE_ID },
+          TableDefinitionsColumns.DB_TABLE_NAME + " LIKE '%.%'", null, null, null, null);
+      if (c.moveToFirst()) {
+        throw new IOException("Unable to back up " + source.getPath() + ": " + c.getCount()
+            + " data table(s), e.g., of " + c.getString(0) + ", live in their own files");
+      }
+    } finally {
+      if (c != null && !c.isClosed()) {
+        c.close();
+      }
+    }
+  }
+
+  /**
+   * The copy is a different file, so it gets its own database id.
+   */
+  @Override
+  protected void onBackupCopied(SQLiteDatabase backup) {
+    backup.execSQL("UPDATE " + DATABASE_ID_TABLE_NAME + " SET " + DATABASE_ID + "=?",
+        new Object[] { UUID.randomUUID().toString() });
+  }
+
+  @Override
+  public void onConfigure(SQLiteDatabase db) {
+    super.onConfigure(db);
+    // lets DatabaseMaintenance return freed pages to the filesystem. Only
+    // takes effect on a new (empty) database file.
+    db.execSQL("PRAGMA auto_vacuum = INCREMENTAL");
+  }
+
+  @Override
+  public void onOpen(SQLiteDatabase db) {
+    super.onOpen(db);
+    attachDataTableFiles(db);
+    if (!db.isReadOnly()) {
+      // data tables created by the apps since the last open
+      ensureRowChangeJournals(db);
+      // resume reclaiming any tables deleted before the last close
+      scheduleDeletedTableCleanup();
+      scheduleTypedColumnsMigration();
+      maintenance.schedule();
+    }
+  }
+
+  @Override
+  public void onCreateAppVersion(SQLiteDatabase db) {
+    commonTableDefn(db);
+  }
+
+  @Override
+  public void onUpgradeAppVersion(SQLiteDatabase db, int oldVersion, int newVersion) {
+    // for now, upgrade and creation use the same codepath...
+    commonTableDefn(db);
+    if (oldVersion < 2) {
+      // rewritten after the upgrade (see scheduleTypedColumnsMigration()) so
+      // that each table is its own transaction
+      db.execSQL("INSERT OR IGNORE INTO " + TYPED_COLUMNS_PENDING_TABLE_NAME + " ("
+          + TYPED_COLUMNS_PENDING_TABLE_ID + ") SELECT " + TableDefinitionsColumns.TABLE_ID
+          + " FROM " + TABLE_DEFS_TABLE_NAME);
+    }
+    if (oldVersion < 7) {
+      for (String tableId : getTableIds(db)) {
+        String dbTableName = getDbTableName(db, tableId);
+        if (dbTableName != null && tableExists(db, dbTableName)) {
+          if (oldVersion < 6) {
+            createRowChangeJournalTriggers(db, tableId, dbTableName);
+          }
+          createDataTableIndexes(db, dbTableName);
+        }
+      }
+    }
+  }
+
+  /**
+   * @param db
+   * @return true if the SQLite library supports partial indexes (3.8.0+).
+   */
+  public static boolean supportsPartialIndexes(SQLiteDatabase db) {
+    Boolean supported = partialIndexesSupported;
+    if (supported == null) {
+      Cursor c = null;
+      try {
+        c = db.rawQuery("SELECT sqlite_version()", null);
+        String[] parts = c.moveToFirst() ? c.getString(0).split("\\.") : new String[0];
+        int major = (parts.length > 0) ? Integer.parseInt(parts[0]) : 0;
+        int minor = (parts.length > 1) ? Integer.parseInt(parts[1]) : 0;
+        supported = (major > 3 || (major == 3 && minor >= 8));
+      } finally {
+        if (c != null && !c.isClosed()) {
+          c.close();
+        }
+      }
+      partialIndexesSupported = supported;
+    }
+    return supported;
+  }
+
+  /**
+   * Create the dirty-row and conflict-row indexes of the data table. The
+   * ConflictResolver relies on them. Like the journal triggers, they are
+   * created by createDataTable() and, for data tables created elsewhere, by
+   * ensureRowChangeJournals().
+   *
+   * @param db
+   * @param dbTableName
+   */
+  public static void createDataTableIndexes(SQLiteDatabase db, String dbTableName) {
+    // the index lives in the schema of the table; ON takes the bare name
+    String schema = "\"" + getSchemaName(dbTableName) + "\".\"";
+    String tableName = getUnqualifiedTableName(dbTableName);
+    //@formatter:off
+    if (supportsPartialIndexes(db)) {
+      db.execSQL("CREATE INDEX IF NOT EXISTS " + schema + tableName + DIRTY_ROWS_INDEX_SUFFIX + "\" ON \""
+          + tableName + "\" (" + DataTableColumns.SYNC_STATE + ", " + DataTableColumns.ID
+          + ") WHERE " + DIRTY_ROWS_PARTIAL_SELECTION);
+      db.execSQL("CREATE INDEX IF NOT EXISTS " + schema + tableName + CONFLICT_ROWS_INDEX_SUFFIX + "\" ON \""
+          + tableName + "\" (" + DataTableColumns.CONFLICT_TYPE + ", " + DataTableColumns.ID
+          + ") WHERE " + CONFLICT_ROWS_SELECTION);
+    } else {
+      db.execSQL("CREATE INDEX IF NOT EXISTS " + schema + tableName + DIRTY_ROWS_INDEX_SUFFIX + "\" ON \""
+          + tableName + "\" (" + DataTableColumns.SYNC_STATE + ")");
+      db.execSQL("CREATE INDEX IF NOT EXISTS " + schema + tableName + CONFLICT_ROWS_INDEX_SUFFIX + "\" ON \""
+          + tableName + "\" (" + DataTableColumns.CONFLICT_TYPE + ")");
+    }
+    //@formatter:on
+  }
+
+  /**
+   * @param db
+   * @param dbTableName
+   * @return true if both indexes of createDataTableIndexes() exist.
+   */
+  static boolean hasDataTableIndexes(SQLiteDatabase db, String dbTableName) {
+    String tableName = getUnqualifiedTableName(dbTableName);
+    Cursor c = null;
+    try {
+      c = db.rawQuery("SELECT count(*) FROM \"" + getSchemaName(dbTableName)
+          + "\".sqlite_master WHERE type='index' AND tbl_name=? AND name IN (?,?)", new String[] {
+          tableName, tableName + DIRTY_ROWS_INDEX_SUFFIX, tableName + CONFLICT_ROWS_INDEX_SUFFIX });
+      return c.moveToFirst() && c.getInt(0) == 2;
+    } finally {
+      if (c != null && !c.isClosed()) {
+        c.close();
+      }
+    }
+  }
+
+  /**
+   * @param db
+   * @return the selection of the rows that are not at rest, in the form that
+   *         can use the dirty-row index.
+   */
+  public static String getDirtyRowsSelection(SQLiteDatabase db) {
+    return supportsPartialIndexes(db) ? DIRTY_ROWS_PARTIAL_SELECTION : DIRTY_ROWS_SELECTION;
+  }
+
+  /**
+   * @return the selection of the rows in conflict, in the form that can use
+   *         the conflict-row index.
+   */
+  public static String getConflictRowsSelection() {
+    return CONFLICT_ROWS_SELECTION;
+  }
+
+  private static List<String> getTableIds(SQLiteDatabase db) {
+    List<String> tableIds = new ArrayList<String>();
+    Cursor c = null;
+    try {
+      c = db.query(TABLE_DEFS_TABLE_NAME, new String[] { TableDefinitionsColumns.TABLE_ID }, null,
+          null, null, null, null);
+      while (c.moveToNext()) {
+        tableIds.add(c.getString(0));
+      }
+    } finally {
+      if (c != null && !c.isClosed()) {
+        c.close();
+      }
+    }
+    return tableIds;
+  }
+
+  /**
+   * Install the triggers that journal the row changes of the data table.
+   * createDataTable() installs them. Data tables created elsewhere get them
+   * from ensureRowChangeJournals() when the database is opened and in each
+   * maintenance round; call ensureRowChangeJournal() right after creating
+   * (or recreating) one to journal its changes from the start.
+   *
+   * <p>
+   * The triggers live in the schema of the table and write to the journal of
+   * that schema (see getRowChangeJournalTableName()), so writes to a data
+   * table in an attached file only lock that file. That journal is created
+   * here if needed.
+   * </p>
+   *
+   * @param db
+   * @param tableId
+   * @param dbTableName
+   */
+  public static void createRowChangeJournalTriggers(SQLiteDatabase db, String tableId,
+      String dbTableName) {
+    if (isAttachedDataTable(dbTableName)) {
+      createAttachedRowChangeJournal(db, tableId, dbTableName);
+    }
+    // the body of a trigger can only reference tables of its own schema
+    String tableName = getUnqualifiedTableName(dbTableName);
+    String create = "CREATE TRIGGER IF NOT EXISTS \"" + getSchemaName(dbTableName) + "\".\""
+        + tableName;
+    String literal = "'" + tableId.replace("'", "''") + "'";
+    String insert = " ON \"" + tableName + "\" BEGIN INSERT INTO "
+        + ROW_CHANGE_JOURNAL_TABLE_NAME + " (" + ROW_CHANGE_TABLE_ID + ", " + ROW_CHANGE_ROW_ID
+        + ", " + ROW_CHANGE_OPERATION + ") VALUES (" + literal + ", ";
+    //@formatter:off
+    db.execSQL(create + "_rcj_ai\" AFTER INSERT" + insert
+        + "new." + DataTableColumns.ID + ", '" + ROW_CHANGE_INSERT + "'); END");
+    db.execSQL(create + "_rcj_au\" AFTER UPDATE" + insert
+        + "new." + DataTableColumns.ID + ", '" + ROW_CHANGE_UPDATE + "'); END");
+    db.execSQL(create + "_rcj_ad\" AFTER DELETE" + insert
+        + "old." + DataTableColumns.ID + ", '" + ROW_CHANGE_DELETE + "'); END");
+    //@formatter:on
+  }
+
+  private static void createRowChangeJournalTable(SQLiteDatabase db, String schemaName) {
+    String schema = "\"" + schemaName + "\".";
+    //@formatter:off
+    db.execSQL("CREATE TABLE IF NOT EXISTS " + schema + ROW_CHANGE_JOURNAL_TABLE_NAME + " ("
+        + ROW_CHANGE_SEQ + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+        + ROW_CHANGE_TABLE_ID + " TEXT NOT NULL, "
+        + ROW_CHANGE_ROW_ID + " TEXT NOT NULL, "
+        + ROW_CHANGE_OPERATION + " TEXT NOT NULL)");
+    db.execSQL("CREATE INDEX IF NOT EXISTS " + schema + ROW_CHANGE_JOURNAL_TABLE_NAME
+        + "_table_seq ON " + ROW_CHANGE_JOURNAL_TABLE_NAME
+        + " (" + ROW_CHANGE_TABLE_ID + ", " + ROW_CHANGE_SEQ + ")");
+    //@formatter:on
+  }
+
+  /**
+   * Create the journal in the attached file of the data table, if it is not
+   * there yet. The entries of the tableId in the main journal move into it,
+   * and its _seq continues from the main journal's, so the cursors of the
+   * tableId stay valid.
+   *
+   * @param db
+   * @param tableId
+   * @param dbTableName
+   */
+  private static void createAttachedRowChangeJournal(SQLiteDatabase db, String tableId,
+      String dbTableName) {
+    String schemaName = getSchemaName(dbTableName);
+    if (tableExists(db, schemaName + "." + ROW_CHANGE_JOURNAL_TABLE_NAME)) {
+      return;
+    }
+    String journal = getRowChangeJournalTableName(dbTableName);
+    String columns = ROW_CHANGE_SEQ + ", " + ROW_CHANGE_TABLE_ID + ", " + ROW_CHANGE_ROW_ID + ", "
+        + ROW_CHANGE_OPERATION;
+    db.beginTransaction();
+    try {
+      long seq = getRowChangeJournalSeq(db, "main");
+      createRowChangeJournalTable(db, schemaName);
+      db.execSQL("INSERT INTO " + journal + " (" + columns + ") SELECT " + columns
+          + " FROM \"main\"." + ROW_CHANGE_JOURNAL_TABLE_NAME + " WHERE " + ROW_CHANGE_TABLE_ID + "=?",
+          new String[] { tableId });
+      db.delete("\"main\"." + ROW_CHANGE_JOURNAL_TABLE_NAME, ROW_CHANGE_TABLE_ID + "=?",
+          new String[] { tableId });
+      db.execSQL("DELETE FROM \"" + schemaName + "\".sqlite_sequence WHERE name=?",
+          new String[] { ROW_CHANGE_JOURNAL_TABLE_NAME });
+      db.execSQL("INSERT INTO \"" + schemaName + "\".sqlite_sequence (name, seq) VALUES (?, ?)",
+          new Object[] { ROW_CHANGE_JOURNAL_TABLE_NAME, seq });
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+  }
+
+  /**
+   * @param dbTableName
+   * @return the journal written by the triggers of the data table: the one of
+   *         its schema. Each data table in an attached file has its own.
+   *         Quoted for use in FROM, INSERT INTO, etc.
+   */
+  public static String getRowChangeJournalTableName(String dbTableName) {
+    return "\"" + getSchemaName(dbTableName) + "\"." + ROW_CHANGE_JOURNAL_TABLE_NAME;
+  }
+
+  /**
+   * @param db
+   * @return the schemas that hold a journal: main, and those of the data
+   *         tables in attached files.
+   */
+  private static List<String> getRowChangeJournalSchemas(SQLiteDatabase db) {
+    List<String> schemaNames = new ArrayList<String>();
+    for (String schemaName : getAttachedSchemas(db)) {
+      if (!"temp".equals(schemaName)
+          && tableExists(db, schemaName + "." + ROW_CHANGE_JOURNAL_TABLE_NAME)) {
+        schemaNames.add(schemaName);
+      }
+    }
+    return schemaNames;
+  }
+
+  /**
+   * Make sure the journal triggers of the data table exist. If they had to be
+   * (re)installed, changes may have been missed, so the cursors of the
+   * tableId are removed and consumers fall back to a full scan. The table
+   * was likely created elsewhere, so its indexes are created too.
+   *
+   * @param db
+   *          -- a writable database
+   * @param tableId
+   * @param dbTableName
+   * @return true if the journal of the tableId was already complete.
+   */
+  public static boolean ensureRowChangeJournal(SQLiteDatabase db, String tableId,
+      String dbTableName) {
+    String tableName = getUnqualifiedTableName(dbTableName);
+    Cursor c = null;
+    try {
+      c = db.rawQuery("SELECT count(*) FROM \"" + getSchemaName(dbTableName)
+          + "\".sqlite_master WHERE type='trigger' AND tbl_name=? AND name IN (?,?,?)",
+          new String[] { tableName, tableName + "_rcj_ai", tableName + "_rcj_au",
+              tableName + "_rcj_ad" });
+      if (c.moveToFirst() && c.getInt(0) == 3) {
+        return true;
+      }
+    } finally {
+      if (c != null && !c.isClosed()) {
+        c.close();
+      }
+    }
+    db.beginTransaction();
+    try {
+      createRowChangeJournalTriggers(db, tableId, dbTableName);
+      createDataTableIndexes(db, dbTableName);
+      db.delete(ROW_CHANGE_CURSORS_TABLE_NAME, ROW_CHANGE_CURSOR_TABLE_ID + "=? AND "
+          + ROW_CHANGE_CURSOR_CONSUMER + "<>?", new String[] { tableId, ROW_CHANGE_COMPACTED });
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+    return false;
+  }
+
+  /**
+   * Call ensureRowChangeJournal() for every data table of _table_definitions
+   * that exists, and create the indexes of those that already had their
+   * triggers but not their indexes. A table whose triggers or indexes cannot
+   * be created is logged and skipped.
+   *
+   * @param db
+   *          -- a writable database
+   * @return the number of tables whose triggers or indexes had to be created.
+   */
+  static int ensureRowChangeJournals(SQLiteDatabase db) {
+    int count = 0;
+    for (String tableId : getTableIds(db)) {
+      String dbTableName = getDbTableName(db, tableId);
+      try {
+        if (dbTableName == null || !tableExists(db, dbTableName)) {
+          continue;
+        }
+        if (!ensureRowChangeJournal(db, tableId, dbTableName)) {
+          ++count;
+        } else if (!hasDataTableIndexes(db, dbTableName)) {
+          createDataTableIndexes(db, dbTableName);
+          ++count;
+        }
+      } catch (Exception e) {
+        Log.w(t, "ensureRowChangeJournals: unable to journal " + dbTableName + ": "
+            + e.toString());
+      }
+    }
+    return count;
+  }
+
+  /**
+   * @param db
+   * @return a count that grows by (at least) one for every journal entry
+   *         written to any journal: the sum of their latest _seq. Only
+   *         differences between two calls are meaningful.
+   */
+  public static long getLatestRowChangeSeq(SQLiteDatabase db) {
+    long sum = 0L;
+    for (String schemaName : getRowChangeJournalSchemas(db)) {
+      sum += getRowChangeJournalSeq(db, schemaName);
+    }
+    return sum;
+  }
+
+  /**
+   * @param db
+   * @param dbTableName
+   * @return the _seq of the latest entry ever written to the journal of the
+   *         data table (see getRowChangeJournalTableName()), or 0. Compare it
+   *         with the cursors of the table.
+   */
+  public static long getLatestRowChangeSeq(SQLiteDatabase db, String dbTableName) {
+    String schemaName = getSchemaName(dbTableName);
+    if (isAttachedDataTable(dbTableName)
+        && !tableExists(db, schemaName + "." + ROW_CHANGE_JOURNAL_TABLE_NAME)) {
+      return 0L;
+    }
+    return getRowChangeJournalSeq(db, schemaName);
+  }
+
+  private static long getRowChangeJournalSeq(SQLiteDatabase db, String schemaName) {
+    Cursor c = null;
+    try {
+      c = db.rawQuery("SELECT seq FROM \"" + schemaName + "\".sqlite_sequence WHERE name=?",
+          new String[] { ROW_CHANGE_JOURNAL_TABLE_NAME });
+      if (c.moveToFirst()) {
+        return c.getLong(0);
+      }
+      return 0L;
+    } finally {
+      if (c != null && !c.isClosed()) {
+        c.close();
+      }
+    }
+  }
+
+  /**
+   * @param db
+   * @param consumer
+   * @param tableId
+   * @return the last _seq processed by the consumer, or -1 if it has not yet
+   *         processed the tableId (and must do a full scan).
+   */
+  public static long getRowChangeCursor(SQLiteDatabase db, String consumer, String tableId) {
+    Cursor c = null;
+    try {
+      c = db.query(ROW_CHANGE_CURSORS_TABLE_NAME, new String[] { ROW_CHANGE_CURSOR_SEQ },
+          ROW_CHANGE_CURSOR_CONSUMER + "=? AND " + ROW_CHANGE_CURSOR_TABLE_ID + "=?",
+          new String[] { consumer, tableId }, null, null, null);
+      if (c.moveToFirst()) {
+        return c.getLong(0);
+      }
+      return -1L;
+    } finally {
+      if (c != null && !c.isClosed()) {
+        c.close();
+      }
+    }
+  }
+
+  /**
+   * Read-only check (one query) of whether a consumer must catch up on the
+   * tableId before its view is current: true if the journal triggers of the
+   * data table are missing, the consumer has no cursor for the tableId, or
+   * the journal holds entries of the tableId past that cursor. When false,
+   * the consumer can skip ensureRowChangeJournal() and its back-fill.
+   *
+   * @param db
+   *          -- may be a read-only database
+   * @param consumer
+   * @param tableId
+   * @param dbTableName
+   * @return
+   */
+  public static boolean isRowChangeConsumerBehind(SQLiteDatabase db, String consumer,
+      String tableId, String dbTableName) {
+    String schemaName = getSchemaName(dbTableName);
+    if (isAttachedDataTable(dbTableName)
+        && !tableExists(db, schemaName + "." + ROW_CHANGE_JOURNAL_TABLE_NAME)) {
+      // created along with the triggers
+      return true;
+    }
+    String tableName = getUnqualifiedTableName(dbTableName);
+    Cursor c = null;
+    try {
+      //@formatter:off
+      c = db.rawQuery("SELECT (SELECT count(*) FROM \"" + schemaName + "\".sqlite_master"
+          + " WHERE type='trigger' AND tbl_name=? AND name IN (?,?,?)),"
+          + " (SELECT " + ROW_CHANGE_CURSOR_SEQ + " FROM " + ROW_CHANGE_CURSORS_TABLE_NAME
+          + " WHERE " + ROW_CHANGE_CURSOR_CONSUMER + "=? AND " + ROW_CHANGE_CURSOR_TABLE_ID + "=?),"
+          + " (SELECT max(" + ROW_CHANGE_SEQ + ") FROM " + getRowChangeJournalTableName(dbTableName)
+          + " WHERE " + ROW_CHANGE_TABLE_ID + "=?)",
+          new String[] { tableName, tableName + "_rcj_ai", tableName + "_rcj_au",
+              tableName + "_rcj_ad", consumer, tableId, tableId });
+      //@formatter:on
+      if (!c.moveToFirst() || c.getInt(0) != 3 || c.isNull(1)) {
+        return true;
+      }
+      return !c.isNull(2) && c.getLong(2) > c.getLong(1);
+    } finally {
+      if (c != null && !c.isClosed()) {
+        c.close();
+      }
+    }
+  }
+
+  /**
+   * Record that the consumer has processed the changes of the tableId up to
+   * and including seq.
+   *
+   * @param db
+   * @param consumer
+   * @param tableId
+   * @param seq
+   */
+  public static void setRowChangeCursor(SQLiteDatabase db, String consumer, String tableId, long seq) {
+    ContentValues v = new ContentValues();
+    v.put(ROW_CHANGE_CURSOR_CONSUMER, consumer);
+    v.put(ROW_CHANGE_CURSOR_TABLE_ID, tableId);
+    v.put(ROW_CHANGE_CURSOR_SEQ, seq);
+    db.replace(ROW_CHANGE_CURSORS_TABLE_NAME, null, v);
+  }
+
+  /**
+   * A journal entry.
+   */
+  public static final class RowChange {
+    public final long seq;
+    public final String rowId;
+    public final String operation;
+
+    RowChange(long seq, String rowId, String operation) {
+      this.seq = seq;
+      this.rowId = rowId;
+      this.operation = operation;
+    }
+  }
+
+  /**
+   * The result of getRowChangesSince().
+   */
+  public static final class RowChanges {
+    /** false if entries after the requested seq were compacted away; rescan */
+    public final boolean complete;
+    /** the seq to pass to the next call */
+    public final long lastSeq;
+    public final List<RowChange> changes = new ArrayList<RowChange>();
+
+    RowChanges(boolean complete, long lastSeq) {
+      this.complete = complete;
+      this.lastSeq = lastSeq;
+    }
+  }
+
+  /**
+   * Return the journal entries of the tableId with _seq greater than sinceSeq,
+   * oldest first. A row may appear more than once; compaction keeps only the
+   * latest entry of each row, so readers should act on the row's current
+   * state rather than replay the operations.
+   *
+   * @param db
+   * @param tableId
+   * @param sinceSeq
+   * @param limit
+   *          -- maximum number of entries (0 for no limit). When reached,
+   *          call again with the returned lastSeq.
+   * @return
+   */
+  public static RowChanges getRowChangesSince(SQLiteDatabase db, String tableId, long sinceSeq,
+      int limit) {
+    long compacted = getRowChangeCursor(db, ROW_CHANGE_COMPACTED, tableId);
+    boolean complete = (sinceSeq >= compacted);
+    String dbTableName = getDbTableName(db, tableId);
+    if (dbTableName != null && isAttachedDataTable(dbTableName)
+        && !tableExists(db, getSchemaName(dbTableName) + "." + ROW_CHANGE_JOURNAL_TABLE_NAME)) {
+      return new RowChanges(complete, sinceSeq);
+    }
+    String journal = (dbTableName == null) ? ROW_CHANGE_JOURNAL_TABLE_NAME
+        : getRowChangeJournalTableName(dbTableName);
+    Cursor c = null;
+    try {
+      c = db.query(journal, new String[] { ROW_CHANGE_SEQ,
+          ROW_CHANGE_ROW_ID, ROW_CHANGE_OPERATION }, ROW_CHANGE_TABLE_ID + "=? AND "
+          + ROW_CHANGE_SEQ + ">?", new String[] { tableId, Long.toString(sinceSeq) }, null,
+          null, ROW_CHANGE_SEQ + " ASC", (limit > 0) ? Integer.toString(limit) : null);
+      List<RowChange> changes = new ArrayList<RowChange>();
+      long lastSeq = sinceSeq;
+      while (c.moveToNext()) {
+        lastSeq = c.getLong(0);
+        changes.add(new RowChange(lastSeq, c.getString(1), c.getString(2)));
+      }
+      RowChanges result = new RowChanges(complete, lastSeq);
+      result.changes.addAll(changes);
+      return result;
+    } finally {
+      if (c != null && !c.isClosed()) {
+        c.close();
+      }
+    }
+  }
+
+  /**
+   * Compact the journal:
+   * <ul>
+   * <li>only the latest entry of each row is kept;</li>
+   * <li>entries of tables with consumers are discarded once every consumer
+   * has processed them;</li>
+   * <li>entries and cursors of tables that no longer exist are discarded.</li>
+   * </ul>
+   * The main journal and those in the attached files are compacted alike.
+   *
+   * @param db
+   *          -- a writable database
+   * @return the number of journal entries removed.
+   */
+  public static int compactRowChangeJournal(SQLiteDatabase db) {
+    int count = 0;
+    //@formatter:off
+    String consumed = "SELECT " + ROW_CHANGE_CURSOR_TABLE_ID + ", MIN(" + ROW_CHANGE_CURSOR_SEQ
+        + ") AS " + ROW_CHANGE_CURSOR_SEQ + " FROM " + ROW_CHANGE_CURSORS_TABLE_NAME
+        + " WHERE " + ROW_CHANGE_CURSOR_CONSUMER + "<>'" + ROW_CHANGE_COMPACTED + "'"
+        + " GROUP BY " + ROW_CHANGE_CURSOR_TABLE_ID;
+    //@formatter:on
+    db.beginTransaction();
+    try {
+      db.execSQL("DELETE FROM " + ROW_CHANGE_CURSORS_TABLE_NAME + " WHERE "
+          + ROW_CHANGE_CURSOR_TABLE_ID + " NOT IN (SELECT " + TableDefinitionsColumns.TABLE_ID
+          + " FROM " + TABLE_DEFS_TABLE_NAME + ")");
+
+      for (String schemaName : getRowChangeJournalSchemas(db)) {
+        String journal = "\"" + schemaName + "\"." + ROW_CHANGE_JOURNAL_TABLE_NAME;
+        db.execSQL("DELETE FROM " + journal + " WHERE " + ROW_CHANGE_SEQ
+            + " NOT IN (SELECT MAX(" + ROW_CHANGE_SEQ + ") FROM " + journal
+            + " GROUP BY " + ROW_CHANGE_TABLE_ID + ", " + ROW_CHANGE_ROW_ID + ")");
+        count += changes(db);
+
+        db.execSQL("DELETE FROM " + journal + " WHERE "
+            + ROW_CHANGE_TABLE_ID + " NOT IN (SELECT " + TableDefinitionsColumns.TABLE_ID
+            + " FROM \"main\"." + TABLE_DEFS_TABLE_NAME + ")");
+        count += changes(db);
+
+        // advance the compaction watermark before discarding consumed entries
+        db.execSQL("INSERT OR REPLACE INTO " + ROW_CHANGE_CURSORS_TABLE_NAME + " ("
+            + ROW_CHANGE_CURSOR_CONSUMER + ", " + ROW_CHANGE_CURSOR_TABLE_ID + ", "
+            + ROW_CHANGE_CURSOR_SEQ + ") SELECT '" + ROW_CHANGE_COMPACTED + "', m."
+            + ROW_CHANGE_CURSOR_TABLE_ID + ", m." + ROW_CHANGE_CURSOR_SEQ + " FROM (" + consumed
+            + ") AS m WHERE EXISTS (SELECT 1 FROM " + journal + " j WHERE j."
+            + ROW_CHANGE_TABLE_ID + "=m." + ROW_CHANGE_CURSOR_TABLE_ID + " AND j." + ROW_CHANGE_SEQ
+            + "<=m." + ROW_CHANGE_CURSOR_SEQ + ")");
+        db.execSQL("DELETE FROM " + journal + " WHERE " + ROW_CHANGE_SEQ
+            + " <= (SELECT m." + ROW_CHANGE_CURSOR_SEQ + " FROM (" + consumed + ") AS m WHERE m."
+            + ROW_CHANGE_CURSOR_TABLE_ID + "=" + ROW_CHANGE_JOURNAL_TABLE_NAME + "."
+            + ROW_CHANGE_TABLE_ID + ")");
+        count += changes(db);
+      }
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+    return count;
+  }
+
+  /**
+   * Return the SQLite column affinity for a ColumnDefinition elementType.
+   * Everything other than integer, number and boolean (string, date, the JSON
+   * of arrays and objects, etc.) is TEXT.
+   *
+   * @param elementType
+   * @return
+   */
+  public static String getColumnAffinity(String elementType) {
+    if ("integer".equals(elementType) || "boolean".equals(elementType)) {
+      return "INTEGER";
+    } else if ("number".equals(elementType)) {
+      return "REAL";
+    }
+    return "TEXT";
+  }
+
+  /**
+   * Get the create sql for a data table. The metadata columns come first,
+   * followed by the unit-of-retention columns of the ColumnDefinition tree,
+   * typed according to their elementType.
+   *
+   * @param dbTableName
+   * @param defns
+   *          -- from getColumnDefinitions()
+   * @return
+   */
+  public static String getDataTableCreateSql(String dbTableName, Map<String, ColumnDefinition> defns) {
+    //@formatter:off
+    StringBuilder b = new StringBuilder();
+    b.append("CREATE TABLE IF NOT EXISTS ").append(quoteDbTableName(dbTableName)).append(" (")
+     .append(DataTableColumns.ID).append(" TEXT NOT NULL, ")
+     .append(DataTableColumns.ROW_ETAG).append(" TEXT NULL, ")
+     .append(DataTableColumns.SYNC_STATE).append(" TEXT NOT NULL, ")
+     .append(DataTableColumns.CONFLICT_TYPE).append(" INTEGER NULL, ")
+     .append(DataTableColumns.SAVEPOINT_TIMESTAMP).append(" TEXT NOT NULL, ")
+     .append(DataTableColumns.SAVEPOINT_CREATOR).append(" TEXT NULL, ")
+     .append(DataTableColumns.SAVEPOINT_TYPE).append(" TEXT NULL, ")
+     .append(DataTableColumns.FORM_ID).append(" TEXT NULL, ")
+     .append(DataTableColumns.LOCALE).append(" TEXT NULL");
+    //@formatter:on
+    if (defns != null) {
+      for (ColumnDefinition cd : new TreeMap<String, ColumnDefinition>(defns).values()) {
+        if (cd.isUnitOfRetention) {
+          b.append(", \"").append(cd.elementKey).append("\" ")
+              .append(getColumnAffinity(cd.elementType)).append(" NULL");
+        }
+      }
+    }
+    b.append(")");
+    return b.toString();
+  }
+
+  /**
+   * Create the data table of the tableId, with the typed columns of
+   * getDataTableCreateSql(), if it does not already exist, along with its
+   * journal triggers and indexes. The tableId must already have its _table_definitions
+   * and _column_definitions rows. Apps that create their data tables
+   * themselves must follow the same types.
+   *
+   * @param db
+   *          -- a writable database
+   * @param tableId
+   * @throws JsonParseException
+   * @throws JsonMappingException
+   * @throws IOException
+   */
+  public static void createDataTable(SQLiteDatabase db, String tableId)
+      throws JsonParseException, JsonMappingException, IOException {
+    String dbTableName = getDbTableName(db, tableId);
+    if (dbTableName == null) {
+      throw new IllegalArgumentException("Unknown tableId " + tableId);
+    }
+    Map<String, ColumnDefinition> defns = getColumnDefinitions(db, tableId);
+    db.beginTransaction();
+    try {
+      db.execSQL(getDataTableCreateSql(dbTableName, defns));
+      createRowChangeJournalTriggers(db, tableId, dbTableName);
+      createDataTableIndexes(db, dbTableName);
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+  }
+
+  /**
+   * Rewrite, on the background worker, the data tables listed in
+   * TYPED_COLUMNS_PENDING_TABLE_NAME (if not already scheduled).
+   */
+  public void scheduleTypedColumnsMigration() {
+    if (!typedColumnsMigrationScheduled.compareAndSet(false, true)) {
+      return;
+    }
+    deletedTableWorker.execute(new Runnable() {
+      @Override
+      public void run() {
+        typedColumnsMigrationScheduled.set(false);
+        acquire();
+        try {
+          migratePendingDataTablesToTypedColumns(getWritableDatabase());
+        } catch (Exception e) {
+          Log.e(t, "Unable to migrate data tables to typed columns: " + e.toString());
+        } finally {
+          release();
+        }
+      }
+    });
+  }
+
+  /**
+   * Rewrite the data tables listed in TYPED_COLUMNS_PENDING_TABLE_NAME, each
+   * in its own transaction, removing them from the list as they are done. A
+   * table that cannot be rewritten is logged and dropped from the list; it
+   * keeps working with its original column types.
+   *
+   * @param db
+   * @return the number of tables rewritten.
+   */
+  static int migratePendingDataTablesToTypedColumns(SQLiteDatabase db) {
+    List<String> tableIds = new ArrayList<String>();
+    Cursor c = null;
+    try {
+      c = db.query(TYPED_COLUMNS_PENDING_TABLE_NAME,
+          new String[] { TYPED_COLUMNS_PENDING_TABLE_ID }, null, null, null, null, null);
+      while (c.moveToNext()) {
+        tableIds.add(c.getString(0));
+      }
+    } finally {
+      if (c != null && !c.isClosed()) {
+        c.close();
+      }
+    }
+    int count = 0;
+    for (String tableId : tableIds) {
+      db.beginTransaction();
+      try {
+        try {
+          String dbTableName = getDbTableName(db, tableId);
+          if (dbTableName != null && tableExists(db, dbTableName)
+              && migrateDataTableToTypedColumns(db, tableId)) {
+            ++count;
+          }
+        } catch (Exception e) {
+          Log.e(t, "migratePendingDataTablesToTypedColumns: leaving " + tableId + " untyped: "
+              + e.toString());
+        }
+        db.delete(TYPED_COLUMNS_PENDING_TABLE_NAME, TYPED_COLUMNS_PENDING_TABLE_ID + "=?",
+            new String[] { tableId });
+        db.setTransactionSuccessful();
+      } finally {
+        db.endTransaction();
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Rewrite the data table in place so that its unit-of-retention columns have
+   * the affinity of their elementType. The table is recreated from its
+   * original CREATE TABLE statement with only those column types replaced, so
+   * every column and table constraint (PRIMARY KEY, UNIQUE, CHECK, COLLATE,
+   * etc., and with them the automatic indexes) is kept. Rows keep their rowids
+   * (so the full-text index stays valid) and the indexes and triggers of the
+   * table are recreated. Values are converted by SQLite's affinity rules,
+   * e.g., '12' becomes 12 in an INTEGER column while 'abc' is left as text.
+   *
+   * @param db
+   * @param tableId
+   * @return true if the table was rewritten, false if it was already typed.
+   */
+  public static boolean migrateDataTableToTypedColumns(SQLiteDatabase db, String tableId) {
+    String dbTableName = getDbTableName(db, tableId);
+    if (dbTableName == null) {
+      throw new IllegalArgumentException("Unknown tableId " + tableId);
+    }
+    if (isAttachedDataTable(dbTableName)) {
+      // only tables created after this migration can be moved to their own file
+      throw new IllegalArgumentException("Data table " + dbTableName + " is in an attached file");
+    }
+    Map<String, ColumnDefinition> defns;
+    try {
+      defns = getColumnDefinitions(db, tableId);
+    } catch (Exception e) {
+      throw new IllegalStateException("Unable to retrieve column definitions for tableId " + tableId, e);
+    }
+
+    // the table, and the indexes and triggers that are dropped with it
+    String createSql = null;
+    List<String> dependents = new ArrayList<String>();
+    Cursor c = null;
+    try {
+      c = db.rawQuery("SELECT type, sql FROM sqlite_master WHERE tbl_name=? AND sql IS NOT NULL"
+          + " AND type IN ('table','index','trigger') ORDER BY type", new String[] { dbTableName });
+      while (c.moveToNext()) {
+        if ("table".equals(c.getString(0))) {
+          createSql = c.getString(1);
+        } else {
+          dependents.add(c.getString(1));
+        }
+      }
+    } finally {
+      if (c != null && !c.isClosed()) {
+        c.close();
+      }
+    }
+    if (createSql == null) {
+      throw new IllegalStateException("No data table for tableId " + tableId);
+    }
+    Matcher m = CREATE_TABLE_PREFIX.matcher(createSql);
+    if (!m.find()) {
+      throw new IllegalStateException("Unable to parse the definition of " + dbTableName);
+    }
+
+    // rewrite the types of the column definitions; table constraints and
+    // everything after the closing parenthesis are kept as they are
+    String body = createSql.substring(m.end());
+    List<String> items = new ArrayList<String>();
+    int end = splitTableDefinition(body, items);
+    if (end == -1) {
+      throw new IllegalStateException("Unable to parse the definition of " + dbTableName);
+    }
+    List<String> columns = new ArrayList<String>();
+    boolean changed = false;
+    for (int i = 0; i < items.size(); ++i) {
+      String item = items.get(i);
+      int start = 0;
+      while (start < item.length() && Character.isWhitespace(item.charAt(start))) {
+        ++start;
+      }
+      if (isTableConstraint(item, start)) {
+        continue;
+      }
+      int nameEnd = skipName(item, start);
+      String name = unquoteName(item.substring(start, nameEnd));
+      columns.add("\"" + name + "\"");
+      ColumnDefinition cd = (defns == null) ? null : defns.get(name);
+      if (cd == null || !cd.isUnitOfRetention) {
+        continue;
+      }
+      int typeEnd = skipTypeName(item, nameEnd);
+      String affinity = getColumnAffinity(cd.elementType);
+      if (affinity.equalsIgnoreCase(item.substring(nameEnd, typeEnd).trim())) {
+        continue;
+      }
+      String rest = item.substring(typeEnd);
+      items.set(i, item.substring(0, nameEnd) + " " + affinity
+          + ((rest.length() == 0 || Character.isWhitespace(rest.charAt(0))) ? "" : " ") + rest);
+      changed = true;
+    }
+    if (!changed) {
+      return false;
+    }
+
+    String typedTableName = dbTableName + "__typed";
+    String columnList = StringUtils.join(columns, ",");
+    db.beginTransaction();
+    try {
+      db.execSQL("DROP TABLE IF EXISTS \"" + typedTableName + "\"");
+      db.execSQL("CREATE TABLE \"" + typedTableName + "\" (" + StringUtils.join(items, ",")
+          + body.substring(end));
+      db.execSQL("INSERT INTO \"" + typedTableName + "\" (rowid," + columnList + ") SELECT rowid,"
+          + columnList + " FROM \"" + dbTableName + "\"");
+      db.execSQL("DROP TABLE \"" + dbTableName + "\"");
+      db.execSQL("ALTER TABLE \"" + typedTableName + "\" RENAME TO \"" + dbTableName + "\"");
+      for (String sql : dependents) {
+        db.execSQL(sql);
+      }
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+    Log.i(t, "migrateDataTableToTypedColumns: rewrote " + dbTableName);
+    return true;
+  }
+
+  private static final String[] TABLE_CONSTRAINT_KEYWORDS = { "CONSTRAINT", "PRIMARY", "UNIQUE",
+      "CHECK", "FOREIGN" };
+  private static final String[] COLUMN_CONSTRAINT_KEYWORDS = { "CONSTRAINT", "PRIMARY", "NOT",
+      "NULL", "UNIQUE", "CHECK", "DEFAULT", "COLLATE", "REFERENCES", "GENERATED", "AS" };
+
+  /**
+   * Split the column definitions and table constraints of a CREATE TABLE
+   * statement (the text after its opening parenthesis) at the top-level
+   * commas.
+   *
+   * @param body
+   * @param items
+   *          -- receives the definitions, untrimmed
+   * @return the index of the closing parenthesis, or -1 if there is none.
+   */
+  private static int splitTableDefinition(String body, List<String> items) {
+    int depth = 0;
+    int itemStart = 0;
+    for (int i = 0; i < body.length(); ++i) {
+      char ch = body.charAt(i);
+      if (ch == '"' || ch == '\'' || ch == '`' || ch == '[') {
+        char close = (ch == '[') ? ']' : ch;
+        int j = body.indexOf(close, i + 1);
+        if (j == -1) {
+          return -1;
+        }
+        i = j;
+      } else if (ch == '(') {
+        ++depth;
+      } else if (ch == ')') {
+        if (depth == 0) {
+          items.add(body.substring(itemStart, i));
+          return i;
+        }
+        --depth;
+      } else if (ch == ',' && depth == 0) {
+        items.add(body.substring(itemStart, i));
+        itemStart = i + 1;
+      }
+    }
+    return -1;
+  }
+
+  private static boolean startsWithKeyword(String s, int pos, String[] keywords) {
+    for (String keyword : keywords) {
+      int end = pos + keyword.length();
+      if (s.regionMatches(true, pos, keyword, 0, keyword.length())
+          && (end == s.length() || !isIdentifierChar(s.charAt(end)))) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static boolean isTableConstraint(String item, int pos) {
+    return startsWithKeyword(item, pos, TABLE_CONSTRAINT_KEYWORDS);
+  }
+
+  private static boolean isIdentifierChar(char ch) {
+    return Character.isLetterOrDigit(ch) || ch == '_' || ch == '$';
+  }
+
+  /**
+   * @return the index just past the (possibly quoted) name starting at pos.
+   */
+  private static int skipName(String s, int pos) {
+    char ch = s.charAt(pos);
+    if (ch == '"' || ch == '`' || ch == '[') {
+      char close = (ch == '[') ? ']' : ch;
+      int i = pos + 1;
+      for (;;) {
+        i = s.indexOf(close, i);
+        if (i == -1) {
+          return s.length();
+        }
+        if (close != ']' && i + 1 < s.length() && s.charAt(i + 1) == close) {
+          // doubled quote
+          i += 2;
+          continue;
+        }
+        return i + 1;
+      }
+    }
+    int i = pos;
+    while (i < s.length() && isIdentifierChar(s.charAt(i))) {
+      ++i;
+    }
+    return i;
+  }
+
+  private static String unquoteName(String name) {
+    if (name.length() >= 2) {
+      char ch = name.charAt(0);
+      if (ch == '"' || ch == '`') {
+        return name.substring(1, name.length() - 1).replace("" + ch + ch, "" + ch);
+      } else if (ch == '[') {
+        return name.substring(1, name.length() - 1);
+      }
+    }
+    return name;
+  }
+
+  /**
+   * @return the index just past the type name (if any) of a column definition
+   *         whose name ends at pos: identifiers and an optional parenthesized
+   *         size, up to the first column constraint.
+   */
+  private static int skipTypeName(String s, int pos) {
+    int end = pos;
+    int i = pos;
+    for (;;) {
+      while (i < s.length() && Character.isWhitespace(s.charAt(i))) {
+        ++i;
+      }
+      if (i == s.length()) {
+        return end;
+      }
+      char ch = s.charAt(i);
+      if (ch == '(') {
+        int close = s.indexOf(')', i);
+        return (close == -1) ? s.length() : close + 1;
+      }
+      if (!isIdentifierChar(ch) || startsWithKeyword(s, i, COLUMN_CONSTRAINT_KEYWORDS)) {
+        return end;
+      }
+      while (i < s.length() && isIdentifierChar(s.charAt(i))) {
+        ++i;
+      }
+      end = i;
+    }
+  }
+
+  /**
+   * Delete the table (and its data) of the formId, then reclaim its rows in
+   * the background.
+   *
+   * @param formId
+   */
+  public void deleteTableAndData(String formId) {
+    deleteTableAndData(getWritableDatabase(), formId);
+    scheduleDeletedTableCleanup();
+  }
+
+  /**
+   * Phase 1 of deleting the table of a formId. In one short transaction, the
+   * data table (and its full-text index) is renamed out of the way and
+   * recorded in _deleted_tables, and the metadata of the table is removed.
+   * The rows of the renamed table are reclaimed in chunks by
+   * reclaimDeletedTables(), which runs in the background after this call
+   * through the helper, or when the database is next opened.
+   * <p>
+   * A data table that lives in its own file is not renamed; its file is
+   * detached and deleted after the commit (or, if that is not possible
+   * because of an enclosing transaction, when the database is next opened).
+   * </p>
+   *
+   * @param db
+   * @param formId
+   */
+  public static void deleteTableAndData(SQLiteDatabase db, String formId) {
+    String attachedSchemaName = null;
+    try {
+      IdInstanceNameStruct ids = getIds(db, formId);
+
+      String whereClause = TableDefinitionsColumns.TABLE_ID + " = ?";
+      String[] whereArgs = { ids.tableId };
+
+      String dbTableName = getDbTableName(db, ids.tableId);
+      if (dbTableName == null) {
+        dbTableName = ids.tableId;
+      }
+      String deletedTableName = DELETED_TABLE_PREFIX + dbTableName + "_"
+          + System.currentTimeMillis();
+
+      db.beginTransaction();
+
+      // Move the table used for the formId (and its full-text index, if any)
+      // into the deleted tables. Its triggers are dropped so that they do not
+      // follow the rename and fire during the chunked deletes. Its indexes are
+      // dropped too: they keep their names across the rename, so a table
+      // recreated under dbTableName would otherwise not get its own.
+      dropTableTriggers(db, dbTableName);
+      if (isAttachedDataTable(dbTableName)) {
+        attachedSchemaName = getSchemaName(dbTableName);
+      } else if (tableExists(db, dbTableName)) {
+        dropTableIndexes(db, dbTableName);
+        db.execSQL("ALTER TABLE \"" + dbTableName + "\" RENAME TO \"" + deletedTableName + "\"");
+        ContentValues v = new ContentValues();
+        v.put(DELETED_TABLES_NAME, deletedTableName);
+        v.put(DELETED_TABLES_ROWS_RECLAIMED, 0);
+        db.insertOrThrow(DELETED_TABLES_TABLE_NAME, null, v);
+      }
+      if (tableExists(db, getFullTextIndexTableName(dbTableName))) {
+        db.execSQL("ALTER TABLE \"" + getFullTextIndexTableName(dbTableName) + "\" RENAME TO \""
+            + getFullTextIndexTableName(deletedTableName) + "\"");
+      }
+
+      // Delete the table definition for the tableId
+      int count = db.delete(TABLE_DEFS_TABLE_NAME, whereClause, whereArgs);
+
+      // Delete the column definitions for this tableId
+      db.delete(COLUMN_DEFINITIONS_TABLE_NAME, whereClause, whereArgs);
+      db.delete(DATA_MODEL_CACHE_TABLE_NAME, DATA_MODEL_CACHE_TABLE_ID + "=?", whereArgs);
+
+      // Forget the journal cursors; compaction discards the entries
+      db.delete(ROW_CHANGE_CURSORS_TABLE_NAME, ROW_CHANGE_CURSOR_TABLE_ID + "=?", whereArgs);
+
+      // Delete the uploads for the tableId
+      String uploadWhereClause = InstanceColumns.DATA_TABLE_TABLE_ID + " = ?";
+      db.delete(UPLOADS_TABLE_NAME, uploadWhereClause, whereArgs);
+
+      // Delete the values from the 4 key value stores
+      db.delete(KEY_VALUE_STORE_DEFAULT_TABLE_NAME, whereClause, whereArgs);
+      db.delete(KEY_VALUE_STORE_ACTIVE_TABLE_NAME, whereClause, whereArgs);
+      db.delete(KEY_VALUE_STORE_SERVER_TABLE_NAME, whereClause, whereArgs);
+      db.delete(KEY_VALULE_STORE_SYNC_TABLE_NAME, whereClause, whereArgs);
+
+      db.setTransactionSuccessful();
+
+    } catch (Exception ex) {
+      attachedSchemaName = null;
+      Log.e(t, "Exception during deletion of data for formId:" + formId + " exception: " + ex.toString());
+    } finally {
+      db.endTransaction();
+    }
+
+    if (attachedSchemaName != null && !db.inTransaction()) {
+      try {
+        detachAndDelete(db, attachedSchemaName);
+      } catch (Exception ex) {
+        Log.w(t, "Unable to detach " + attachedSchemaName + " (deleted when next opened): "
+            + ex.toString());
+      }
+    }
+  }
+
+  private static void dropTableTriggers(SQLiteDatabase db, String tableName) {
+    List<String> triggers = new ArrayList<String>();
+    String schema = "\"" + getSchemaName(tableName) + "\".";
+    Cursor c = null;
+    try {
+      if (tableExists(db, tableName)) {
+        c = db.rawQuery("SELECT name FROM " + schema + "sqlite_master WHERE type='trigger' AND tbl_name=?",
+            new String[] { getUnqualifiedTableName(tableName) });
+        while (c.moveToNext()) {
+          triggers.add(c.getString(0));
+        }
+      }
+    } finally {
+      if (c != null && !c.isClosed()) {
+        c.close();
+      }
+    }
+    for (String trigger : triggers) {
+      db.execSQL("DROP TRIGGER IF EXISTS " + schema + "\"" + trigger + "\"");
+    }
+  }
+
+  // the explicitly created indexes of a table in the main schema
+  private static void dropTableIndexes(SQLiteDatabase db, String tableName) {
+    List<String> indexes = new ArrayList<String>();
+    Cursor c = null;
+    try {
+      c = db.rawQuery("SELECT name FROM sqlite_master WHERE type='index' AND tbl_name=?"
+          + " AND sql IS NOT NULL", new String[] { tableName });
+      while (c.moveToNext()) {
+        indexes.add(c.getString(0));
+      }
+    } finally {
+      if (c != null && !c.isClosed()) {
+        c.close();
+      }
+    }
+    for (String index : indexes) {
+      db.execSQL("DROP INDEX IF EXISTS \"" + index + "\"");
+    }
+  }
+
+  private static boolean tableExists(SQLiteDatabase db, String tableName) {
+    if (isAttachedDataTable(tableName) && !getAttachedSchemas(db).contains(getSchemaName(tableName))) {
+      return false;
+    }
+    Cursor c = null;
+    try {
+      c = db.rawQuery("SELECT count(*) FROM \"" + getSchemaName(tableName)
+          + "\".sqlite_master WHERE type='table' AND name=?",
+          new String[] { getUnqualifiedTableName(tableName) });
+      return c.moveToFirst() && c.getInt(0) != 0;
+    } finally {
+      if (c != null && !c.isClosed()) {
+        c.close();
+      }
+    }
+  }
+
+  /**
+   * Reclaim the deleted tables, then compact the row change journal, on the
+   * background worker (if not already scheduled).
+   */
+  public void scheduleDeletedTableCleanup() {
+    if (!deletedTableCleanupScheduled.compareAndSet(false, true)) {
+      return;
+    }
+    deletedTableWorker.execute(new Runnable() {
+      @Override
+      public void run() {
+        deletedTableCleanupScheduled.set(false);
+        acquire();
+        try {
+          try {
+            reclaimDeletedTables(getWritableDatabase(), DELETED_TABLE_CHUNK_SIZE);
+          } catch (Exception e) {
+            Log.e(t, "Unable to reclaim deleted tables: " + e.toString());
+          }
+          try {
+            compactRowChangeJournal(getWritableDatabase());
+          } catch (Exception e) {
+            Log.e(t, "Unable to compact the row change journal: " + e.toString());
+          }
+        } finally {
+          release();
+        }
+      }
+    });
+  }
+
+  /**
+   * Phase 2 of deleteTableAndData(). Delete the rows of each deleted table
+   * (and of its full-text index) chunkSize rows per transaction, so that other
+   * writers are never blocked for long, then drop the emptied tables. Progress
+   * is recorded in _deleted_tables, so an interrupted cleanup resumes where it
+   * left off.
+   *
+   * @param db
+   * @param chunkSize
+   * @return the number of rows reclaimed
+   */
+  public static long reclaimDeletedTables(SQLiteDatabase db, int chunkSize) {
+    List<String> names = new ArrayList<String>();
+    Cursor c = null;
+    try {
+      c = db.query(DELETED_TABLES_TABLE_NAME, new String[] { DELETED_TABLES_NAME }, null, null,
+          null, null, null);
+      while (c.moveToNext()) {
+        names.add(c.getString(0));
+      }
+    } finally {
+      if (c != null && !c.isClosed()) {
+        c.close();
+      }
+    }
+
+    long total = 0L;
+    for (String name : names) {
+      String ftsName = getFullTextIndexTableName(name);
+      if (tableExists(db, ftsName)) {
+        total += deleteInChunks(db, name, ftsName, "docid", chunkSize);
+      }
+      if (tableExists(db, name)) {
+        total += deleteInChunks(db, name, name, "rowid", chunkSize);
+      }
+      db.beginTransaction();
+      try {
+        db.execSQL("DROP TABLE IF EXISTS \"" + ftsName + "\"");
+        db.execSQL("DROP TABLE IF EXISTS \"" + name + "\"");
+        db.delete(DELETED_TABLES_TABLE_NAME, DELETED_TABLES_NAME + "=?", new String[] { name });
+        db.setTransactionSuccessful();
+      } finally {
+        db.endTransaction();
+      }
+      Log.i(t, "reclaimDeletedTables: dropped " + name);
+    }
+    if (!names.isEmpty()) {
+      // return the freed pages to the filesystem (a no-op unless
+      // auto_vacuum=incremental)
+      try {
+        c = db.rawQuery("PRAGMA incremental_vacuum", null);
+        c.getCount();
+      } finally {
+        if (c != null && !c.isClosed()) {
+          c.close();
+        }
+      }
+    }
+    return total;
+  }
+
+  private static long deleteInChunks(SQLiteDatabase db, String deletedTableName, String tableName,
+      String keyColumn, int chunkSize) {
+    long total = 0L;
+    for (;;) {
+      int count;
+      db.beginTransaction();
+      try {
+        count = db.delete("\"" + tableName + "\"", keyColumn + " IN (SELECT " + keyColumn
+            + " FROM \"" + tableName + "\" LIMIT " + chunkSize + ")", null);
+        if (count != 0) {
+          db.execSQL("UPDATE " + DELETED_TABLES_TABLE_NAME + " SET "
+              + DELETED_TABLES_ROWS_RECLAIMED + "=" + DELETED_TABLES_ROWS_RECLAIMED + "+? WHERE "
+              + DELETED_TABLES_NAME + "=?", new Object[] { count, deletedTableName });
+        }
+        db.setTransactionSuccessful();
+      } finally {
+        db.endTransaction();
+      }
+      total += count;
+      if (count < chunkSize) {
+        break;
+      }
+      Log.i(t, "reclaimDeletedTables: " + deletedTableName + " -- " + total + " rows of "
+          + tableName + " reclaimed");
+    }
+    return total;
+  }
+
+  /**
+   * Accessor to retrieve the database table name given the tableId
+   *
+   * @param db
+   * @param tableId
+   * @return
+   */
+  public static String getDbTableName(SQLiteDatabase db, String tableId) {
+    Cursor c = null;
+    try {
+      c = db.query(TABLE_DEFS_TABLE_NAME, new String[] { TableDefinitionsColumns.DB_TABLE_NAME },
+          TableDefinitionsColumns.TABLE_ID + "=?", new String[] { tableId }, null, null, null);
+
+      if (c.moveToFirst()) {
+        int idx = c.getColumnIndex(TableDefinitionsColumns.DB_TABLE_NAME);
+        return c.getString(idx);
+      }
+    } finally {
+      if (c != null && !c.isClosed()) {
+        c.close();
+      }
+    }
+    return null;
+  }
+
+  /**
+   * @param dbTableName
+   *          -- as stored in _table_definitions
+   * @return true if the data table lives in its own database file, ATTACHed
+   *         to the connection (see moveDataTableToAttachedFile()).
+   */
+  public static boolean isAttachedDataTable(String dbTableName) {
+    return dbTableName.indexOf('.') != -1;
+  }
+
+  /**
+   * @param dbTableName
+   * @return the schema of the data table: "main", or the attached schema.
+   */
+  public static String getSchemaName(String dbTableName) {
+    int idx = dbTableName.indexOf('.');
+    return (idx == -1) ? "main" : dbTableName.substring(0, idx);
+  }
+
+  /**
+   * @param dbTableName
+   * @return the name of the data table within its schema.
+   */
+  public static String getUnqualifiedTableName(String dbTableName) {
+    int idx = dbTableName.indexOf('.');
+    return (idx == -1) ? dbTableName : dbTableName.substring(idx + 1);
+  }
+
+  /**
+   * Quote the table name for use in FROM, INSERT INTO, UPDATE, etc. Use
+   * getUnqualifiedTableName() for column qualifiers and aliases.
+   *
+   * @param dbTableName
+   * @return "schema"."table" for an attached data table, otherwise "table".
+   */
+  public static String quoteDbTableName(String dbTableName) {
+    int idx = dbTableName.indexOf('.');
+    if (idx == -1) {
+      return "\"" + dbTableName + "\"";
+    }
+    return "\"" + dbTableName.substring(0, idx) + "\".\"" + dbTableName.substring(idx + 1) + "\"";
+  }
+
+  /**
+   * @param dbTableName
+   * @return the PRAGMA table_info statement for the data table.
+   */
+  public static String getTableInfoSql(String dbTableName) {
+    return "PRAGMA \"" + getSchemaName(dbTableName) + "\".table_info(\""
+        + getUnqualifiedTableName(dbTableName) + "\")";
+  }
+
+  /**
+   * @param db
+   * @param schemaName
+   * @return the database file of the attached schema; it sits next to the
+   *         main database file.
+   */
+  public static File getAttachedFile(SQLiteDatabase db, String schemaName) {
+    return new File(new File(db.getPath()).getParentFile(), schemaName + ATTACHED_FILE_SUFFIX);
+  }
+
+  private static Set<String> getAttachedSchemas(SQLiteDatabase db) {
+    Set<String> schemas = new HashSet<String>();
+    Cursor c = null;
+    try {
+      c = db.rawQuery("PRAGMA database_list", null);
+      int idxName = c.getColumnIndex("name");
+      while (c.moveToNext()) {
+        schemas.add(c.getString(idxName));
+      }
+    } finally {
+      if (c != null && !c.isClosed()) {
+        c.close();
+      }
+    }
+    return schemas;
+  }
+
+  private static void attach(SQLiteDatabase db, String schemaName) {
+    db.execSQL("ATTACH DATABASE ? AS \"" + schemaName + "\"", new Object[] { getAttachedFile(db,
+        schemaName).getAbsolutePath() });
+  }
+
+  private static void detachAndDelete(SQLiteDatabase db, String schemaName) {
+    File file = getAttachedFile(db, schemaName);
+    if (getAttachedSchemas(db).contains(schemaName)) {
+      db.execSQL("DETACH DATABASE \"" + schemaName + "\"");
+    }
+    if (!file.delete() && file.exists()) {
+      Log.w(t, "Unable to delete " + file.getAbsolutePath());
+    }
+    new File(file.getAbsolutePath() + "-journal").delete();
+  }
+
+  /**
+   * ATTACH the database files of the data tables that live in their own file
+   * and, on a writable connection, make sure each holds its row change
+   * journal and triggers (older files relied on TEMP triggers into the main
+   * journal) and delete the files of tables deleted while the file could not
+   * be detached. Called when this helper opens the database; other
+   * connections to the same database must call it before touching those
+   * tables.
+   * <p>
+   * Android disables write-ahead logging on a database once anything is
+   * ATTACHed to it, so queries are not run concurrently while any data table
+   * lives in its own file.
+   * </p>
+   *
+   * @param db
+   */
+  public static void attachDataTableFiles(SQLiteDatabase db) {
+    Map<String, String> attachedTables = new HashMap<String, String>();
+    Cursor c = null;
+    try {
+      c = db.query(TABLE_DEFS_TABLE_NAME, new String[] { TableDefinitionsColumns.TABLE_ID,
+          TableDefinitionsColumns.DB_TABLE_NAME }, TableDefinitionsColumns.DB_TABLE_NAME
+          + " LIKE '%.%'", null, null, null, null);
+      while (c.moveToNext()) {
+        attachedTables.put(c.getString(0), c.getString(1));
+      }
+    } finally {
+      if (c != null && !c.isClosed()) {
+        c.close();
+      }
+    }
+
+    Set<String> schemas = getAttachedSchemas(db);
+    Set<String> referenced = new HashSet<String>();
+    for (Map.Entry<String, String> e : attachedTables.entrySet()) {
+      String schemaName = getSchemaName(e.getValue());
+      referenced.add(schemaName);
+      if (!schemas.contains(schemaName)) {
+        attach(db, schemaName);
+      }
+      if (!db.isReadOnly()) {
+        createRowChangeJournalTriggers(db, e.getKey(), e.getValue());
+      }
+    }
+
+    if (!db.isReadOnly()) {
+      File[] files = new File(db.getPath()).getParentFile().listFiles();
+      if (files != null) {
+        for (File f : files) {
+          String name = f.getName();
+          if (name.startsWith(ATTACHED_SCHEMA_PREFIX) && name.endsWith(ATTACHED_FILE_SUFFIX)) {
+            String schemaName = name.substring(0, name.length() - ATTACHED_FILE_SUFFIX.length());
+            if (!referenced.contains(schemaName)) {
+              Log.i(t, "attachDataTableFiles: deleting orphaned " + f.getAbsolutePath());
+              detachAndDelete(db, schemaName);
+            }
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Allow data tables to be moved into their own database files (see
+   * {@link #moveDataTableToAttachedFile(String)}).
+   * <p>
+   * NOT compatible with ODK Survey: Survey reads the data tables through
+   * WebKit's WebSQL connection, which never ATTACHes those files, so a moved
+   * table (whose _table_definitions entry becomes "schema.table") can no
+   * longer be found there. Only enable this for apps whose data tables are
+   * never opened through WebSQL.
+   * </p>
+   * <p>
+   * Enabling this turns off write-ahead logging, which cannot be used on a
+   * connection with attached databases.
+   * </p>
+   *
+   * @param enabled
+   */
+  public void setPerTableFilesEnabled(boolean enabled) {
+    perTableFilesEnabled = enabled;
+    if (enabled) {
+      setWriteAheadLoggingEnabled(false);
+    }
+  }
+
+  public boolean isPerTableFilesEnabled() {
+    return perTableFilesEnabled;
+  }
+
+  /**
+   * Write-ahead logging stays off while per-table files are enabled.
+   */
+  @Override
+  public synchronized void setWriteAheadLoggingEnabled(boolean enabled) {
+    if (enabled && perTableFilesEnabled) {
+      Log.w(t, "Write-ahead logging cannot be used with per-table files");
+      return;
+    }
+    super.setWriteAheadLoggingEnabled(enabled);
+  }
+
+  /**
+   * Move the data table into its own database file. Only allowed once
+   * {@link #setPerTableFilesEnabled(boolean)} has been called -- read its
+   * warning about ODK Survey first.
+   *
+   * @param tableId
+   * @return false if the table already lives in its own file.
+   * @throws IllegalStateException
+   *           if per-table files are not enabled, or write-ahead logging
+   *           could not be turned off yet (the database was in use).
+   * @see #moveDataTableToAttachedFile(SQLiteDatabase, String)
+   */
+  public boolean moveDataTableToAttachedFile(String tableId) {
+    if (!perTableFilesEnabled) {
+      throw new IllegalStateException("Per-table files are not enabled for " + tableId
+          + "; see setPerTableFilesEnabled()");
+    }
+    acquire();
+    try {
+      setWriteAheadLoggingEnabled(false);
+      return moveDataTableToAttachedFile(getWritableDatabase(), tableId);
+    } finally {
+      release();
+    }
+  }
+
+  private static boolean isWriteAheadLogging(SQLiteDatabase db) {
+    Cursor c = null;
+    try {
+      c = db.rawQuery("PRAGMA journal_mode", null);
+      return c.moveToFirst() && "wal".equalsIgnoreCase(c.getString(0));
+    } finally {
+      if (c != null && !c.isClosed()) {
+        c.close();
+      }
+    }
+  }
+
+  /**
+   * Move the data table into its own database file, ATTACHed to the
+   * connection as ATTACHED_SCHEMA_PREFIX + tableId, so that bulk writes to it
+   * lock that file rather than the main database file. Rows keep their
+   * rowids; the indexes of the table are recreated in the new file, and its
+   * journal entries and triggers move there too (see
+   * createRowChangeJournalTriggers()), so journal consumers are not
+   * disturbed. _table_definitions then
+   * holds the schema-qualified name ("schema.table") -- quote it with
+   * quoteDbTableName().
+   * <p>
+   * Must not be called within a transaction (ATTACH is not allowed there) or
+   * while the database is in write-ahead logging mode (ATTACH would turn it
+   * off underneath the connection pool). Tables with a full-text index cannot
+   * be moved: the index and its triggers would span two files.
+   * </p>
+   *
+   * @param db
+   * @param tableId
+   * @return false if the table already lives in its own file.
+   */
+  static boolean moveDataTableToAttachedFile(SQLiteDatabase db, String tableId) {
+    String dbTableName = getDbTableName(db, tableId);
+    if (dbTableName == null) {
+      throw new IllegalArgumentException("Unknown tableId " + tableId);
+    }
+    if (isAttachedDataTable(dbTableName)) {
+      return false;
+    }
+    if (isWriteAheadLogging(db)) {
+      throw new IllegalStateException("Turn off write-ahead logging before moving " + tableId
+          + " to its own file");
+    }
+    if (getFullTextIndexColumns(db, dbTableName) != null) {
+      throw new IllegalStateException("Drop the full-text index of " + tableId
+          + " before moving it to its own file");
+    }
+
+    // pick an unused schema name (tableIds may differ only in the characters
+    // that are not allowed here)
+    Set<String> schemas = getAttachedSchemas(db);
+    String base = ATTACHED_SCHEMA_PREFIX + tableId.replaceAll("[^A-Za-z0-9_]", "_");
+    String schemaName = base;
+    for (int i = 2; schemas.contains(schemaName) || getAttachedFile(db, schemaName).exists(); ++i) {
+      schemaName = base + "_" + i;
+    }
+    String attachedTableName = schemaName + "." + dbTableName;
+
+    List<String> columns = new ArrayList<String>();
+    List<String> indexes = new ArrayList<String>();
+    String createSql = null;
+    Cursor c = null;
+    try {
+      c = db.rawQuery(getTableInfoSql(dbTableName), null);
+      int idxName = c.getColumnIndex("name");
+      while (c.moveToNext()) {
+        columns.add("\"" + c.getString(idxName) + "\"");
+      }
+      c.close();
+
+      c = db.rawQuery("SELECT type, sql FROM sqlite_master WHERE tbl_name=? AND sql IS NOT NULL",
+          new String[] { dbTableName });
+      while (c.moveToNext()) {
+        String type = c.getString(0);
+        if ("table".equals(type)) {
+          createSql = c.getString(1);
+        } else if ("index".equals(type)) {
+          indexes.add(c.getString(1));
+        } else if (!c.getString(1).contains("_rcj_")) {
+          // triggers in the attached file cannot reach the main tables
+          Log.w(t, "moveDataTableToAttachedFile: dropping " + type + " of " + dbTableName + ": "
+              + c.getString(1));
+        }
+      }
+    } finally {
+      if (c != null && !c.isClosed()) {
+        c.close();
+      }
+    }
+    if (createSql == null) {
+      throw new IllegalStateException("No data table for tableId " + tableId);
+    }
+    Matcher m = CREATE_TABLE_PREFIX.matcher(createSql);
+    if (!m.find()) {
+      throw new IllegalStateException("Unable to parse the definition of " + dbTableName);
+    }
+    String schema = "\"" + schemaName + "\".";
+    createSql = "CREATE TABLE " + quoteDbTableName(attachedTableName) + " ("
+        + createSql.substring(m.end());
+
+    String columnList = StringUtils.join(columns, ",");
+    attach(db, schemaName);
+    boolean success = false;
+    db.beginTransaction();
+    try {
+      db.execSQL(createSql);
+      db.execSQL("INSERT INTO " + quoteDbTableName(attachedTableName) + " (rowid," + columnList
+          + ") SELECT rowid," + columnList + " FROM \"main\".\"" + dbTableName + "\"");
+      for (String sql : indexes) {
+        db.execSQL(CREATE_INDEX_PREFIX.matcher(sql).replaceFirst("$1" + Matcher.quoteReplacement(schema)));
+      }
+      db.execSQL("DROP TABLE \"main\".\"" + dbTableName + "\"");
+      ContentValues v = new ContentValues();
+      v.put(TableDefinitionsColumns.DB_TABLE_NAME, attachedTableName);
+      db.update(TABLE_DEFS_TABLE_NAME, v, TableDefinitionsColumns.TABLE_ID + "=?",
+          new String[] { tableId });
+      createRowChangeJournalTriggers(db, tableId, attachedTableName);
+      // in case the source table never had them
+      createDataTableIndexes(db, attachedTableName);
+      db.setTransactionSuccessful();
+      success = true;
+    } finally {
+      db.endTransaction();
+      if (!success) {
+        detachAndDelete(db, schemaName);
+      }
+    }
+    Log.i(t, "moveDataTableToAttachedFile: moved " + dbTableName + " to "
+        + getAttachedFile(db, schemaName).getAbsolutePath());
+    return true;
   }
 
-  @Override
-  public void onCreateAppVersion(SQLiteDatabase db) {
-    commonTableDefn(db);
+  public static String getFullTextIndexTableName(String dbTableName) {
+    return dbTableName + FULL_TEXT_INDEX_SUFFIX;
   }
 
-  @Override
-  public void onUpgradeAppVersion(SQLiteDatabase db, int oldVersion, int newVersion) {
-    // for now, upgrade and creation use the same codepath...
-    commonTableDefn(db);
+  /**
+   * Return the columns covered by the full-text index of the data table, or
+   * null if the table does not have a full-text index.
+   *
+   * @param db
+   * @param dbTableName
+   * @return
+   */
+  public static List<String> getFullTextIndexColumns(SQLiteDatabase db, String dbTableName) {
+    String ftsTableName = getFullTextIndexTableName(dbTableName);
+    Cursor c = null;
+    try {
+      c = db.rawQuery("SELECT count(*) FROM sqlite_master WHERE type='table' AND name=?",
+          new String[] { ftsTableName });
+      if (!c.moveToFirst() || c.getInt(0) == 0) {
+        return null;
+      }
+      c.close();
+
+      c = db.rawQuery("PRAGMA table_info(\"" + ftsTableName + "\")", null);
+      int idxName = c.getColumnIndex("name");
+      List<String> columns = new ArrayList<String>();
+      while (c.moveToNext()) {
+        columns.add(c.getString(idxName));
+      }
+      return columns;
+    } finally {
+      if (c != null && !c.isClosed()) {
+        c.close();
+      }
+    }
   }
 
-  public static void deleteTableAndData(SQLiteDatabase db, String formId) {
+  /**
+   * Create (or recreate) the FTS4 full-text index of a data table over the
+   * given columns, populate it from the existing rows, and install the
+   * triggers that keep it current. Typically the columns are the form's
+   * instanceName column plus any other text columns worth searching.
+   *
+   * @param db
+   * @param tableId
+   * @param elementKeys
+   *          -- unit-of-retention columns of the data table to index
+   */
+  public static void createFullTextIndex(SQLiteDatabase db, String tableId, List<String> elementKeys) {
+    if (elementKeys == null || elementKeys.isEmpty()) {
+      throw new IllegalArgumentException("No columns specified for the full-text index of " + tableId);
+    }
+    String dbTableName = getDbTableName(db, tableId);
+    if (dbTableName == null) {
+      throw new IllegalArgumentException("Unknown tableId " + tableId);
+    }
+    if (isAttachedDataTable(dbTableName)) {
+      throw new IllegalArgumentException("Full-text indexes are not supported on data table "
+          + dbTableName + " (in an attached file)");
+    }
+    Map<String, ColumnDefinition> defns;
     try {
-      IdInstanceNameStruct ids = getIds(db, formId);
+      defns = getColumnDefinitions(db, tableId);
+    } catch (Exception e) {
+      throw new IllegalStateException("Unable to retrieve column definitions for tableId " + tableId, e);
+    }
+    for (String elementKey : elementKeys) {
+      ColumnDefinition cd = (defns == null) ? null : defns.get(elementKey);
+      if (cd == null || !cd.isUnitOfRetention) {
+        throw new IllegalArgumentException("Not a column of " + tableId + ": " + elementKey);
+      }
+    }
 
-      String whereClause = TableDefinitionsColumns.TABLE_ID + " = ?";
-      String[] whereArgs = { ids.tableId };
+    String ftsTableName = getFullTextIndexTableName(dbTableName);
+    String columnList = "\"" + StringUtils.join(elementKeys, "\",\"") + "\"";
 
-      db.beginTransaction();
+    db.beginTransaction();
+    try {
+      dropFullTextIndexTriggers(db, dbTableName);
+      db.execSQL("DROP TABLE IF EXISTS \"" + ftsTableName + "\"");
+      db.execSQL("CREATE VIRTUAL TABLE \"" + ftsTableName + "\" USING fts4(" + columnList + ")");
+      db.execSQL("INSERT INTO \"" + ftsTableName + "\"(docid," + columnList + ") SELECT rowid,"
+          + columnList + " FROM \"" + dbTableName + "\"");
+      createFullTextIndexTriggers(db, dbTableName, elementKeys);
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+  }
+
+  /**
+   * Drop the full-text index (and its triggers) of a data table, if any.
+   *
+   * @param db
+   * @param tableId
+   */
+  public static void dropFullTextIndex(SQLiteDatabase db, String tableId) {
+    String dbTableName = getDbTableName(db, tableId);
+    if (dbTableName == null) {
+      return;
+    }
+    db.beginTransaction();
+    try {
+      dropFullTextIndexTriggers(db, dbTableName);
+      db.execSQL("DROP TABLE IF EXISTS \"" + getFullTextIndexTableName(dbTableName) + "\"");
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+  }
 
-      // Drop the table used for the formId
-      db.execSQL("DROP TABLE IF EXISTS " + ids.tableId + ";");
+  static void createFullTextIndexTriggers(SQLiteDatabase db, String dbTableName,
+      List<String> columns) {
+    String ftsTableName = getFullTextIndexTableName(dbTableName);
+    String columnList = "\"" + StringUtils.join(columns, "\",\"") + "\"";
+    StringBuilder newValues = new StringBuilder();
+    StringBuilder setValues = new StringBuilder();
+    for (String column : columns) {
+      if (newValues.length() != 0) {
+        newValues.append(",");
+        setValues.append(",");
+      }
+      newValues.append("new.\"").append(column).append("\"");
+      setValues.append("\"").append(column).append("\"=new.\"").append(column).append("\"");
+    }
 
-      // Delete the table definition for the tableId
-      int count = db.delete(TABLE_DEFS_TABLE_NAME, whereClause, whereArgs);
+    //@formatter:off
+    db.execSQL("CREATE TRIGGER IF NOT EXISTS \"" + ftsTableName + "_ai\" AFTER INSERT ON \""
+        + dbTableName + "\" BEGIN INSERT INTO \"" + ftsTableName + "\"(docid," + columnList
+        + ") VALUES (new.rowid," + newValues.toString() + "); END");
+    db.execSQL("CREATE TRIGGER IF NOT EXISTS \"" + ftsTableName + "_au\" AFTER UPDATE OF "
+        + columnList + " ON \"" + dbTableName + "\" BEGIN UPDATE \"" + ftsTableName + "\" SET "
+        + setValues.toString() + " WHERE docid=old.rowid; END");
+    db.execSQL("CREATE TRIGGER IF NOT EXISTS \"" + ftsTableName + "_ad\" AFTER DELETE ON \""
+        + dbTableName + "\" BEGIN DELETE FROM \"" + ftsTableName
+        + "\" WHERE docid=old.rowid; END");
+    //@formatter:on
+  }
 
-      // Delete the column definitions for this tableId
-      db.delete(COLUMN_DEFINITIONS_TABLE_NAME, whereClause, whereArgs);
+  static void dropFullTextIndexTriggers(SQLiteDatabase db, String dbTableName) {
+    String ftsTableName = getFullTextIndexTableName(dbTableName);
+    db.execSQL("DROP TRIGGER IF EXISTS \"" + ftsTableName + "_ai\"");
+    db.execSQL("DROP TRIGGER IF EXISTS \"" + ftsTableName + "_au\"");
+    db.execSQL("DROP TRIGGER IF EXISTS \"" + ftsTableName + "_ad\"");
+  }
 
-      // Delete the uploads for the tableId
-      String uploadWhereClause = InstanceColumns.DATA_TABLE_TABLE_ID + " = ?";
-      db.delete(UPLOADS_TABLE_NAME, uploadWhereClause, whereArgs);
+  /**
+   * Change counts from a key-value-store copy or merge.
+   */
+  public static final class KeyValueStoreChanges {
+    /** entries inserted or replaced in the destination */
+    public final int written;
+    /** entries deleted from the destination */
+    public final int deleted;
 
-      // Delete the values from the 4 key value stores
-      db.delete(KEY_VALUE_STORE_DEFAULT_TABLE_NAME, whereClause, whereArgs);
-      db.delete(KEY_VALUE_STORE_ACTIVE_TABLE_NAME, whereClause, whereArgs);
-      db.delete(KEY_VALUE_STORE_SERVER_TABLE_NAME, whereClause, whereArgs);
-      db.delete(KEY_VALULE_STORE_SYNC_TABLE_NAME, whereClause, whereArgs);
+    KeyValueStoreChanges(int written, int deleted) {
+      this.written = written;
+      this.deleted = deleted;
+    }
+  }
+
+  /**
+   * Differences between the entries of a tableId in two key-value stores.
+   * Each element is {partition, aspect, key}.
+   */
+  public static final class KeyValueStoreDiff {
+    /** entries only in the first store */
+    public final List<String[]> added = new ArrayList<String[]>();
+    /** entries only in the second store */
+    public final List<String[]> removed = new ArrayList<String[]>();
+    /** entries in both stores with a different type or value */
+    public final List<String[]> changed = new ArrayList<String[]>();
+  }
+
+  private static final String KVS_COLUMNS = KeyValueStoreColumns.TABLE_ID + ","
+      + KeyValueStoreColumns.PARTITION + "," + KeyValueStoreColumns.ASPECT + ","
+      + KeyValueStoreColumns.KEY + "," + KeyValueStoreColumns.VALUE_TYPE + ","
+      + KeyValueStoreColumns.VALUE;
+
+  private static String kvsKeyMatch(String lhs, String rhs) {
+    return lhs + "." + KeyValueStoreColumns.TABLE_ID + "=" + rhs + "." + KeyValueStoreColumns.TABLE_ID
+        + " AND " + lhs + "." + KeyValueStoreColumns.PARTITION + "=" + rhs + "."
+        + KeyValueStoreColumns.PARTITION + " AND " + lhs + "." + KeyValueStoreColumns.ASPECT + "="
+        + rhs + "." + KeyValueStoreColumns.ASPECT + " AND " + lhs + "." + KeyValueStoreColumns.KEY
+        + "=" + rhs + "." + KeyValueStoreColumns.KEY;
+  }
+
+  private static int changes(SQLiteDatabase db) {
+    Cursor c = null;
+    try {
+      c = db.rawQuery("SELECT changes()", null);
+      return c.moveToFirst() ? c.getInt(0) : 0;
+    } finally {
+      if (c != null && !c.isClosed()) {
+        c.close();
+      }
+    }
+  }
 
+  /**
+   * Insert or replace the entries of the tableId in the destination store that
+   * are missing or different from those in the source store.
+   */
+  private static int writeKeyValueStoreDifferences(SQLiteDatabase db, String fromKvsTableName,
+      String toKvsTableName, String tableId) {
+    db.execSQL("INSERT OR REPLACE INTO " + toKvsTableName + " (" + KVS_COLUMNS + ") SELECT "
+        + KVS_COLUMNS + " FROM " + fromKvsTableName + " WHERE " + KeyValueStoreColumns.TABLE_ID
+        + "=? EXCEPT SELECT " + KVS_COLUMNS + " FROM " + toKvsTableName + " WHERE "
+        + KeyValueStoreColumns.TABLE_ID + "=?", new String[] { tableId, tableId });
+    return changes(db);
+  }
+
+  /**
+   * Make the entries of the tableId in the destination key-value store
+   * identical to those in the source store. Unchanged entries are not
+   * rewritten.
+   *
+   * @param db
+   * @param fromKvsTableName
+   * @param toKvsTableName
+   * @param tableId
+   * @return
+   */
+  public static KeyValueStoreChanges copyKeyValueStoreEntries(SQLiteDatabase db,
+      String fromKvsTableName, String toKvsTableName, String tableId) {
+    db.beginTransaction();
+    try {
+      db.execSQL("DELETE FROM " + toKvsTableName + " WHERE " + KeyValueStoreColumns.TABLE_ID
+          + "=? AND NOT EXISTS (SELECT 1 FROM " + fromKvsTableName + " f WHERE "
+          + kvsKeyMatch("f", toKvsTableName) + ")", new String[] { tableId });
+      int deleted = changes(db);
+      int written = writeKeyValueStoreDifferences(db, fromKvsTableName, toKvsTableName, tableId);
       db.setTransactionSuccessful();
+      return new KeyValueStoreChanges(written, deleted);
+    } finally {
+      db.endTransaction();
+    }
+  }
 
-    } catch (Exception ex) {
-      Log.e(t, "Exception during deletion of data for formId:" + formId + " exception: " + ex.toString());
+  /**
+   * Copy the entries of the tableId from the source key-value store into the
+   * destination store, replacing entries with the same key. Entries only in
+   * the destination are kept.
+   *
+   * @param db
+   * @param fromKvsTableName
+   * @param toKvsTableName
+   * @param tableId
+   * @return
+   */
+  public static KeyValueStoreChanges mergeKeyValueStoreEntries(SQLiteDatabase db,
+      String fromKvsTableName, String toKvsTableName, String tableId) {
+    db.beginTransaction();
+    try {
+      int written = writeKeyValueStoreDifferences(db, fromKvsTableName, toKvsTableName, tableId);
+      db.setTransactionSuccessful();
+      return new KeyValueStoreChanges(written, 0);
     } finally {
       db.endTransaction();
     }
   }
 
   /**
-   * Accessor to retrieve the database table name given the tableId
+   * Compare the entries of the tableId in two key-value stores.
    *
    * @param db
+   * @param kvsTableName
+   * @param otherKvsTableName
    * @param tableId
    * @return
    */
-  public static String getDbTableName(SQLiteDatabase db, String tableId) {
+  public static KeyValueStoreDiff diffKeyValueStoreEntries(SQLiteDatabase db, String kvsTableName,
+      String otherKvsTableName, String tableId) {
+    String keyColumns = "a." + KeyValueStoreColumns.PARTITION + ",a." + KeyValueStoreColumns.ASPECT
+        + ",a." + KeyValueStoreColumns.KEY;
+    String[] args = { tableId };
+    KeyValueStoreDiff diff = new KeyValueStoreDiff();
+    //@formatter:off
+    readKeys(db, "SELECT " + keyColumns + " FROM " + kvsTableName + " a WHERE a."
+        + KeyValueStoreColumns.TABLE_ID + "=? AND NOT EXISTS (SELECT 1 FROM " + otherKvsTableName
+        + " b WHERE " + kvsKeyMatch("a", "b") + ")", args, diff.added);
+    readKeys(db, "SELECT " + keyColumns + " FROM " + otherKvsTableName + " a WHERE a."
+        + KeyValueStoreColumns.TABLE_ID + "=? AND NOT EXISTS (SELECT 1 FROM " + kvsTableName
+        + " b WHERE " + kvsKeyMatch("a", "b") + ")", args, diff.removed);
+    readKeys(db, "SELECT " + keyColumns + " FROM " + kvsTableName + " a JOIN " + otherKvsTableName
+        + " b ON " + kvsKeyMatch("a", "b") + " WHERE a." + KeyValueStoreColumns.TABLE_ID
+        + "=? AND (a." + KeyValueStoreColumns.VALUE_TYPE + "<>b." + KeyValueStoreColumns.VALUE_TYPE
+        + " OR a." + KeyValueStoreColumns.VALUE + "<>b." + KeyValueStoreColumns.VALUE + ")",
+        args, diff.changed);
+    //@formatter:on
+    return diff;
+  }
+
+  private static void readKeys(SQLiteDatabase db, String sql, String[] args, List<String[]> keys) {
     Cursor c = null;
     try {
-      c = db.query(TABLE_DEFS_TABLE_NAME, new String[] { TableDefinitionsColumns.DB_TABLE_NAME },
-          TableDefinitionsColumns.TABLE_ID + "=?", new String[] { tableId }, null, null, null);
-
-      if (c.moveToFirst()) {
-        int idx = c.getColumnIndex(TableDefinitionsColumns.DB_TABLE_NAME);
-        return c.getString(idx);
+      c = db.rawQuery(sql, args);
+      while (c.moveToNext()) {
+        keys.add(new String[] { c.getString(0), c.getString(1), c.getString(2) });
       }
     } finally {
       if (c != null && !c.isClosed()) {
         c.close();
       }
     }
-    return null;
   }
 
   public static final class IdInstanceNameStruct {
@@ -328,8 +2545,26 @@ public class DataModelDatabaseHelper extends WebKitDatabaseInfoHelper {
     }
   }
 
+  private static final class CompiledDataModel {
+    final long changeCounter;
+    final Map<String, ColumnDefinition> defns;
+    final String dataModelJson;
+
+    CompiledDataModel(long changeCounter, Map<String, ColumnDefinition> defns,
+        String dataModelJson) {
+      this.changeCounter = changeCounter;
+      this.defns = defns;
+      this.dataModelJson = dataModelJson;
+    }
+  }
+
+  // map of (database id + '\0' + tableId) -> CompiledDataModel
+  private static final ConcurrentHashMap<String, CompiledDataModel> compiledDataModels = new ConcurrentHashMap<String, CompiledDataModel>();
+
   /**
-   * Return a map of (elementKey -> ColumnDefinition)
+   * Return a map of (elementKey -> ColumnDefinition). The definitions are
+   * compiled once per change of _column_definitions; each call returns a
+   * fresh copy of them, which the caller may modify.
    *
    * @param db
    * @param tableId
@@ -340,6 +2575,213 @@ public class DataModelDatabaseHelper extends WebKitDatabaseInfoHelper {
    */
   public static Map<String, ColumnDefinition> getColumnDefinitions(SQLiteDatabase db, String tableId)
       throws JsonParseException, JsonMappingException, IOException {
+    CompiledDataModel m = getCompiledDataModel(db, tableId);
+    return (m == null) ? null : copyColumnDefinitions(m.defns);
+  }
+
+  private static Map<String, ColumnDefinition> copyColumnDefinitions(
+      Map<String, ColumnDefinition> defns) {
+    Map<String, ColumnDefinition> copy = new HashMap<String, ColumnDefinition>();
+    for (ColumnDefinition cd : defns.values()) {
+      copy.put(cd.elementKey, new ColumnDefinition(cd.elementKey, cd.elementName,
+          cd.elementType, cd.isUnitOfRetention));
+    }
+    for (ColumnDefinition cd : defns.values()) {
+      ColumnDefinition parent = copy.get(cd.elementKey);
+      for (ColumnDefinition child : cd.children) {
+        parent.addChild(copy.get(child.elementKey));
+      }
+    }
+    return copy;
+  }
+
+  /**
+   * Return the JSON serialization of getDataModel() for the tableId, compiled
+   * once per change of _column_definitions.
+   *
+   * @param db
+   * @param tableId
+   * @return null if the table has no columns.
+   * @throws JsonParseException
+   * @throws JsonMappingException
+   * @throws IOException
+   */
+  public static String getDataModelJson(SQLiteDatabase db, String tableId)
+      throws JsonParseException, JsonMappingException, IOException {
+    CompiledDataModel m = getCompiledDataModel(db, tableId);
+    return (m == null) ? null : m.dataModelJson;
+  }
+
+  private static CompiledDataModel getCompiledDataModel(SQLiteDatabase db, String tableId)
+      throws JsonParseException, JsonMappingException, IOException {
+    String databaseId = null;
+    long changeCounter = -1L;
+    Cursor c = null;
+    try {
+      c = db.rawQuery("SELECT d." + DATABASE_ID + ", c." + CHANGE_COUNTERS_COUNTER + " FROM "
+          + DATABASE_ID_TABLE_NAME + " d, " + CHANGE_COUNTERS_TABLE_NAME + " c WHERE c."
+          + CHANGE_COUNTERS_TABLE + "=?", new String[] { COLUMN_DEFINITIONS_TABLE_NAME });
+      if (c.moveToFirst()) {
+        databaseId = c.getString(0);
+        changeCounter = c.getLong(1);
+      }
+    } finally {
+      if (c != null && !c.isClosed()) {
+        c.close();
+      }
+    }
+    if (databaseId == null) {
+      // no database id or change counter -- cannot tell when a cached copy is
+      // stale
+      return compileDataModel(db, tableId, -1L);
+    }
+
+    // in memory
+    String key = databaseId + '\0' + tableId;
+    CompiledDataModel m = compiledDataModels.get(key);
+    if (m != null && m.changeCounter == changeCounter) {
+      return m;
+    }
+
+    // persisted, else compiled (but not persisted -- see refreshDataModelCache())
+    m = readDataModelCache(db, tableId, changeCounter);
+    if (m == null) {
+      m = compileDataModel(db, tableId, changeCounter);
+      if (m == null) {
+        return null;
+      }
+    }
+    compiledDataModels.put(key, m);
+    return m;
+  }
+
+  private static CompiledDataModel compileDataModel(SQLiteDatabase db, String tableId,
+      long changeCounter) throws JsonParseException, JsonMappingException, IOException {
+    Map<String, ColumnDefinition> defns = loadColumnDefinitions(db, tableId);
+    if (defns == null) {
+      return null;
+    }
+    return new CompiledDataModel(changeCounter, Collections.unmodifiableMap(defns),
+        ODKFileUtils.mapper.writeValueAsString(getDataModel(defns)));
+  }
+
+  private static CompiledDataModel readDataModelCache(SQLiteDatabase db, String tableId,
+      long changeCounter) throws JsonParseException, JsonMappingException, IOException {
+    CompiledDataModel m = null;
+    Cursor c = null;
+    try {
+      c = db.query(DATA_MODEL_CACHE_TABLE_NAME, new String[] {
+          DATA_MODEL_CACHE_COLUMN_DEFINITIONS, DATA_MODEL_CACHE_DATA_MODEL },
+          DATA_MODEL_CACHE_TABLE_ID + "=? AND " + DATA_MODEL_CACHE_COUNTER + "=?", new String[] {
+              tableId, Long.toString(changeCounter) }, null, null, null);
+      if (c.moveToFirst()) {
+        m = new CompiledDataModel(changeCounter, parseColumnDefinitions(c.getString(0)),
+            c.getString(1));
+      }
+    } finally {
+      if (c != null && !c.isClosed()) {
+        c.close();
+      }
+    }
+    return m;
+  }
+
+  /**
+   * Rewrite the _data_model_cache entries of the tableIds whose entries are
+   * missing or older than the change counter of _column_definitions, so that a
+   * new process can skip compiling them. Run by DatabaseMaintenance.
+   *
+   * @param db
+   * @return the number of entries rewritten.
+   * @throws IOException
+   */
+  static int refreshDataModelCache(SQLiteDatabase db) throws IOException {
+    int count = 0;
+    db.beginTransaction();
+    try {
+      long changeCounter = getChangeCounter(db, COLUMN_DEFINITIONS_TABLE_NAME);
+      List<String> stale = new ArrayList<String>();
+      Cursor c = null;
+      try {
+        c = db.rawQuery("SELECT DISTINCT " + ColumnDefinitionsColumns.TABLE_ID + " FROM "
+            + COLUMN_DEFINITIONS_TABLE_NAME + " WHERE " + ColumnDefinitionsColumns.TABLE_ID
+            + " NOT IN (SELECT " + DATA_MODEL_CACHE_TABLE_ID + " FROM "
+            + DATA_MODEL_CACHE_TABLE_NAME + " WHERE " + DATA_MODEL_CACHE_COUNTER + "=?)",
+            new String[] { Long.toString(changeCounter) });
+        while (c.moveToNext()) {
+          stale.add(c.getString(0));
+        }
+      } finally {
+        if (c != null && !c.isClosed()) {
+          c.close();
+        }
+      }
+      for (String tableId : stale) {
+        Map<String, ColumnDefinition> defns = loadColumnDefinitions(db, tableId);
+        if (defns == null) {
+          continue;
+        }
+        ContentValues v = new ContentValues();
+        v.put(DATA_MODEL_CACHE_TABLE_ID, tableId);
+        v.put(DATA_MODEL_CACHE_COUNTER, changeCounter);
+        v.put(DATA_MODEL_CACHE_COLUMN_DEFINITIONS, serializeColumnDefinitions(defns));
+        v.put(DATA_MODEL_CACHE_DATA_MODEL,
+            ODKFileUtils.mapper.writeValueAsString(getDataModel(defns)));
+        db.replace(DATA_MODEL_CACHE_TABLE_NAME, null, v);
+        ++count;
+      }
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+    return count;
+  }
+
+  private static String serializeColumnDefinitions(Map<String, ColumnDefinition> defns)
+      throws IOException {
+    List<Map<String, Object>> list = new ArrayList<Map<String, Object>>();
+    for (ColumnDefinition cd : defns.values()) {
+      Map<String, Object> entry = new HashMap<String, Object>();
+      entry.put("elementKey", cd.elementKey);
+      entry.put("elementName", cd.elementName);
+      entry.put("elementType", cd.elementType);
+      entry.put("isUnitOfRetention", cd.isUnitOfRetention);
+      List<String> children = new ArrayList<String>();
+      for (ColumnDefinition child : cd.children) {
+        children.add(child.elementKey);
+      }
+      entry.put("children", children);
+      list.add(entry);
+    }
+    return ODKFileUtils.mapper.writeValueAsString(list);
+  }
+
+  @SuppressWarnings("unchecked")
+  private static Map<String, ColumnDefinition> parseColumnDefinitions(String json)
+      throws JsonParseException, JsonMappingException, IOException {
+    List<Map<String, Object>> list = ODKFileUtils.mapper.readValue(json, List.class);
+    Map<String, ColumnDefinition> defns = new HashMap<String, ColumnDefinition>();
+    for (Map<String, Object> entry : list) {
+      ColumnDefinition cd = new ColumnDefinition((String) entry.get("elementKey"),
+          (String) entry.get("elementName"), (String) entry.get("elementType"),
+          (Boolean) entry.get("isUnitOfRetention"));
+      defns.put(cd.elementKey, cd);
+    }
+    for (Map<String, Object> entry : list) {
+      ColumnDefinition cd = defns.get(entry.get("elementKey"));
+      for (String ek : (List<String>) entry.get("children")) {
+        ColumnDefinition child = defns.get(ek);
+        if (child == null) {
+          throw new IllegalArgumentException("Unexpected missing child element: " + ek);
+        }
+        cd.addChild(child);
+      }
+    }
+    return Collections.unmodifiableMap(defns);
+  }
+
+  private static Map<String, ColumnDefinition> loadColumnDefinitions(SQLiteDatabase db, String tableId)
+      throws JsonParseException, JsonMappingException, IOException {
     Map<String, ColumnDefinition> defn = new HashMap<String, ColumnDefinition>();
 
     Cursor c = null;
@@ -0,0 +1,245 @@
+/*
+ * Copyright (C) 2014 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.common.android.database;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+/**
+ * Bulk inserts into a data table. A compiled INSERT statement is kept for each
+ * distinct set of columns, values are bound directly (no ContentValues), and
+ * inserts are grouped into transactions of batchSize rows.
+ * <p>
+ * Usage:
+ *
+ * <pre>
+ * DataTableRowWriter w = new DataTableRowWriter(db, dbTableName, 500);
+ * boolean success = false;
+ * try {
+ *   DataTableRowWriter.Row row = w.getRow(columns);
+ *   for (...) {
+ *     row.bindString(0, id).bindLong(1, n).bindNull(2).insert();
+ *   }
+ *   success = true;
+ * } finally {
+ *   if (success) {
+ *     w.close(); // commits the final batch
+ *   } else {
+ *     w.abort(); // rolls back the final batch
+ *   }
+ * }
+ * </pre>
+ *
+ * If an insert fails, the rows of the current (uncommitted) batch are rolled
+ * back and the exception is rethrown. Earlier batches stay committed. Not
+ * thread-safe; use one writer per thread. The database is marked in use (see
+ * {@link ODKSQLiteOpenHelper#acquire(SQLiteDatabase)}) until close() or
+ * abort().
+ * </p>
+ */
+public class DataTableRowWriter {
+
+  public static final int DEFAULT_BATCH_SIZE = 500;
+
+  private final SQLiteDatabase db;
+  private final String dbTableName;
+  private final int batchSize;
+
+  private final Map<List<String>, Row> rows = new HashMap<List<String>, Row>();
+  private int pending = 0;
+  private long rowsWritten = 0L;
+  // null if db was not opened by a helper
+  private ODKSQLiteOpenHelper helper;
+
+  public DataTableRowWriter(SQLiteDatabase db, String dbTableName, int batchSize) {
+    if (batchSize < 1) {
+      throw new IllegalArgumentException("batchSize must be >= 1, was " + batchSize);
+    }
+    this.db = db;
+    this.dbTableName = dbTableName;
+    this.batchSize = batchSize;
+    this.helper = ODKSQLiteOpenHelper.acquire(db);
+  }
+
+  public DataTableRowWriter(SQLiteDatabase db, String dbTableName) {
+    this(db, dbTableName, DEFAULT_BATCH_SIZE);
+  }
+
+  /**
+   * Get the (cached) insert for the given columns. Bind indexes are 0-based
+   * positions in the columns array.
+   *
+   * @param columns
+   * @return
+   */
+  public Row getRow(String[] columns) {
+    List<String> key = Arrays.asList(columns.clone());
+    Row row = rows.get(key);
+    if (row == null) {
+      StringBuilder b = new StringBuilder();
+      b.append("INSERT INTO ").append(DataModelDatabaseHelper.quoteDbTableName(dbTableName))
+          .append(" (");
+      for (int i = 0; i < columns.length; ++i) {
+        if (i != 0) {
+          b.append(",");
+        }
+        b.append("\"").append(columns[i]).append("\"");
+      }
+      b.append(") VALUES (");
+      for (int i = 0; i < columns.length; ++i) {
+        b.append((i == 0) ? "?" : ",?");
+      }
+      b.append(")");
+      row = new Row(db.compileStatement(b.toString()));
+      rows.put(key, row);
+    }
+    return row;
+  }
+
+  /**
+   * @return the number of rows inserted and committed.
+   */
+  public long getRowsWritten() {
+    return rowsWritten;
+  }
+
+  /**
+   * Commit the rows inserted since the last commit.
+   */
+  public void flush() {
+    if (pending != 0) {
+      try {
+        db.setTransactionSuccessful();
+      } finally {
+        db.endTransaction();
+      }
+      rowsWritten += pending;
+      pending = 0;
+    }
+  }
+
+  /**
+   * Commit any pending rows and release the compiled statements.
+   */
+  public void close() {
+    try {
+      flush();
+    } finally {
+      releaseStatements();
+    }
+  }
+
+  /**
+   * Roll back the rows inserted since the last commit and release the
+   * compiled statements. Use instead of close() when giving up on the rows
+   * being written (e.g., the input failed validation).
+   */
+  public void abort() {
+    try {
+      if (pending != 0) {
+        pending = 0;
+        db.endTransaction();
+      }
+    } finally {
+      releaseStatements();
+    }
+  }
+
+  private void releaseStatements() {
+    for (Row row : rows.values()) {
+      row.stmt.close();
+    }
+    rows.clear();
+    if (helper != null) {
+      helper.release();
+      helper = null;
+    }
+  }
+
+  /**
+   * A compiled insert for one set of columns.
+   */
+  public final class Row {
+    private final SQLiteStatement stmt;
+
+    private Row(SQLiteStatement stmt) {
+      this.stmt = stmt;
+    }
+
+    public Row bindNull(int index) {
+      stmt.bindNull(index + 1);
+      return this;
+    }
+
+    public Row bindLong(int index, long value) {
+      stmt.bindLong(index + 1, value);
+      return this;
+    }
+
+    public Row bindDouble(int index, double value) {
+      stmt.bindDouble(index + 1, value);
+      return this;
+    }
+
+    public Row bindBoolean(int index, boolean value) {
+      stmt.bindLong(index + 1, value ? 1L : 0L);
+      return this;
+    }
+
+    public Row bindString(int index, String value) {
+      if (value == null) {
+        stmt.bindNull(index + 1);
+      } else {
+        stmt.bindString(index + 1, value);
+      }
+      return this;
+    }
+
+    /**
+     * Insert the bound values and clear the bindings.
+     *
+     * @return the rowid of the inserted row
+     */
+    public long insert() {
+      if (pending == 0) {
+        db.beginTransaction();
+      }
+      long rowId;
+      try {
+        rowId = stmt.executeInsert();
+        if (rowId == -1) {
+          throw new SQLException("Insert into " + dbTableName + " failed");
+        }
+      } catch (RuntimeException e) {
+        // roll back the current batch (the transaction is always open here)
+        pending = 0;
+        db.endTransaction();
+        throw e;
+      } finally {
+        stmt.clearBindings();
+      }
+      if (++pending >= batchSize) {
+        flush();
+      }
+      return rowId;
+    }
+  }
+}
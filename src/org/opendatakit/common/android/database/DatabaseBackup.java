@@ -0,0 +1,549 @@
+/*
+ * Copyright (C) 2014 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.common.android.database;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Online backup of the database of a helper into a new database file, made
+ * while the database stays open and in use.
+ * <p>
+ * Android does not expose SQLite's page-level backup API (and ATTACH disables
+ * write-ahead logging), so the copy is made through two connections of its
+ * own: a read-only connection to the database file and one to the backup
+ * file. The schema is recreated in the backup file, then each table is copied
+ * in rowid order, rowsPerStep rows per step, followed by sqlite_sequence (so
+ * AUTOINCREMENT keys are never reused) and then the indexes and triggers.
+ * Each step is a single transaction on the backup, and the backup sleeps
+ * yieldMillis between steps, so provider traffic proceeds while it runs.
+ * </p>
+ * <p>
+ * If the database is in write-ahead logging mode, every read is made within
+ * one read transaction, so the backup is a snapshot of the database as of
+ * its first read and writers are not blocked (the WAL file cannot be
+ * checkpointed past that snapshot until the backup ends).
+ * </p>
+ * <p>
+ * Otherwise a read transaction would block writers for the whole backup, so
+ * each step reads separately and writes made during the backup may or may
+ * not be included. {@link Result#consistent} is then false if any connection
+ * committed a change while the backup ran (PRAGMA data_version), or, where
+ * SQLite predates data_version, if the helper's connection made any change
+ * (total_changes()). The backup can then be retried.
+ * </p>
+ * <p>
+ * Only the database file itself is copied. Helpers that keep data in other
+ * files ATTACHed to their connection refuse the backup (see
+ * ODKSQLiteOpenHelper.checkBackup()).
+ * </p>
+ */
+public final class DatabaseBackup {
+  private static final String t = "DatabaseBackup";
+
+  public static final int DEFAULT_ROWS_PER_STEP = 500;
+  public static final long DEFAULT_YIELD_MILLIS = 10L;
+
+  public interface ProgressListener {
+    /**
+     * Called after each step.
+     *
+     * @param tableName
+     *          -- the table being copied
+     * @param rowsCopied
+     *          -- total rows copied so far, across all tables
+     */
+    void onProgress(String tableName, long rowsCopied);
+  }
+
+  /**
+   * The outcome of a backup.
+   */
+  public static final class Result {
+    /** the backup file (a .zip if compressed) */
+    public final File file;
+    public final long rowsCopied;
+    /** size of the backup database (before compression) */
+    public final long bytesCopied;
+    public final long elapsedMillis;
+    /** false if the database was written to while the backup ran */
+    public final boolean consistent;
+
+    Result(File file, long rowsCopied, long bytesCopied, long elapsedMillis, boolean consistent) {
+      this.file = file;
+      this.rowsCopied = rowsCopied;
+      this.bytesCopied = bytesCopied;
+      this.elapsedMillis = elapsedMillis;
+      this.consistent = consistent;
+    }
+
+    public double getRowsPerSecond() {
+      return (elapsedMillis == 0L) ? rowsCopied : (rowsCopied * 1000.0) / elapsedMillis;
+    }
+
+    public double getBytesPerSecond() {
+      return (elapsedMillis == 0L) ? bytesCopied : (bytesCopied * 1000.0) / elapsedMillis;
+    }
+  }
+
+  // shadow tables of FTS virtual tables; filled by copying the virtual table
+  private static final String[] FTS_SHADOW_SUFFIXES = { "_content", "_segments", "_segdir",
+      "_docsize", "_stat" };
+
+  private final ODKSQLiteOpenHelper dbh;
+  private int rowsPerStep = DEFAULT_ROWS_PER_STEP;
+  private long yieldMillis = DEFAULT_YIELD_MILLIS;
+  private boolean compress = false;
+  private ProgressListener listener = null;
+
+  public DatabaseBackup(ODKSQLiteOpenHelper dbh) {
+    this.dbh = dbh;
+  }
+
+  public void setRowsPerStep(int rowsPerStep) {
+    if (rowsPerStep < 1) {
+      throw new IllegalArgumentException("rowsPerStep must be >= 1, was " + rowsPerStep);
+    }
+    this.rowsPerStep = rowsPerStep;
+  }
+
+  public void setYieldMillis(long yieldMillis) {
+    this.yieldMillis = yieldMillis;
+  }
+
+  /**
+   * @param compress
+   *          -- if true, the backup is stored as a zip archive.
+   */
+  public void setCompress(boolean compress) {
+    this.compress = compress;
+  }
+
+  public void setProgressListener(ProgressListener listener) {
+    this.listener = listener;
+  }
+
+  private static final class SchemaEntry {
+    final String type;
+    final String name;
+    final String tableName;
+    final String sql;
+
+    SchemaEntry(String type, String name, String tableName, String sql) {
+      this.type = type;
+      this.name = name;
+      this.tableName = tableName;
+      this.sql = sql;
+    }
+  }
+
+  /**
+   * Back up the database into a new file in outputDir, named after the
+   * database file and the current time.
+   *
+   * @param outputDir
+   * @return
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  public Result backupTo(File outputDir) throws IOException, InterruptedException {
+    long start = SystemClock.elapsedRealtime();
+    String path = dbh.getMetrics().dbFilePath;
+    if (!new File(path).isFile()) {
+      throw new IllegalStateException("No database file to back up: " + path);
+    }
+    if (!outputDir.exists() && !outputDir.mkdirs()) {
+      throw new IOException("Unable to create " + outputDir.getAbsolutePath());
+    }
+    String baseName = new File(path).getName() + "-" + System.currentTimeMillis();
+    File dbFile = new File(outputDir, baseName + ".db");
+
+    // keeps the helper's connection (and with it total_changes()) open
+    dbh.acquire();
+    long rows;
+    boolean consistent;
+    try {
+      SQLiteDatabase source = SQLiteDatabase.openDatabase(path, null,
+          SQLiteDatabase.OPEN_READONLY | SQLiteDatabase.NO_LOCALIZED_COLLATORS);
+      try {
+        dbh.checkBackup(source);
+        boolean snapshot = "wal".equalsIgnoreCase(queryString(source, "PRAGMA journal_mode"));
+        long dataVersion = -1L;
+        long totalChanges = -1L;
+        if (snapshot) {
+          // a deferred transaction: Android's beginTransaction() would take
+          // the write lock
+          source.execSQL("SAVEPOINT backup");
+        } else {
+          dataVersion = getDataVersion(source);
+          totalChanges = getTotalChanges(dbh.getReadableDatabase());
+        }
+        try {
+          rows = copyDatabase(source, dbFile);
+        } finally {
+          if (snapshot) {
+            source.execSQL("RELEASE backup");
+          }
+        }
+        if (snapshot) {
+          consistent = true;
+        } else if (dataVersion != -1L) {
+          consistent = (dataVersion == getDataVersion(source));
+        } else {
+          consistent = (totalChanges == getTotalChanges(dbh.getReadableDatabase()));
+        }
+      } finally {
+        source.close();
+      }
+    } finally {
+      dbh.release();
+    }
+    long bytes = dbFile.length();
+    File file = dbFile;
+    if (compress) {
+      file = new File(outputDir, baseName + ".zip");
+      zip(dbFile, file);
+      dbFile.delete();
+    }
+    long elapsed = SystemClock.elapsedRealtime() - start;
+    Result result = new Result(file, rows, bytes, elapsed, consistent);
+    Log.i(t, "backupTo: " + file.getAbsolutePath() + " rows: " + rows + " bytes: " + bytes
+        + " elapsed: " + elapsed + "ms (" + Math.round(result.getBytesPerSecond() / 1024.0)
+        + " KB/s)" + (consistent ? "" : " -- database changed during backup"));
+    return result;
+  }
+
+  /**
+   * Create dbFile and copy the schema and rows of source into it.
+   *
+   * @return the number of rows copied.
+   */
+  private long copyDatabase(SQLiteDatabase source, File dbFile) throws InterruptedException {
+    long rows = 0L;
+    SQLiteDatabase backup = SQLiteDatabase.openDatabase(dbFile.getAbsolutePath(), null,
+        SQLiteDatabase.OPEN_READWRITE | SQLiteDatabase.CREATE_IF_NECESSARY
+            | SQLiteDatabase.NO_LOCALIZED_COLLATORS);
+    boolean success = false;
+    try {
+      List<SchemaEntry> schema = readSchema(source);
+      // created along with their virtual table
+      Set<String> shadows = getShadowTables(schema);
+
+      backup.setVersion(source.getVersion());
+      backup.beginTransaction();
+      try {
+        for (SchemaEntry e : schema) {
+          if (e.type.equals("table") && !shadows.contains(e.name)) {
+            backup.execSQL(e.sql);
+          }
+        }
+        backup.setTransactionSuccessful();
+      } finally {
+        backup.endTransaction();
+      }
+
+      Set<String> tables = new HashSet<String>();
+      for (SchemaEntry e : schema) {
+        if (e.type.equals("table") && !shadows.contains(e.name)) {
+          rows = copyTable(source, backup, e.name, rows);
+          tables.add(e.name);
+        }
+      }
+      copySequences(source, backup, tables);
+
+      backup.beginTransaction();
+      try {
+        dbh.onBackupCopied(backup);
+        for (String type : new String[] { "index", "trigger", "view" }) {
+          for (SchemaEntry e : schema) {
+            if (e.type.equals(type)) {
+              backup.execSQL(e.sql);
+            }
+          }
+        }
+        backup.setTransactionSuccessful();
+      } finally {
+        backup.endTransaction();
+      }
+      success = true;
+      return rows;
+    } finally {
+      backup.close();
+      if (!success) {
+        dbFile.delete();
+      }
+    }
+  }
+
+  private List<SchemaEntry> readSchema(SQLiteDatabase db) {
+    List<SchemaEntry> schema = new ArrayList<SchemaEntry>();
+    Cursor c = null;
+    try {
+      c = db.rawQuery("SELECT type, name, tbl_name, sql FROM sqlite_master WHERE sql IS NOT NULL"
+          + " AND name NOT LIKE 'sqlite\\_%' ESCAPE '\\' ORDER BY rowid", null);
+      while (c.moveToNext()) {
+        SchemaEntry e = new SchemaEntry(c.getString(0), c.getString(1), c.getString(2),
+            c.getString(3));
+        if (dbh.includeInBackup(e.tableName)) {
+          schema.add(e);
+        }
+      }
+    } finally {
+      if (c != null && !c.isClosed()) {
+        c.close();
+      }
+    }
+    return schema;
+  }
+
+  private static Set<String> getShadowTables(List<SchemaEntry> schema) {
+    Set<String> shadows = new HashSet<String>();
+    for (SchemaEntry e : schema) {
+      if (e.type.equals("table") && e.sql.toUpperCase().startsWith("CREATE VIRTUAL TABLE")) {
+        for (String suffix : FTS_SHADOW_SUFFIXES) {
+          shadows.add(e.name + suffix);
+        }
+      }
+    }
+    return shadows;
+  }
+
+  private static List<String> getColumns(SQLiteDatabase db, String tableName) {
+    List<String> columns = new ArrayList<String>();
+    Cursor c = null;
+    try {
+      c = db.rawQuery("PRAGMA table_info(\"" + tableName + "\")", null);
+      int idxName = c.getColumnIndex("name");
+      while (c.moveToNext()) {
+        columns.add(c.getString(idxName));
+      }
+    } finally {
+      if (c != null && !c.isClosed()) {
+        c.close();
+      }
+    }
+    return columns;
+  }
+
+  private static long getMaxRowid(SQLiteDatabase db, String tableName) {
+    Cursor c = null;
+    try {
+      c = db.rawQuery("SELECT max(rowid) FROM \"" + tableName + "\"", null);
+      return (c.moveToFirst() && !c.isNull(0)) ? c.getLong(0) : 0L;
+    } finally {
+      if (c != null && !c.isClosed()) {
+        c.close();
+      }
+    }
+  }
+
+  /**
+   * Copy the rows of the table, in rowid order, up to the largest rowid at
+   * the start of the copy.
+   */
+  private long copyTable(SQLiteDatabase source, SQLiteDatabase backup, String tableName,
+      long rows) throws InterruptedException {
+    List<String> columns = getColumns(source, tableName);
+    long maxRowid = getMaxRowid(source, tableName);
+
+    // Cursor.getType() requires API 11, so fetch typeof() alongside each value
+    StringBuilder select = new StringBuilder();
+    StringBuilder insert = new StringBuilder();
+    StringBuilder values = new StringBuilder();
+    select.append("SELECT rowid");
+    insert.append("INSERT INTO \"").append(tableName).append("\" (rowid");
+    values.append("?");
+    for (String column : columns) {
+      select.append(", typeof(\"").append(column).append("\"), \"").append(column).append("\"");
+      insert.append(", \"").append(column).append("\"");
+      values.append(",?");
+    }
+    select.append(" FROM \"").append(tableName).append("\" WHERE rowid > ? AND rowid <= ")
+        .append(maxRowid).append(" ORDER BY rowid LIMIT ").append(rowsPerStep);
+    insert.append(") VALUES (").append(values).append(")");
+
+    SQLiteStatement stmt = backup.compileStatement(insert.toString());
+    try {
+      long lastRowid = Long.MIN_VALUE;
+      for (;;) {
+        int count = 0;
+        Cursor c = null;
+        backup.beginTransaction();
+        try {
+          c = source.rawQuery(select.toString(),
+              new String[] { Long.toString(lastRowid) });
+          while (c.moveToNext()) {
+            stmt.clearBindings();
+            lastRowid = c.getLong(0);
+            stmt.bindLong(1, lastRowid);
+            for (int i = 0; i < columns.size(); ++i) {
+              String type = c.getString(1 + 2 * i);
+              int idx = 2 + 2 * i;
+              if ("integer".equals(type)) {
+                stmt.bindLong(i + 2, c.getLong(idx));
+              } else if ("real".equals(type)) {
+                stmt.bindDouble(i + 2, c.getDouble(idx));
+              } else if ("text".equals(type)) {
+                stmt.bindString(i + 2, c.getString(idx));
+              } else if ("blob".equals(type)) {
+                stmt.bindBlob(i + 2, c.getBlob(idx));
+              } else {
+                stmt.bindNull(i + 2);
+              }
+            }
+            stmt.executeInsert();
+            ++count;
+          }
+          backup.setTransactionSuccessful();
+        } finally {
+          if (c != null && !c.isClosed()) {
+            c.close();
+          }
+          backup.endTransaction();
+        }
+        rows += count;
+        if (listener != null) {
+          listener.onProgress(tableName, rows);
+        }
+        if (count < rowsPerStep) {
+          return rows;
+        }
+        if (yieldMillis > 0L) {
+          Thread.sleep(yieldMillis);
+        }
+      }
+    } finally {
+      stmt.close();
+    }
+  }
+
+  /**
+   * Copy the sqlite_sequence entries of the copied tables; copying the rows
+   * only advances them to the largest rowid copied.
+   */
+  private static void copySequences(SQLiteDatabase source, SQLiteDatabase backup,
+      Set<String> tables) {
+    if (queryString(source,
+        "SELECT name FROM sqlite_master WHERE type='table' AND name='sqlite_sequence'") == null) {
+      return;
+    }
+    List<String> names = new ArrayList<String>();
+    List<Long> seqs = new ArrayList<Long>();
+    Cursor c = null;
+    try {
+      c = source.rawQuery("SELECT name, seq FROM sqlite_sequence", null);
+      while (c.moveToNext()) {
+        if (tables.contains(c.getString(0))) {
+          names.add(c.getString(0));
+          seqs.add(c.getLong(1));
+        }
+      }
+    } finally {
+      if (c != null && !c.isClosed()) {
+        c.close();
+      }
+    }
+    if (names.isEmpty()) {
+      // no AUTOINCREMENT tables were copied (nor sqlite_sequence created)
+      return;
+    }
+    backup.beginTransaction();
+    try {
+      backup.execSQL("DELETE FROM sqlite_sequence");
+      for (int i = 0; i < names.size(); ++i) {
+        backup.execSQL("INSERT INTO sqlite_sequence (name, seq) VALUES (?,?)", new Object[] {
+            names.get(i), seqs.get(i) });
+      }
+      backup.setTransactionSuccessful();
+    } finally {
+      backup.endTransaction();
+    }
+  }
+
+  /**
+   * @return the data_version of the connection, or -1 if SQLite predates it
+   *         (3.8.8).
+   */
+  private static long getDataVersion(SQLiteDatabase db) {
+    String version = queryString(db, "PRAGMA data_version");
+    return (version == null) ? -1L : Long.parseLong(version);
+  }
+
+  private static long getTotalChanges(SQLiteDatabase db) {
+    return Long.parseLong(queryString(db, "SELECT total_changes()"));
+  }
+
+  private static String queryString(SQLiteDatabase db, String sql) {
+    Cursor c = null;
+    try {
+      c = db.rawQuery(sql, null);
+      return (c.moveToFirst() && !c.isNull(0)) ? c.getString(0) : null;
+    } finally {
+      if (c != null && !c.isClosed()) {
+        c.close();
+      }
+    }
+  }
+
+  private static void zip(File source, File destination) throws IOException {
+    InputStream in = null;
+    ZipOutputStream out = null;
+    boolean success = false;
+    try {
+      in = new BufferedInputStream(new FileInputStream(source));
+      out = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(destination)));
+      out.putNextEntry(new ZipEntry(source.getName()));
+      copy(in, out);
+      out.closeEntry();
+      success = true;
+    } finally {
+      if (in != null) {
+        in.close();
+      }
+      if (out != null) {
+        out.close();
+      }
+      if (!success) {
+        destination.delete();
+      }
+    }
+  }
+
+  private static void copy(InputStream in, OutputStream out) throws IOException {
+    byte[] buffer = new byte[8192];
+    int len;
+    while ((len = in.read(buffer)) != -1) {
+      out.write(buffer, 0, len);
+    }
+  }
+}
@@ -0,0 +1,354 @@
+/*
+ * Copyright (C) 2014 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.common.android.database;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.opendatakit.common.android.provider.TableDefinitionsColumns;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Build;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Background upkeep of the database of a DataModelDatabaseHelper:
+ * <ul>
+ * <li>installing the journal triggers and the dirty-row and conflict-row
+ * indexes of the data tables created since the last round (see
+ * DataModelDatabaseHelper.ensureRowChangeJournals());</li>
+ * <li>compaction of the row change journal once COMPACT_ROW_CHANGES entries
+ * have been written since the last one (and once per session);</li>
+ * <li>rewriting the stale entries of _data_model_cache after
+ * _column_definitions changes (and once per session);</li>
+ * <li>ANALYZE, one table at a time, once ANALYZE_ROW_CHANGES data-table rows
+ * have changed (per the row change journal) since the last one;</li>
+ * <li>incremental vacuum, in chunks, once the freelist holds
+ * VACUUM_MIN_FREE_PAGES and VACUUM_FREE_FRACTION of the file (only effective
+ * when the file was created with auto_vacuum=incremental);</li>
+ * <li>a passive WAL checkpoint once the database has been idle for
+ * CHECKPOINT_IDLE_MILLIS.</li>
+ * </ul>
+ * A check runs every CHECK_INTERVAL_MILLIS while the database is open. It is
+ * skipped if the database was used within the last BUSY_MILLIS or is in use
+ * (open cursors, transactions or other acquire() calls on the helper), and
+ * stops starting new statements after MAX_WORK_MILLIS; unfinished work resumes
+ * at the next check. A round holds the helper in use, so the database is not
+ * closed underneath it, but the database is never opened for maintenance.
+ * Rounds run on a worker thread, so a round that waits for a transaction on
+ * another thread does not hold up the checks of other databases.
+ */
+public final class DatabaseMaintenance {
+  private static final String t = "DatabaseMaintenance";
+
+  public static final long CHECK_INTERVAL_MILLIS = 60L * 1000L;
+  public static final long BUSY_MILLIS = 10L * 1000L;
+  public static final long CHECKPOINT_IDLE_MILLIS = 30L * 1000L;
+  public static final long MAX_WORK_MILLIS = 250L;
+  public static final long COMPACT_ROW_CHANGES = 1000L;
+  public static final long ANALYZE_ROW_CHANGES = 5000L;
+  public static final int VACUUM_MIN_FREE_PAGES = 256;
+  public static final double VACUUM_FREE_FRACTION = 0.10;
+  public static final int VACUUM_CHUNK_PAGES = 64;
+
+  private static final int AUTO_VACUUM_INCREMENTAL = 2;
+
+  // shared by the helpers of all appNames; only times the checks, which run
+  // on the worker threads
+  private static final ScheduledExecutorService scheduler = Executors
+      .newSingleThreadScheduledExecutor();
+  private static final ExecutorService worker = Executors.newCachedThreadPool();
+
+  private final DataModelDatabaseHelper dbh;
+  private final AtomicBoolean scheduled = new AtomicBoolean(false);
+  private volatile boolean enabled = true;
+
+  // guarded by this
+  private long compactedRowChangeSeq = -1L;
+  private long dataModelCacheCounter = -1L;
+  private long analyzedRowChangeSeq = -1L;
+  private final LinkedList<String> pendingAnalyze = new LinkedList<String>();
+  private boolean checkpointedSinceAccess = false;
+  private long lastAccessSeen = 0L;
+
+  DatabaseMaintenance(DataModelDatabaseHelper dbh) {
+    this.dbh = dbh;
+  }
+
+  public void setEnabled(boolean enabled) {
+    this.enabled = enabled;
+  }
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * Schedule the next check (if not already scheduled). Called when the
+   * database is opened for writing; checks stop once it is closed.
+   */
+  void schedule() {
+    if (!scheduled.compareAndSet(false, true)) {
+      return;
+    }
+    final Runnable round = new Runnable() {
+      @Override
+      public void run() {
+        try {
+          runOnce();
+        } catch (Exception e) {
+          Log.w(t, "maintenance failed for " + dbh.getMetrics().dbFilePath + ": " + e.toString());
+        }
+        schedule();
+      }
+    };
+    scheduler.schedule(new Runnable() {
+      @Override
+      public void run() {
+        scheduled.set(false);
+        if (dbh.isOpen()) {
+          worker.execute(round);
+        }
+      }
+    }, CHECK_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Run one bounded round of maintenance, if the database is open and idle.
+   *
+   * @return false if the round was skipped.
+   */
+  @SuppressWarnings("deprecation")
+  public synchronized boolean runOnce() {
+    DatabaseMetrics metrics = dbh.getMetrics();
+    long start = SystemClock.elapsedRealtime();
+    long lastAccess = dbh.getLastAccessTime();
+    if (lastAccess != lastAccessSeen) {
+      lastAccessSeen = lastAccess;
+      checkpointedSinceAccess = false;
+    }
+    long idle = start - lastAccess;
+    if (!enabled) {
+      return false;
+    }
+    SQLiteDatabase db = dbh.acquireWritableDatabaseIfOpen();
+    if (db == null) {
+      return false;
+    }
+    try {
+      // the only use should be this round's. isDbLockedByOtherThreads() is
+      // always false on API 16 and higher, so it only helps on older devices.
+      if (idle < BUSY_MILLIS || dbh.getActiveUseCount() > 1
+          || (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN
+              && db.isDbLockedByOtherThreads())) {
+        metrics.increment(DatabaseMetrics.MAINTENANCE_SKIPS);
+        return false;
+      }
+      long deadline = start + MAX_WORK_MILLIS;
+
+      if (idle >= CHECKPOINT_IDLE_MILLIS && !checkpointedSinceAccess) {
+        checkpoint(db, metrics);
+        checkpointedSinceAccess = true;
+      }
+      if (SystemClock.elapsedRealtime() < deadline) {
+        ensureRowChangeJournals(db, metrics);
+      }
+      if (SystemClock.elapsedRealtime() < deadline) {
+        compactRowChangeJournal(db, metrics);
+      }
+      if (SystemClock.elapsedRealtime() < deadline) {
+        refreshDataModelCache(db, metrics);
+      }
+      if (SystemClock.elapsedRealtime() < deadline) {
+        analyze(db, metrics, deadline);
+      }
+      if (SystemClock.elapsedRealtime() < deadline) {
+        incrementalVacuum(db, metrics, deadline);
+      }
+      metrics.record(DatabaseMetrics.MAINTENANCE_MILLIS, SystemClock.elapsedRealtime() - start);
+      return true;
+    } finally {
+      dbh.release();
+    }
+  }
+
+  private void checkpoint(SQLiteDatabase db, DatabaseMetrics metrics) {
+    if (!"wal".equalsIgnoreCase(queryString(db, "PRAGMA journal_mode"))) {
+      return;
+    }
+    Cursor c = null;
+    try {
+      // returns (busy, wal frames, frames checkpointed)
+      c = db.rawQuery("PRAGMA wal_checkpoint(PASSIVE)", null);
+      if (c.moveToFirst() && c.getColumnCount() >= 3) {
+        metrics.increment(DatabaseMetrics.CHECKPOINTS);
+        Log.i(t, "checkpoint: " + metrics.dbFilePath + " busy: " + c.getInt(0) + " frames: "
+            + c.getInt(1) + " checkpointed: " + c.getInt(2));
+      }
+    } finally {
+      if (c != null && !c.isClosed()) {
+        c.close();
+      }
+    }
+  }
+
+  private void ensureRowChangeJournals(SQLiteDatabase db, DatabaseMetrics metrics) {
+    int count = DataModelDatabaseHelper.ensureRowChangeJournals(db);
+    if (count != 0) {
+      Log.i(t, "ensureRowChangeJournals: " + metrics.dbFilePath
+          + " installed triggers or indexes on " + count + " tables");
+    }
+  }
+
+  private void compactRowChangeJournal(SQLiteDatabase db, DatabaseMetrics metrics) {
+    long seq = DataModelDatabaseHelper.getLatestRowChangeSeq(db);
+    if (compactedRowChangeSeq != -1L && seq - compactedRowChangeSeq < COMPACT_ROW_CHANGES) {
+      return;
+    }
+    int count = DataModelDatabaseHelper.compactRowChangeJournal(db);
+    compactedRowChangeSeq = seq;
+    metrics.add(DatabaseMetrics.COMPACTED_ROW_CHANGES, count);
+    Log.i(t, "compactRowChangeJournal: " + metrics.dbFilePath + " removed " + count
+        + " entries");
+  }
+
+  private void refreshDataModelCache(SQLiteDatabase db, DatabaseMetrics metrics) {
+    long counter = DataModelDatabaseHelper.getChangeCounter(db,
+        DataModelDatabaseHelper.COLUMN_DEFINITIONS_TABLE_NAME);
+    if (counter == dataModelCacheCounter) {
+      return;
+    }
+    try {
+      int count = DataModelDatabaseHelper.refreshDataModelCache(db);
+      dataModelCacheCounter = counter;
+      if (count != 0) {
+        Log.i(t, "refreshDataModelCache: " + metrics.dbFilePath + " rewrote " + count
+            + " entries");
+      }
+    } catch (IOException e) {
+      Log.w(t, "refreshDataModelCache: " + metrics.dbFilePath + " failed: " + e.toString());
+    }
+  }
+
+  private void analyze(SQLiteDatabase db, DatabaseMetrics metrics, long deadline) {
+    if (pendingAnalyze.isEmpty()) {
+      long seq = DataModelDatabaseHelper.getLatestRowChangeSeq(db);
+      if (analyzedRowChangeSeq == -1L && queryString(db,
+          "SELECT name FROM sqlite_master WHERE type='table' AND name='sqlite_stat1'") != null) {
+        // analyzed in an earlier session; count changes from now
+        analyzedRowChangeSeq = seq;
+      }
+      if (analyzedRowChangeSeq != -1L && seq - analyzedRowChangeSeq < ANALYZE_ROW_CHANGES) {
+        return;
+      }
+      analyzedRowChangeSeq = seq;
+      pendingAnalyze.addAll(getTableNames(db));
+    }
+    int count = 0;
+    while (!pendingAnalyze.isEmpty() && SystemClock.elapsedRealtime() < deadline) {
+      db.execSQL("ANALYZE " + pendingAnalyze.removeFirst());
+      ++count;
+    }
+    if (count != 0) {
+      metrics.add(DatabaseMetrics.ANALYZES, count);
+      Log.i(t, "analyze: " + metrics.dbFilePath + " analyzed " + count + " tables, "
+          + pendingAnalyze.size() + " remaining");
+    }
+  }
+
+  private void incrementalVacuum(SQLiteDatabase db, DatabaseMetrics metrics, long deadline) {
+    String autoVacuum = queryString(db, "PRAGMA auto_vacuum");
+    if (autoVacuum == null || Integer.parseInt(autoVacuum) != AUTO_VACUUM_INCREMENTAL) {
+      return;
+    }
+    long pages = Long.parseLong(queryString(db, "PRAGMA page_count"));
+    long free = Long.parseLong(queryString(db, "PRAGMA freelist_count"));
+    if (free < VACUUM_MIN_FREE_PAGES || free < pages * VACUUM_FREE_FRACTION) {
+      return;
+    }
+    long reclaimed = 0L;
+    while (free > 0 && SystemClock.elapsedRealtime() < deadline) {
+      // incremental_vacuum frees one page per (columnless) result row, so
+      // the cursor must be stepped to the end
+      Cursor c = null;
+      try {
+        c = db.rawQuery("PRAGMA incremental_vacuum(" + VACUUM_CHUNK_PAGES + ")", null);
+        c.getCount();
+      } finally {
+        if (c != null && !c.isClosed()) {
+          c.close();
+        }
+      }
+      long remaining = Long.parseLong(queryString(db, "PRAGMA freelist_count"));
+      if (remaining >= free) {
+        break;
+      }
+      reclaimed += free - remaining;
+      free = remaining;
+    }
+    metrics.add(DatabaseMetrics.VACUUMED_PAGES, reclaimed);
+    Log.i(t, "incrementalVacuum: " + metrics.dbFilePath + " reclaimed " + reclaimed
+        + " pages, " + free + " free of " + pages);
+  }
+
+  // quoted (and, for data tables in attached files, schema-qualified)
+  private static List<String> getTableNames(SQLiteDatabase db) {
+    List<String> names = new ArrayList<String>();
+    Cursor c = null;
+    try {
+      c = db.rawQuery("SELECT name FROM sqlite_master WHERE type='table'"
+          + " AND name NOT LIKE 'sqlite\\_%' ESCAPE '\\' AND name NOT LIKE ? ESCAPE '\\'"
+          + " AND sql NOT LIKE 'CREATE VIRTUAL TABLE%'", new String[] {
+          DataModelDatabaseHelper.DELETED_TABLE_PREFIX.replace("_", "\\_") + "%" });
+      while (c.moveToNext()) {
+        names.add("\"" + c.getString(0) + "\"");
+      }
+      c.close();
+
+      c = db.query(DataModelDatabaseHelper.TABLE_DEFS_TABLE_NAME,
+          new String[] { TableDefinitionsColumns.DB_TABLE_NAME },
+          TableDefinitionsColumns.DB_TABLE_NAME + " LIKE '%.%'", null, null, null, null);
+      while (c.moveToNext()) {
+        names.add(DataModelDatabaseHelper.quoteDbTableName(c.getString(0)));
+      }
+    } finally {
+      if (c != null && !c.isClosed()) {
+        c.close();
+      }
+    }
+    return names;
+  }
+
+  private static String queryString(SQLiteDatabase db, String sql) {
+    Cursor c = null;
+    try {
+      c = db.rawQuery(sql, null);
+      return (c.moveToFirst() && !c.isNull(0)) ? c.getString(0) : null;
+    } finally {
+      if (c != null && !c.isClosed()) {
+        c.close();
+      }
+    }
+  }
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright (C) 2014 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.common.android.database;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters and histograms for the ODK databases, kept per database file.
+ * Everything is in-memory and lock-free so that it can be updated on the
+ * database access paths. Use {@link #getAllMetrics()} to dump them.
+ */
+public final class DatabaseMetrics {
+
+  // counter and histogram names
+  public static final String LOCK_WAITS = "lockWaits";
+  public static final String LOCK_FAILURES = "lockFailures";
+  public static final String LOCK_WAIT_MILLIS = "lockWaitMillis";
+  public static final String OPENS = "opens";
+  public static final String EVICTIONS = "evictions";
+  public static final String IDLE_CLOSES = "idleCloses";
+  public static final String MAINTENANCE_SKIPS = "maintenanceSkips";
+  public static final String MAINTENANCE_MILLIS = "maintenanceMillis";
+  public static final String ANALYZES = "analyzes";
+  public static final String VACUUMED_PAGES = "vacuumedPages";
+  public static final String CHECKPOINTS = "checkpoints";
+  public static final String COMPACTED_ROW_CHANGES = "compactedRowChanges";
+
+  private static final ConcurrentHashMap<String, DatabaseMetrics> metrics = new ConcurrentHashMap<String, DatabaseMetrics>();
+
+  /**
+   * Get (creating if necessary) the metrics for a database file.
+   *
+   * @param dbFilePath
+   * @return
+   */
+  public static DatabaseMetrics getMetrics(String dbFilePath) {
+    DatabaseMetrics m = metrics.get(dbFilePath);
+    if (m == null) {
+      DatabaseMetrics newMetrics = new DatabaseMetrics(dbFilePath);
+      m = metrics.putIfAbsent(dbFilePath, newMetrics);
+      if (m == null) {
+        m = newMetrics;
+      }
+    }
+    return m;
+  }
+
+  /**
+   * @return map of (database file path -> metrics), sorted by path.
+   */
+  public static Map<String, DatabaseMetrics> getAllMetrics() {
+    return new TreeMap<String, DatabaseMetrics>(metrics);
+  }
+
+  public final String dbFilePath;
+  private final ConcurrentHashMap<String, AtomicLong> counters = new ConcurrentHashMap<String, AtomicLong>();
+  private final ConcurrentHashMap<String, Histogram> histograms = new ConcurrentHashMap<String, Histogram>();
+
+  private DatabaseMetrics(String dbFilePath) {
+    this.dbFilePath = dbFilePath;
+  }
+
+  public void increment(String counter) {
+    add(counter, 1L);
+  }
+
+  public void add(String counter, long delta) {
+    AtomicLong value = counters.get(counter);
+    if (value == null) {
+      AtomicLong newValue = new AtomicLong();
+      value = counters.putIfAbsent(counter, newValue);
+      if (value == null) {
+        value = newValue;
+      }
+    }
+    value.addAndGet(delta);
+  }
+
+  public long getCount(String counter) {
+    AtomicLong value = counters.get(counter);
+    return (value == null) ? 0L : value.get();
+  }
+
+  public void record(String histogram, long value) {
+    getHistogram(histogram).record(value);
+  }
+
+  public Histogram getHistogram(String histogram) {
+    Histogram h = histograms.get(histogram);
+    if (h == null) {
+      Histogram newHistogram = new Histogram();
+      h = histograms.putIfAbsent(histogram, newHistogram);
+      if (h == null) {
+        h = newHistogram;
+      }
+    }
+    return h;
+  }
+
+  /**
+   * @return map of (counter name -> value), sorted by name.
+   */
+  public Map<String, Long> getCounters() {
+    TreeMap<String, Long> snapshot = new TreeMap<String, Long>();
+    for (Map.Entry<String, AtomicLong> e : counters.entrySet()) {
+      snapshot.put(e.getKey(), e.getValue().get());
+    }
+    return snapshot;
+  }
+
+  /**
+   * @return map of (histogram name -> histogram), sorted by name.
+   */
+  public Map<String, Histogram> getHistograms() {
+    return new TreeMap<String, Histogram>(histograms);
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder b = new StringBuilder();
+    b.append(dbFilePath).append(": ").append(getCounters().toString());
+    for (Map.Entry<String, Histogram> e : getHistograms().entrySet()) {
+      b.append(" ").append(e.getKey()).append("=").append(e.getValue().toString());
+    }
+    return b.toString();
+  }
+
+  /**
+   * Histogram of non-negative values with power-of-two bucket boundaries.
+   * Bucket i counts values in [2^(i-1), 2^i), with bucket 0 holding 0.
+   */
+  public static final class Histogram {
+    private static final int BUCKETS = 32;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long value) {
+      if (value < 0) {
+        value = 0;
+      }
+      int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(value));
+      buckets.incrementAndGet(bucket);
+      count.incrementAndGet();
+      sum.addAndGet(value);
+      long current;
+      while (value > (current = max.get())) {
+        if (max.compareAndSet(current, value)) {
+          break;
+        }
+      }
+    }
+
+    public long getCount() {
+      return count.get();
+    }
+
+    public long getSum() {
+      return sum.get();
+    }
+
+    public long getMax() {
+      return max.get();
+    }
+
+    /**
+     * @param percentile
+     *          -- 0.0 to 1.0
+     * @return upper bound of the bucket containing the given percentile.
+     */
+    public long getPercentileUpperBound(double percentile) {
+      long total = count.get();
+      if (total == 0) {
+        return 0L;
+      }
+      long target = (long) Math.ceil(total * percentile);
+      long seen = 0;
+      for (int i = 0; i < BUCKETS; ++i) {
+        seen += buckets.get(i);
+        if (seen >= target) {
+          return (i == 0) ? 0L : (1L << i) - 1L;
+        }
+      }
+      return getMax();
+    }
+
+    @Override
+    public String toString() {
+      long n = getCount();
+      return "{count=" + n + ", mean=" + ((n == 0) ? 0 : (getSum() / n)) + ", p50<="
+          + getPercentileUpperBound(0.5) + ", p99<=" + getPercentileUpperBound(0.99) + ", max="
+          + getMax() + "}";
+    }
+  }
+}
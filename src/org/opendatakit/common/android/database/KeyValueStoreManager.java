@@ -0,0 +1,295 @@
+/*
+ * Copyright (C) 2014 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.common.android.database;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.opendatakit.common.android.provider.KeyValueStoreColumns;
+import org.opendatakit.common.android.utilities.ODKFileUtils;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+/**
+ * Typed, cached access to one of the key-value-store tables.
+ * <p>
+ * The entries of a (tableId, partition) are loaded with one query and cached.
+ * A cached partition is used as long as the change counter of the KVS table
+ * (bumped by triggers on every write, by any writer) is unchanged since it
+ * was loaded; otherwise it is reloaded. Writes are buffered in an
+ * {@link Editor} and applied in one transaction by {@link Editor#commit()}.
+ * </p>
+ */
+public class KeyValueStoreManager {
+
+  // values of the _type column
+  public static final String TYPE_STRING = "string";
+  public static final String TYPE_INTEGER = "integer";
+  public static final String TYPE_NUMBER = "number";
+  public static final String TYPE_BOOLEAN = "boolean";
+  public static final String TYPE_OBJECT = "object";
+
+  public static final class Entry {
+    public final String aspect;
+    public final String key;
+    public final String type;
+    public final String value;
+
+    Entry(String aspect, String key, String type, String value) {
+      this.aspect = aspect;
+      this.key = key;
+      this.type = type;
+      this.value = value;
+    }
+  }
+
+  private static final class Partition {
+    final long changeCounter;
+    // map of (aspect + '\0' + key) -> Entry
+    final Map<String, Entry> entries;
+
+    Partition(long changeCounter, Map<String, Entry> entries) {
+      this.changeCounter = changeCounter;
+      this.entries = entries;
+    }
+  }
+
+  private final ODKSQLiteOpenHelper dbh;
+  private final String kvsTableName;
+
+  // map of (tableId + '\0' + partition) -> Partition
+  private final ConcurrentHashMap<String, Partition> cache = new ConcurrentHashMap<String, Partition>();
+
+  /**
+   * @param dbh
+   * @param kvsTableName
+   *          -- one of the DataModelDatabaseHelper.KEY_VALUE_STORE_..._TABLE_NAME
+   */
+  public KeyValueStoreManager(ODKSQLiteOpenHelper dbh, String kvsTableName) {
+    this.dbh = dbh;
+    this.kvsTableName = kvsTableName;
+  }
+
+  private static String cacheKey(String first, String second) {
+    return first + '\0' + second;
+  }
+
+  /**
+   * @param tableId
+   * @param partition
+   * @return the entries of the partition (unmodifiable).
+   */
+  public Map<String, Entry> getPartition(String tableId, String partition) {
+    return getCachedPartition(tableId, partition).entries;
+  }
+
+  private Partition getCachedPartition(String tableId, String partition) {
+    SQLiteDatabase db = dbh.getReadableDatabase();
+    long changeCounter = DataModelDatabaseHelper.getChangeCounter(db, kvsTableName);
+    String key = cacheKey(tableId, partition);
+    Partition p = cache.get(key);
+    if (p != null && p.changeCounter == changeCounter && changeCounter != -1L) {
+      return p;
+    }
+
+    Map<String, Entry> entries = new HashMap<String, Entry>();
+    Cursor c = null;
+    try {
+      c = db.query(kvsTableName, new String[] { KeyValueStoreColumns.ASPECT,
+          KeyValueStoreColumns.KEY, KeyValueStoreColumns.VALUE_TYPE, KeyValueStoreColumns.VALUE },
+          KeyValueStoreColumns.TABLE_ID + "=? AND " + KeyValueStoreColumns.PARTITION + "=?",
+          new String[] { tableId, partition }, null, null, null);
+      while (c.moveToNext()) {
+        Entry e = new Entry(c.getString(0), c.getString(1), c.getString(2), c.getString(3));
+        entries.put(cacheKey(e.aspect, e.key), e);
+      }
+    } finally {
+      if (c != null && !c.isClosed()) {
+        c.close();
+      }
+    }
+    p = new Partition(changeCounter, Collections.unmodifiableMap(entries));
+    cache.put(key, p);
+    return p;
+  }
+
+  /**
+   * Drop all cached partitions.
+   */
+  public void invalidate() {
+    cache.clear();
+  }
+
+  public Entry getEntry(String tableId, String partition, String aspect, String key) {
+    return getCachedPartition(tableId, partition).entries.get(cacheKey(aspect, key));
+  }
+
+  public String getString(String tableId, String partition, String aspect, String key) {
+    Entry e = getEntry(tableId, partition, aspect, key);
+    return (e == null) ? null : e.value;
+  }
+
+  public Long getInteger(String tableId, String partition, String aspect, String key) {
+    Entry e = getEntry(tableId, partition, aspect, key);
+    return (e == null || e.value.length() == 0) ? null : Long.valueOf(e.value);
+  }
+
+  public Double getNumber(String tableId, String partition, String aspect, String key) {
+    Entry e = getEntry(tableId, partition, aspect, key);
+    return (e == null || e.value.length() == 0) ? null : Double.valueOf(e.value);
+  }
+
+  public Boolean getBoolean(String tableId, String partition, String aspect, String key) {
+    Entry e = getEntry(tableId, partition, aspect, key);
+    if (e == null || e.value.length() == 0) {
+      return null;
+    }
+    return "true".equalsIgnoreCase(e.value) || "1".equals(e.value);
+  }
+
+  /**
+   * @return the JSON value deserialized as the given class.
+   * @throws IOException
+   */
+  public <T> T getObject(String tableId, String partition, String aspect, String key,
+      Class<T> clazz) throws IOException {
+    Entry e = getEntry(tableId, partition, aspect, key);
+    return (e == null || e.value.length() == 0) ? null : ODKFileUtils.mapper.readValue(e.value,
+        clazz);
+  }
+
+  /**
+   * @return an editor for changing the entries of the partition.
+   */
+  public Editor edit(String tableId, String partition) {
+    return new Editor(tableId, partition);
+  }
+
+  /**
+   * Buffers writes to one (tableId, partition); commit() applies them in a
+   * single transaction.
+   */
+  public final class Editor {
+    private final String tableId;
+    private final String partition;
+    // puts and removes (value == null), in the order they were made
+    private final List<Entry> changes = new ArrayList<Entry>();
+
+    private Editor(String tableId, String partition) {
+      this.tableId = tableId;
+      this.partition = partition;
+    }
+
+    private Editor put(String aspect, String key, String type, String value) {
+      if (value == null) {
+        return remove(aspect, key);
+      }
+      changes.add(new Entry(aspect, key, type, value));
+      return this;
+    }
+
+    public Editor putString(String aspect, String key, String value) {
+      return put(aspect, key, TYPE_STRING, value);
+    }
+
+    public Editor putInteger(String aspect, String key, Long value) {
+      return put(aspect, key, TYPE_INTEGER, (value == null) ? null : value.toString());
+    }
+
+    public Editor putNumber(String aspect, String key, Double value) {
+      return put(aspect, key, TYPE_NUMBER, (value == null) ? null : value.toString());
+    }
+
+    public Editor putBoolean(String aspect, String key, Boolean value) {
+      return put(aspect, key, TYPE_BOOLEAN, (value == null) ? null : value.toString());
+    }
+
+    public Editor putObject(String aspect, String key, Object value) throws IOException {
+      return put(aspect, key, TYPE_OBJECT,
+          (value == null) ? null : ODKFileUtils.mapper.writeValueAsString(value));
+    }
+
+    public Editor remove(String aspect, String key) {
+      changes.add(new Entry(aspect, key, null, null));
+      return this;
+    }
+
+    /**
+     * Apply the buffered writes in one transaction. If a key was written more
+     * than once, the last write wins.
+     */
+    public void commit() {
+      if (changes.isEmpty()) {
+        return;
+      }
+      SQLiteDatabase db = dbh.getWritableDatabase();
+      SQLiteStatement insert = null;
+      SQLiteStatement delete = null;
+      db.beginTransaction();
+      try {
+        //@formatter:off
+        insert = db.compileStatement("INSERT OR REPLACE INTO " + kvsTableName + " ("
+            + KeyValueStoreColumns.TABLE_ID + "," + KeyValueStoreColumns.PARTITION + ","
+            + KeyValueStoreColumns.ASPECT + "," + KeyValueStoreColumns.KEY + ","
+            + KeyValueStoreColumns.VALUE_TYPE + "," + KeyValueStoreColumns.VALUE
+            + ") VALUES (?,?,?,?,?,?)");
+        delete = db.compileStatement("DELETE FROM " + kvsTableName + " WHERE "
+            + KeyValueStoreColumns.TABLE_ID + "=? AND " + KeyValueStoreColumns.PARTITION + "=? AND "
+            + KeyValueStoreColumns.ASPECT + "=? AND " + KeyValueStoreColumns.KEY + "=?");
+        //@formatter:on
+        // a later put or remove of the same key wins
+        Map<String, Entry> last = new HashMap<String, Entry>();
+        for (Entry e : changes) {
+          last.put(cacheKey(e.aspect, e.key), e);
+        }
+        for (Entry e : last.values()) {
+          if (e.value == null) {
+            delete.bindString(1, tableId);
+            delete.bindString(2, partition);
+            delete.bindString(3, e.aspect);
+            delete.bindString(4, e.key);
+            delete.execute();
+          } else {
+            insert.bindString(1, tableId);
+            insert.bindString(2, partition);
+            insert.bindString(3, e.aspect);
+            insert.bindString(4, e.key);
+            insert.bindString(5, e.type);
+            insert.bindString(6, e.value);
+            insert.executeInsert();
+          }
+        }
+        db.setTransactionSuccessful();
+      } finally {
+        db.endTransaction();
+        if (insert != null) {
+          insert.close();
+        }
+        if (delete != null) {
+          delete.close();
+        }
+        cache.remove(cacheKey(tableId, partition));
+      }
+      changes.clear();
+    }
+  }
+}
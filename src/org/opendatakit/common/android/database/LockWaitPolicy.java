@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2014 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.common.android.database;
+
+import java.util.Random;
+
+/**
+ * How long to wait for a locked database.
+ *
+ * busyTimeoutMillis is handed to SQLite (PRAGMA busy_timeout) and bounds
+ * the wait of an individual statement. It is set on the helper's primary
+ * connection only; with write-ahead logging, the reader connections of
+ * Android's connection pool keep the framework's busy timeout. If the database cannot be opened,
+ * {@link ODKSQLiteOpenHelper#getWritableDatabase()} retries with exponential
+ * backoff (starting at initialBackoffMillis, doubling up to
+ * maxBackoffMillis, with random jitter) until deadlineMillis have elapsed.
+ */
+public final class LockWaitPolicy {
+
+  public static final LockWaitPolicy DEFAULT = new LockWaitPolicy(2500L, 10L, 500L, 5000L);
+
+  private static final Random random = new Random();
+
+  public final long busyTimeoutMillis;
+  public final long initialBackoffMillis;
+  public final long maxBackoffMillis;
+  public final long deadlineMillis;
+
+  public LockWaitPolicy(long busyTimeoutMillis, long initialBackoffMillis, long maxBackoffMillis,
+      long deadlineMillis) {
+    if (busyTimeoutMillis < 0 || initialBackoffMillis < 1 || maxBackoffMillis < initialBackoffMillis
+        || deadlineMillis < 0) {
+      throw new IllegalArgumentException("Invalid lock wait policy");
+    }
+    this.busyTimeoutMillis = busyTimeoutMillis;
+    this.initialBackoffMillis = initialBackoffMillis;
+    this.maxBackoffMillis = maxBackoffMillis;
+    this.deadlineMillis = deadlineMillis;
+  }
+
+  /**
+   * @param retry
+   *          -- 0 for the first retry
+   * @return how long to sleep before the given retry: half the backoff plus a
+   *         random amount up to the other half.
+   */
+  long getBackoffMillis(int retry) {
+    long backoff = initialBackoffMillis << Math.min(retry, 30);
+    if (backoff <= 0 || backoff > maxBackoffMillis) {
+      backoff = maxBackoffMillis;
+    }
+    long half = backoff / 2;
+    return half + (long) (random.nextDouble() * (backoff - half));
+  }
+}
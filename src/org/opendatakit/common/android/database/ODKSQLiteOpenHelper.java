@@ -15,10 +15,24 @@
 package org.opendatakit.common.android.database;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import android.annotation.TargetApi;
+import android.database.Cursor;
+import android.database.DataSetObserver;
+import android.database.sqlite.SQLiteCursor;
+import android.database.sqlite.SQLiteCursorDriver;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteDatabase.CursorFactory;
 import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteQuery;
+import android.os.Build;
+import android.os.SystemClock;
 import android.util.Log;
 
 /**
@@ -48,9 +62,30 @@ public abstract class ODKSQLiteOpenHelper {
   private final CursorFactory mFactory;
   private final int mNewVersion;
 
-  private SQLiteDatabase mDatabase = null;
+  private volatile SQLiteDatabase mDatabase = null;
   private boolean mIsInitializing = false;
 
+  // write-ahead logging (opt-in; API 16 and higher)
+  private boolean mEnableWriteAheadLogging = false;
+
+  private volatile LockWaitPolicy mLockWaitPolicy = LockWaitPolicy.DEFAULT;
+
+  // for closing idle or least-recently-used databases (optional)
+  private volatile OpenDatabaseBudget mBudget = null;
+  private volatile long mLastAccess = 0L;
+  private final AtomicBoolean mOpenedSinceBudgetCheck = new AtomicBoolean(false);
+
+  // open cursors plus acquire() calls not yet released; the database is never
+  // closed as idle while this is non-zero
+  private final AtomicInteger mActiveUses = new AtomicInteger(0);
+  // guarded by this
+  private boolean mCloseWhenReleased = false;
+
+  // the helper of each open database, for code that is only handed the
+  // SQLiteDatabase (see acquire(SQLiteDatabase))
+  private static final Map<SQLiteDatabase, ODKSQLiteOpenHelper> sHelpers = Collections
+      .synchronizedMap(new WeakHashMap<SQLiteDatabase, ODKSQLiteOpenHelper>());
+
   /**
    * Create a helper object to create, open, and/or manage a database. The
    * database is not actually created or opened until one of
@@ -72,7 +107,7 @@ public abstract class ODKSQLiteOpenHelper {
 
     mPath = path;
     mName = name;
-    mFactory = factory;
+    mFactory = new InUseCursorFactory(factory);
     mNewVersion = version;
   }
 
@@ -91,27 +126,227 @@ public abstract class ODKSQLiteOpenHelper {
    * @return a read/write database object valid until {@link #close} is called
    */
   public SQLiteDatabase getWritableDatabase() {
-    int attempts = 1;
-    for (;; ++attempts) {
+    LockWaitPolicy policy = mLockWaitPolicy;
+    long start = SystemClock.elapsedRealtime();
+    mLastAccess = start;
+    int retry = 0;
+    for (;;) {
       try {
         SQLiteDatabase db = getPrivateWritableDatabase();
+        if (retry != 0) {
+          getMetrics().record(DatabaseMetrics.LOCK_WAIT_MILLIS, SystemClock.elapsedRealtime() - start);
+        }
+        checkBudget();
         return db;
       } catch (SQLiteException ex) {
-        ex.printStackTrace();
-        Log.i(t, "unable to access database");
-        if (attempts > 3) {
+        long elapsed = SystemClock.elapsedRealtime() - start;
+        if (elapsed >= policy.deadlineMillis) {
+          getMetrics().increment(DatabaseMetrics.LOCK_FAILURES);
+          Log.e(t, "unable to access database " + mName + " after " + (retry + 1)
+              + " attempts: " + ex.toString());
           throw ex;
         }
+        if (retry == 0) {
+          getMetrics().increment(DatabaseMetrics.LOCK_WAITS);
+          Log.i(t, "unable to access database " + mName + " -- will retry: " + ex.toString());
+        }
+        long sleep = Math.min(policy.getBackoffMillis(retry), policy.deadlineMillis - elapsed);
+        ++retry;
         try {
-          Thread.sleep(50L);
+          Thread.sleep(sleep);
         } catch (InterruptedException e) {
-          e.printStackTrace();
-          Log.i(t, "resuming sleep after unable to access database");
+          Thread.currentThread().interrupt();
+          getMetrics().increment(DatabaseMetrics.LOCK_FAILURES);
+          throw ex;
         }
       }
     }
   }
 
+  /**
+   * Set the policy for waiting on a locked database. Applied to connections
+   * opened after this call.
+   *
+   * @param policy
+   */
+  public void setLockWaitPolicy(LockWaitPolicy policy) {
+    if (policy == null) {
+      throw new IllegalArgumentException("policy cannot be null");
+    }
+    mLockWaitPolicy = policy;
+  }
+
+  /**
+   * @return the metrics for this database file.
+   */
+  public DatabaseMetrics getMetrics() {
+    return DatabaseMetrics.getMetrics((mName == null) ? ":memory:" : mPath + File.separator + mName);
+  }
+
+  void setOpenDatabaseBudget(OpenDatabaseBudget budget) {
+    mBudget = budget;
+  }
+
+  /**
+   * @return SystemClock.elapsedRealtime() of the last get...Database() call.
+   */
+  public long getLastAccessTime() {
+    return mLastAccess;
+  }
+
+  /**
+   * @return true if the database is currently open.
+   */
+  public boolean isOpen() {
+    SQLiteDatabase db = mDatabase;
+    return db != null && db.isOpen();
+  }
+
+  /**
+   * Mark the database as in use, so that it is not closed as idle (or least
+   * recently used) by an {@link OpenDatabaseBudget}. Open cursors already
+   * count as uses; code that holds on to the SQLiteDatabase across calls
+   * (e.g., a transaction spanning several statements, or a long-running
+   * export) must call acquire() before getting the database and release() in
+   * a finally block when done.
+   */
+  public void acquire() {
+    mActiveUses.incrementAndGet();
+  }
+
+  /**
+   * Undo one {@link #acquire()}.
+   */
+  public void release() {
+    int uses = mActiveUses.decrementAndGet();
+    if (uses < 0) {
+      mActiveUses.incrementAndGet();
+      throw new IllegalStateException("release() without acquire() on " + mName);
+    }
+    if (uses == 0) {
+      closeIfReleased();
+    }
+  }
+
+  /**
+   * @return true if there are open cursors or unreleased acquire() calls.
+   */
+  public boolean isInUse() {
+    return mActiveUses.get() != 0;
+  }
+
+  /**
+   * @return the number of open cursors plus unreleased acquire() calls.
+   */
+  int getActiveUseCount() {
+    return mActiveUses.get();
+  }
+
+  /**
+   * {@link #acquire()} the helper of the database, if it was opened by one.
+   *
+   * @param db
+   * @return the helper, to be released when done, or null.
+   */
+  public static ODKSQLiteOpenHelper acquire(SQLiteDatabase db) {
+    ODKSQLiteOpenHelper helper = sHelpers.get(db);
+    if (helper != null) {
+      helper.acquire();
+    }
+    return helper;
+  }
+
+  private void registerDatabase(SQLiteDatabase db) {
+    sHelpers.put(db, this);
+  }
+
+  /**
+   * For background maintenance: acquire() the writable database if it is
+   * currently open, without opening it or counting as an access. The caller
+   * must release() if a database is returned.
+   *
+   * @return null if the writable database is not open.
+   */
+  synchronized SQLiteDatabase acquireWritableDatabaseIfOpen() {
+    SQLiteDatabase db = mDatabase;
+    if (mIsInitializing || db == null || !db.isOpen() || db.isReadOnly()) {
+      return null;
+    }
+    acquire();
+    return db;
+  }
+
+  /**
+   * Close the database if it is not in use and has not been accessed for
+   * idleMillis. It is reopened on the next get...Database() call. Callers
+   * that acquire() the helper after this check get the reopened database.
+   *
+   * @param idleMillis
+   * @return true if the database was closed.
+   */
+  synchronized boolean closeIfIdle(long idleMillis) {
+    if (mIsInitializing || !isOpen() || isInUse()
+        || SystemClock.elapsedRealtime() - mLastAccess < idleMillis) {
+      return false;
+    }
+    close();
+    return true;
+  }
+
+  /**
+   * For a helper that is no longer handed out (e.g., its storage was
+   * unmounted): close the database now if it is not in use, otherwise as
+   * soon as the last use is released.
+   */
+  synchronized void closeWhenReleased() {
+    mCloseWhenReleased = true;
+    closeIfReleased();
+  }
+
+  private synchronized void closeIfReleased() {
+    if (mCloseWhenReleased && !mIsInitializing && !isInUse() && isOpen()) {
+      try {
+        close();
+      } catch (Exception e) {
+        Log.w(t, "Unable to close " + mName + ": " + e.toString());
+      }
+    }
+  }
+
+  /**
+   * Let the budget (if any) close other databases now that this one is open.
+   * Skipped while holding our own lock (the outermost call will do it) so that
+   * we never hold two helper locks at once.
+   */
+  private void checkBudget() {
+    OpenDatabaseBudget budget = mBudget;
+    if (budget != null && !Thread.holdsLock(this) && mOpenedSinceBudgetCheck.getAndSet(false)) {
+      budget.enforce();
+    }
+  }
+
+  /**
+   * Apply the busy timeout of the LockWaitPolicy to the connection that db
+   * uses outside the connection pool. With write-ahead logging, the pool's
+   * additional (reader) connections are opened by the framework without a
+   * hook for per-connection settings, so they keep the framework's own busy
+   * timeout. Readers rarely need to wait under WAL: only checkpoints and WAL
+   * recovery take the locks that they wait for.
+   */
+  private void applyBusyTimeout(SQLiteDatabase db) {
+    // PRAGMA busy_timeout returns a row, so it cannot go through execSQL.
+    // Older SQLite versions silently ignore it (Android's own timeout applies).
+    Cursor c = null;
+    try {
+      c = db.rawQuery("PRAGMA busy_timeout = " + mLockWaitPolicy.busyTimeoutMillis, null);
+      c.moveToFirst();
+    } finally {
+      if (c != null && !c.isClosed()) {
+        c.close();
+      }
+    }
+  }
+
   private synchronized SQLiteDatabase getPrivateWritableDatabase() {
     if (mDatabase != null && mDatabase.isOpen() && !mDatabase.isReadOnly()) {
       return mDatabase; // The database is already open for business
@@ -137,7 +372,9 @@ public abstract class ODKSQLiteOpenHelper {
       } else {
         db = SQLiteDatabase.openOrCreateDatabase(mPath + File.separator + mName, mFactory);
         // db = mContext.openOrCreateDatabase(mName, 0, mFactory);
+        applyBusyTimeout(db);
       }
+      onConfigure(db);
 
       int version = db.getVersion();
       if (version != mNewVersion) {
@@ -156,6 +393,12 @@ public abstract class ODKSQLiteOpenHelper {
       }
 
       onOpen(db);
+      if (mEnableWriteAheadLogging) {
+        enableWriteAheadLogging(db);
+      }
+      getMetrics().increment(DatabaseMetrics.OPENS);
+      mOpenedSinceBudgetCheck.set(true);
+      registerDatabase(db);
       success = true;
       return db;
     } finally {
@@ -177,6 +420,53 @@ public abstract class ODKSQLiteOpenHelper {
     }
   }
 
+  /**
+   * Enable or disable write-ahead logging. When enabled, the database is put
+   * into WAL mode and Android's connection pool runs queries issued from
+   * different threads on separate connections, so that reads do not block
+   * behind (or block) a long-running write transaction. A thread that holds a
+   * transaction runs its queries on that transaction's connection and sees its
+   * own uncommitted changes.
+   * <p>
+   * Only honored on API 16 and higher. The mode cannot change while
+   * transactions or cursors are active; it is then changed when the database
+   * is next opened.
+   * </p>
+   *
+   * @param enabled
+   */
+  @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+  public synchronized void setWriteAheadLoggingEnabled(boolean enabled) {
+    if (mEnableWriteAheadLogging == enabled) {
+      return;
+    }
+    if (enabled && (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN || mName == null)) {
+      Log.w(t, "Write-ahead logging is not supported for " + mName);
+      return;
+    }
+    mEnableWriteAheadLogging = enabled;
+    if (mDatabase != null && mDatabase.isOpen() && !mDatabase.isReadOnly()) {
+      try {
+        if (enabled) {
+          enableWriteAheadLogging(mDatabase);
+        } else {
+          mDatabase.disableWriteAheadLogging();
+        }
+      } catch (IllegalStateException e) {
+        Log.w(t, "Write-ahead logging on " + mName + " will change when it is next opened: "
+            + e.toString());
+      }
+    }
+  }
+
+  @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+  private void enableWriteAheadLogging(SQLiteDatabase db) {
+    if (!db.enableWriteAheadLogging()) {
+      Log.w(t, "Unable to enable write-ahead logging on " + mName);
+      mEnableWriteAheadLogging = false;
+    }
+  }
+
   /**
    * Create and/or open a database. This will be the same object returned by
    * {@link #getWritableDatabase} unless some problem, such as a full disk,
@@ -191,7 +481,14 @@ public abstract class ODKSQLiteOpenHelper {
    * @return a database object valid until {@link #getWritableDatabase} or
    *         {@link #close} is called.
    */
-  public synchronized SQLiteDatabase getReadableDatabase() {
+  public SQLiteDatabase getReadableDatabase() {
+    mLastAccess = SystemClock.elapsedRealtime();
+    SQLiteDatabase db = getPrivateReadableDatabase();
+    checkBudget();
+    return db;
+  }
+
+  private synchronized SQLiteDatabase getPrivateReadableDatabase() {
     if (mDatabase != null && mDatabase.isOpen()) {
       return mDatabase; // The database is already open for business
     }
@@ -214,6 +511,7 @@ public abstract class ODKSQLiteOpenHelper {
       String path = mPath + File.separator + mName;
       // mContext.getDatabasePath(mName).getPath();
       db = SQLiteDatabase.openDatabase(path, mFactory, SQLiteDatabase.OPEN_READONLY);
+      applyBusyTimeout(db);
       if (db.getVersion() != mNewVersion) {
         throw new SQLiteException("Can't upgrade read-only database from version "
             + db.getVersion() + " to " + mNewVersion + ": " + path);
@@ -221,6 +519,9 @@ public abstract class ODKSQLiteOpenHelper {
 
       onOpen(db);
       Log.w(t, "Opened " + mName + " in read-only mode");
+      getMetrics().increment(DatabaseMetrics.OPENS);
+      mOpenedSinceBudgetCheck.set(true);
+      registerDatabase(db);
       mDatabase = db;
       return mDatabase;
     } finally {
@@ -273,6 +574,68 @@ public abstract class ODKSQLiteOpenHelper {
    */
   public abstract void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion);
 
+  /**
+   * Back up the database, while it remains in use, into a new file in
+   * outputDir.
+   *
+   * @param outputDir
+   *          -- e.g., ODKFileUtils.getOutputFolder(appName)
+   * @param compress
+   *          -- if true, the backup is stored as a zip archive.
+   * @return
+   * @throws IOException
+   * @throws InterruptedException
+   * @see DatabaseBackup
+   */
+  public DatabaseBackup.Result backup(File outputDir, boolean compress) throws IOException,
+      InterruptedException {
+    DatabaseBackup backup = new DatabaseBackup(this);
+    backup.setCompress(compress);
+    return backup.backupTo(outputDir);
+  }
+
+  /**
+   * @param tableName
+   * @return false to leave the table (and its indexes and triggers) out of
+   *         backups.
+   */
+  protected boolean includeInBackup(String tableName) {
+    return true;
+  }
+
+  /**
+   * Called with the backup's read-only connection to the database file
+   * before anything is copied. A backup copies only that file, so a helper
+   * that keeps part of its data in other files must refuse here.
+   *
+   * @param source
+   * @throws IOException
+   *           -- if the database cannot be backed up.
+   */
+  protected void checkBackup(SQLiteDatabase source) throws IOException {
+  }
+
+  /**
+   * Called with the copy, after its rows are copied and before its indexes
+   * and triggers are created, inside a transaction on the copy.
+   *
+   * @param backup
+   */
+  protected void onBackupCopied(SQLiteDatabase backup) {
+  }
+
+  /**
+   * Called when the database has been opened for writing, before it is
+   * created, upgraded or opened, and outside of any transaction. This is
+   * where settings that must precede the creation of any table (e.g.,
+   * auto_vacuum) are applied.
+   *
+   * @param db
+   *          The database.
+   */
+  public void onConfigure(SQLiteDatabase db) {
+  }
+
   /**
    * Called when the database has been opened. Override method should check
    * {@link SQLiteDatabase#isReadOnly} before updating the database.
@@ -282,4 +645,43 @@ public abstract class ODKSQLiteOpenHelper {
    */
   public void onOpen(SQLiteDatabase db) {
   }
+
+  /**
+   * Counts each cursor as a use of the database until it is closed. The
+   * cursors are those of the wrapped factory (or plain SQLiteCursors), so that
+   * they can still be handed across processes.
+   */
+  private final class InUseCursorFactory implements CursorFactory {
+    private final CursorFactory factory;
+
+    InUseCursorFactory(CursorFactory factory) {
+      this.factory = factory;
+    }
+
+    @SuppressWarnings("deprecation")
+    @Override
+    public Cursor newCursor(SQLiteDatabase db, SQLiteCursorDriver masterQuery, String editTable,
+        SQLiteQuery query) {
+      final Cursor c = (factory == null) ? new SQLiteCursor(db, masterQuery, editTable, query)
+          : factory.newCursor(db, masterQuery, editTable, query);
+      acquire();
+      // close() (also reached through finalize() for leaked cursors) notifies
+      // the observers that the data set is invalid
+      c.registerDataSetObserver(new DataSetObserver() {
+        private boolean released = false;
+
+        @Override
+        public void onInvalidated() {
+          synchronized (this) {
+            if (released || !c.isClosed()) {
+              return;
+            }
+            released = true;
+          }
+          release();
+        }
+      });
+      return c;
+    }
+  }
 }
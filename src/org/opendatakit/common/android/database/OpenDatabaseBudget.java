@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2014 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.common.android.database;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import android.util.Log;
+
+/**
+ * Bounds the number of databases held open by a set of helpers (one per
+ * appName). When more than maxOpenDatabases are open, the least recently used
+ * ones are closed; any database that has not been used for idleCloseMillis is
+ * also closed. A closed helper reopens its database on the next
+ * getWritableDatabase() or getReadableDatabase() call.
+ * <p>
+ * A database that is in use (open cursors, or an unreleased
+ * {@link ODKSQLiteOpenHelper#acquire()}) or that was used within the last
+ * MIN_EVICTION_IDLE_MILLIS is never closed, so the budget is a soft limit
+ * when every database is busy.
+ * </p>
+ */
+public final class OpenDatabaseBudget {
+  private static final String t = "OpenDatabaseBudget";
+
+  public static final int DEFAULT_MAX_OPEN_DATABASES = 8;
+  public static final long DEFAULT_IDLE_CLOSE_MILLIS = 5L * 60L * 1000L;
+  public static final long MIN_EVICTION_IDLE_MILLIS = 30L * 1000L;
+
+  private volatile int maxOpenDatabases;
+  private volatile long idleCloseMillis;
+
+  // guarded by this
+  private final Set<ODKSQLiteOpenHelper> helpers = new HashSet<ODKSQLiteOpenHelper>();
+  private ScheduledExecutorService sweeper = null;
+
+  public OpenDatabaseBudget(int maxOpenDatabases, long idleCloseMillis) {
+    setMaxOpenDatabases(maxOpenDatabases);
+    setIdleCloseMillis(idleCloseMillis);
+  }
+
+  public void setMaxOpenDatabases(int maxOpenDatabases) {
+    if (maxOpenDatabases < 1) {
+      throw new IllegalArgumentException("maxOpenDatabases must be >= 1, was " + maxOpenDatabases);
+    }
+    this.maxOpenDatabases = maxOpenDatabases;
+  }
+
+  public int getMaxOpenDatabases() {
+    return maxOpenDatabases;
+  }
+
+  /**
+   * @param idleCloseMillis
+   *          -- takes effect at the next idle sweep.
+   */
+  public void setIdleCloseMillis(long idleCloseMillis) {
+    if (idleCloseMillis < MIN_EVICTION_IDLE_MILLIS) {
+      throw new IllegalArgumentException("idleCloseMillis must be >= " + MIN_EVICTION_IDLE_MILLIS
+          + ", was " + idleCloseMillis);
+    }
+    this.idleCloseMillis = idleCloseMillis;
+  }
+
+  public long getIdleCloseMillis() {
+    return idleCloseMillis;
+  }
+
+  /**
+   * Place the helper under this budget.
+   *
+   * @param helper
+   */
+  public synchronized void register(ODKSQLiteOpenHelper helper) {
+    if (helpers.add(helper)) {
+      helper.setOpenDatabaseBudget(this);
+    }
+    if (sweeper == null) {
+      sweeper = Executors.newSingleThreadScheduledExecutor();
+      sweeper.scheduleWithFixedDelay(new Runnable() {
+        @Override
+        public void run() {
+          sweep();
+        }
+      }, MIN_EVICTION_IDLE_MILLIS, MIN_EVICTION_IDLE_MILLIS, TimeUnit.MILLISECONDS);
+    }
+    Log.i(t, "register: " + helpers.size() + " helpers, " + countOpen() + " open");
+  }
+
+  /**
+   * Release all helpers from this budget. Their databases are closed once they
+   * are no longer in use. As with enforce(), the helpers are closed outside
+   * of the budget lock.
+   */
+  public void clear() {
+    List<ODKSQLiteOpenHelper> dropped;
+    synchronized (this) {
+      dropped = new ArrayList<ODKSQLiteOpenHelper>(helpers);
+      helpers.clear();
+      if (sweeper != null) {
+        sweeper.shutdown();
+        sweeper = null;
+      }
+    }
+    for (ODKSQLiteOpenHelper helper : dropped) {
+      helper.setOpenDatabaseBudget(null);
+      helper.closeWhenReleased();
+    }
+  }
+
+  /**
+   * @return the number of registered helpers with an open database.
+   */
+  public synchronized int getOpenCount() {
+    return countOpen();
+  }
+
+  private int countOpen() {
+    int count = 0;
+    for (ODKSQLiteOpenHelper helper : helpers) {
+      if (helper.isOpen()) {
+        ++count;
+      }
+    }
+    return count;
+  }
+
+  /**
+   * @return the open helpers, least recently used first.
+   */
+  private synchronized List<ODKSQLiteOpenHelper> getOpenHelpersByLastAccess() {
+    List<ODKSQLiteOpenHelper> open = new ArrayList<ODKSQLiteOpenHelper>();
+    for (ODKSQLiteOpenHelper helper : helpers) {
+      if (helper.isOpen()) {
+        open.add(helper);
+      }
+    }
+    Collections.sort(open, new Comparator<ODKSQLiteOpenHelper>() {
+      @Override
+      public int compare(ODKSQLiteOpenHelper lhs, ODKSQLiteOpenHelper rhs) {
+        long l = lhs.getLastAccessTime();
+        long r = rhs.getLastAccessTime();
+        return (l < r) ? -1 : ((l == r) ? 0 : 1);
+      }
+    });
+    return open;
+  }
+
+  /**
+   * Called by a helper after it opens its database. The victims are chosen
+   * under the budget lock but closed outside of it, since closing takes the
+   * victim's own lock.
+   */
+  void enforce() {
+    List<ODKSQLiteOpenHelper> open = getOpenHelpersByLastAccess();
+    int excess = open.size() - maxOpenDatabases;
+    for (int i = 0; i < open.size() && excess > 0; ++i) {
+      ODKSQLiteOpenHelper victim = open.get(i);
+      if (victim.closeIfIdle(MIN_EVICTION_IDLE_MILLIS)) {
+        --excess;
+        victim.getMetrics().increment(DatabaseMetrics.EVICTIONS);
+        Log.i(t, "enforce: evicted " + victim.getMetrics().dbFilePath);
+      }
+    }
+    if (excess > 0) {
+      Log.w(t, "enforce: " + open.size() + " databases open (budget " + maxOpenDatabases
+          + ") -- all recently used");
+    }
+  }
+
+  /**
+   * Close every database that has been idle for idleCloseMillis.
+   */
+  void sweep() {
+    long idle = idleCloseMillis;
+    for (ODKSQLiteOpenHelper helper : getOpenHelpersByLastAccess()) {
+      try {
+        if (helper.closeIfIdle(idle)) {
+          helper.getMetrics().increment(DatabaseMetrics.IDLE_CLOSES);
+          Log.i(t, "sweep: closed idle " + helper.getMetrics().dbFilePath);
+        }
+      } catch (Exception e) {
+        Log.w(t, "sweep: unable to close " + helper.getMetrics().dbFilePath + ": " + e.toString());
+      }
+    }
+  }
+}
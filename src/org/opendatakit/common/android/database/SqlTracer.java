@@ -0,0 +1,241 @@
+/*
+ * Copyright (C) 2014 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.common.android.database;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+import org.opendatakit.common.android.utilities.WebLogger;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteCursor;
+import android.database.sqlite.SQLiteCursorDriver;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDatabase.CursorFactory;
+import android.database.sqlite.SQLiteQuery;
+import android.os.SystemClock;
+
+/**
+ * SQL tracing for the databases of one appName. Switched off by default.
+ * <p>
+ * When enabled, the latency and row count of each query (through the
+ * {@link #getCursorFactory()} cursors) and each statement (through the
+ * execSQL/insert/update/delete wrappers) are recorded in the
+ * {@link DatabaseMetrics} of the database file, keyed by the shape of the SQL
+ * (literals replaced by ?). Statements taking at least
+ * slowQueryThresholdMillis are written to the WebLogger of the appName.
+ * </p>
+ */
+public final class SqlTracer {
+  private static final String t = "SqlTracer";
+
+  public static final long DEFAULT_SLOW_QUERY_THRESHOLD_MILLIS = 200L;
+
+  // histogram name prefixes in DatabaseMetrics
+  public static final String SQL_MILLIS_PREFIX = "sqlMillis:";
+  public static final String SQL_ROWS_PREFIX = "sqlRows:";
+
+  // bound on the number of distinct shapes tracked per appName
+  private static final int MAX_SHAPES = 256;
+  private static final String OTHER_SHAPE = "<other>";
+
+  private static final Pattern STRING_LITERAL = Pattern.compile("'(?:[^']|'')*'");
+  private static final Pattern NUMERIC_LITERAL = Pattern
+      .compile("(?<![\\w\"])-?\\d+(?:\\.\\d+)?(?:[eE][-+]?\\d+)?(?![\\w\"])");
+  private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+  private static final Pattern PARAMETER_LIST = Pattern.compile("\\?(?:\\s*,\\s*\\?)+");
+
+  private static final ConcurrentHashMap<String, SqlTracer> tracers = new ConcurrentHashMap<String, SqlTracer>();
+
+  /**
+   * Get (creating if necessary) the tracer for the appName.
+   *
+   * @param appName
+   * @return
+   */
+  public static SqlTracer getTracer(String appName) {
+    SqlTracer tracer = tracers.get(appName);
+    if (tracer == null) {
+      SqlTracer newTracer = new SqlTracer(appName);
+      tracer = tracers.putIfAbsent(appName, newTracer);
+      if (tracer == null) {
+        tracer = newTracer;
+      }
+    }
+    return tracer;
+  }
+
+  /**
+   * Reduce the SQL to its shape: string and numeric literals become ?, lists of
+   * parameters become a single "?,..." and whitespace is collapsed.
+   *
+   * @param sql
+   * @return
+   */
+  public static String getSqlShape(String sql) {
+    if (sql == null) {
+      return "";
+    }
+    String shape = STRING_LITERAL.matcher(sql).replaceAll("?");
+    shape = NUMERIC_LITERAL.matcher(shape).replaceAll("?");
+    shape = WHITESPACE.matcher(shape).replaceAll(" ").trim();
+    shape = PARAMETER_LIST.matcher(shape).replaceAll("?,...");
+    return shape;
+  }
+
+  public final String appName;
+  private volatile boolean enabled = false;
+  private volatile long slowQueryThresholdMillis = DEFAULT_SLOW_QUERY_THRESHOLD_MILLIS;
+  private final ConcurrentHashMap<String, Boolean> shapes = new ConcurrentHashMap<String, Boolean>();
+  private final CursorFactory cursorFactory = new TracingCursorFactory();
+
+  private SqlTracer(String appName) {
+    this.appName = appName;
+  }
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  public void setEnabled(boolean enabled) {
+    this.enabled = enabled;
+  }
+
+  public long getSlowQueryThresholdMillis() {
+    return slowQueryThresholdMillis;
+  }
+
+  public void setSlowQueryThresholdMillis(long slowQueryThresholdMillis) {
+    this.slowQueryThresholdMillis = slowQueryThresholdMillis;
+  }
+
+  /**
+   * @return the cursor factory to pass to the database helpers of this
+   *         appName. It produces ordinary SQLiteCursors while tracing is off.
+   */
+  public CursorFactory getCursorFactory() {
+    return cursorFactory;
+  }
+
+  void record(SQLiteDatabase db, String sql, long elapsedMillis, int rows) {
+    String shape = getSqlShape(sql);
+    if (!shapes.containsKey(shape)) {
+      if (shapes.size() < MAX_SHAPES) {
+        shapes.putIfAbsent(shape, Boolean.TRUE);
+      } else {
+        shape = OTHER_SHAPE;
+      }
+    }
+    DatabaseMetrics metrics = DatabaseMetrics.getMetrics(db.getPath());
+    metrics.record(SQL_MILLIS_PREFIX + shape, elapsedMillis);
+    if (rows >= 0) {
+      metrics.record(SQL_ROWS_PREFIX + shape, rows);
+    }
+    if (elapsedMillis >= slowQueryThresholdMillis) {
+      WebLogger.getLogger(appName).w(t,
+          "slow sql (" + elapsedMillis + "ms, " + rows + " rows): " + shape);
+    }
+  }
+
+  public void execSQL(SQLiteDatabase db, String sql, Object[] bindArgs) {
+    if (!enabled) {
+      db.execSQL(sql, bindArgs);
+      return;
+    }
+    long start = SystemClock.elapsedRealtime();
+    db.execSQL(sql, bindArgs);
+    record(db, sql, SystemClock.elapsedRealtime() - start, -1);
+  }
+
+  public long insert(SQLiteDatabase db, String table, String nullColumnHack, ContentValues values) {
+    if (!enabled) {
+      return db.insert(table, nullColumnHack, values);
+    }
+    long start = SystemClock.elapsedRealtime();
+    long rowId = db.insert(table, nullColumnHack, values);
+    record(db, "INSERT INTO " + table, SystemClock.elapsedRealtime() - start, (rowId == -1) ? 0
+        : 1);
+    return rowId;
+  }
+
+  public int update(SQLiteDatabase db, String table, ContentValues values, String whereClause,
+      String[] whereArgs) {
+    if (!enabled) {
+      return db.update(table, values, whereClause, whereArgs);
+    }
+    long start = SystemClock.elapsedRealtime();
+    int count = db.update(table, values, whereClause, whereArgs);
+    record(db, "UPDATE " + table + " SET ?,..." + ((whereClause == null) ? "" : " WHERE " + whereClause),
+        SystemClock.elapsedRealtime() - start, count);
+    return count;
+  }
+
+  public int delete(SQLiteDatabase db, String table, String whereClause, String[] whereArgs) {
+    if (!enabled) {
+      return db.delete(table, whereClause, whereArgs);
+    }
+    long start = SystemClock.elapsedRealtime();
+    int count = db.delete(table, whereClause, whereArgs);
+    record(db, "DELETE FROM " + table + ((whereClause == null) ? "" : " WHERE " + whereClause),
+        SystemClock.elapsedRealtime() - start, count);
+    return count;
+  }
+
+  private class TracingCursorFactory implements CursorFactory {
+    @SuppressWarnings("deprecation")
+    @Override
+    public Cursor newCursor(SQLiteDatabase db, SQLiteCursorDriver masterQuery, String editTable,
+        SQLiteQuery query) {
+      if (!enabled) {
+        return new SQLiteCursor(db, masterQuery, editTable, query);
+      }
+      return new TracingCursor(db, masterQuery, editTable, query);
+    }
+  }
+
+  /**
+   * The query is executed when the cursor first fills its window, which
+   * happens on the first getCount() (every move calls it).
+   */
+  private class TracingCursor extends SQLiteCursor {
+    private final SQLiteDatabase db;
+    private final String sql;
+    private boolean counted = false;
+
+    @SuppressWarnings("deprecation")
+    TracingCursor(SQLiteDatabase db, SQLiteCursorDriver masterQuery, String editTable,
+        SQLiteQuery query) {
+      super(db, masterQuery, editTable, query);
+      this.db = db;
+      // SQLiteQuery.toString() is "SQLiteQuery: " + sql
+      String s = query.toString();
+      int idx = (s == null) ? -1 : s.indexOf(": ");
+      this.sql = (idx == -1) ? s : s.substring(idx + 2);
+    }
+
+    @Override
+    public int getCount() {
+      if (counted) {
+        return super.getCount();
+      }
+      long start = SystemClock.elapsedRealtime();
+      int count = super.getCount();
+      counted = true;
+      record(db, sql, SystemClock.elapsedRealtime() - start, count);
+      return count;
+    }
+  }
+}
@@ -17,6 +17,7 @@ package org.opendatakit.common.android.database;
 import java.io.File;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 
 import android.content.Context;
 import android.database.Cursor;
@@ -26,6 +27,9 @@ import android.util.Log;
 public class WebSqlDatabaseHelper {
   private static final String t = "WebSqlDatabaseHelper";
 
+  // map of webDb folder path to the resolved instance database definition
+  private static final ConcurrentHashMap<String, WebDbDefinition> resolvedDefinitions = new ConcurrentHashMap<String, WebDbDefinition>();
+
   private List<WebDbDefinition> webDatabasePaths;
 
   public WebSqlDatabaseHelper(Context context, String path) {
@@ -71,6 +75,76 @@ public class WebSqlDatabaseHelper {
     Log.i(t, "Number of web databases found: " + webDatabasePaths.size());
   }
 
+  /**
+   * Get the definition of the instance ("odk") database in the given webDb
+   * folder. Once Databases.db exists, only its row for the instance database
+   * is read, over a read-only connection. The definition is cached in memory
+   * and the same object is returned while that row is unchanged.
+   *
+   * @param context
+   * @param path
+   *          -- the webDb folder
+   * @return the definition, or null if there is no instance database.
+   */
+  public static WebDbDefinition getInstanceDatabaseDefinition(Context context, String path) {
+    File databasesDb = new File(path, WebDbDatabaseHelper.WEBDB_DATABASE_NAME);
+    if (!databasesDb.exists()) {
+      // created (with the instance database row) by WebDbDatabaseHelper
+      WebDbDefinition defn = new WebSqlDatabaseHelper(context, path).getWebKitDatabaseInfoHelper();
+      if (defn == null) {
+        resolvedDefinitions.remove(path);
+      } else {
+        resolvedDefinitions.put(path, defn);
+      }
+      return defn;
+    }
+
+    WebDbDefinition defn = null;
+    SQLiteDatabase db = null;
+    Cursor c = null;
+    try {
+      db = SQLiteDatabase.openDatabase(databasesDb.getAbsolutePath(), null,
+          SQLiteDatabase.OPEN_READONLY | SQLiteDatabase.NO_LOCALIZED_COLLATORS);
+      c = db.query(WebDbDatabaseHelper.WEBDB_DATABASES_TABLE, new String[] {
+          WebDbDatabaseHelper.DATABASES_NAME, WebDbDatabaseHelper.DATABASES_DISPLAY_NAME,
+          WebDbDatabaseHelper.COMMON_ORIGIN, WebDbDatabaseHelper.DATABASES_PATH,
+          WebDbDatabaseHelper.DATABASES_ESTIMATED_SIZE }, WebDbDatabaseHelper.DATABASES_NAME
+          + " = ? COLLATE NOCASE", new String[] { WebDbDatabaseHelper.WEBDB_INSTANCE_DB_SHORT_NAME },
+          null, null, null, "1");
+      if (c.moveToFirst()) {
+        defn = new WebDbDefinition(c.getString(0), c.getString(1), c.getInt(4), new File(path
+            + File.separator + c.getString(2) + File.separator + c.getString(3)));
+      }
+    } finally {
+      if (c != null && !c.isClosed()) {
+        c.close();
+      }
+      if (db != null) {
+        db.close();
+      }
+    }
+
+    if (defn == null) {
+      resolvedDefinitions.remove(path);
+      return null;
+    }
+    WebDbDefinition cached = resolvedDefinitions.get(path);
+    if (cached != null && isSameDefinition(cached, defn)) {
+      return cached;
+    }
+    resolvedDefinitions.put(path, defn);
+    return defn;
+  }
+
+  private static boolean isSameDefinition(WebDbDefinition a, WebDbDefinition b) {
+    return equals(a.shortName, b.shortName) && equals(a.displayName, b.displayName)
+        && equals(a.estimatedSize, b.estimatedSize) && a.dbFile.equals(b.dbFile);
+  }
+
+  private static boolean equals(Object a, Object b) {
+    return (a == null) ? (b == null) : a.equals(b);
+  }
+
   public WebDbDefinition getWebKitDatabaseInfoHelper() {
     for (WebDbDefinition defn : webDatabasePaths) {
       if (defn.shortName.equalsIgnoreCase(WebDbDatabaseHelper.WEBDB_INSTANCE_DB_SHORT_NAME)) {
@@ -70,6 +70,12 @@ public final class FormsColumns implements BaseColumns {
   public static final String MD5_HASH = "md5Hash";
   public static final String DATE = "date"; // last modification date
 
+  // Optional query parameters for paging through the forms table.
+  // Pages are ordered by _ID; pass the _ID of the last row of the previous
+  // page to get the next page. The limit must be a positive integer.
+  public static final String QUERY_PARAM_LIMIT = "limit";
+  public static final String QUERY_PARAM_AFTER_ID = "afterId";
+
   // NOTE: this omits _ID (the primary key)
   public static final String[] formsDataColumnNames = { DISPLAY_NAME, DISPLAY_SUBTEXT, DESCRIPTION,
       TABLE_ID, FORM_ID, FORM_VERSION, APP_RELATIVE_FORM_FILE_PATH, APP_RELATIVE_FORM_MEDIA_PATH, FORM_PATH, MD5_HASH, DATE,
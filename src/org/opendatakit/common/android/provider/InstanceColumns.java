@@ -48,6 +48,30 @@ public final class InstanceColumns implements BaseColumns {
   public static final String DISPLAY_NAME = "_displayName";
   public static final String DISPLAY_SUBTEXT = "_displaySubtext";
 
+  // Optional query parameters for paging through the instances of a form.
+  // Pages are ordered by (SAVEPOINT_TIMESTAMP, _ID); pass the values from the
+  // last row of the previous page to get the next page. The limit must be a
+  // positive integer.
+  public static final String QUERY_PARAM_LIMIT = "limit";
+  public static final String QUERY_PARAM_AFTER_SAVEPOINT_TIMESTAMP = "afterSavepointTimestamp";
+  public static final String QUERY_PARAM_AFTER_ID = "afterId";
+
+  // Path segment for a full-text search of the instances of a form:
+  // content://authority/appName/formId/_search/terms
+  // Uses the data table's full-text index if it has one; LIKE otherwise.
+  public static final String SEARCH_URI_SEGMENT = "_search";
+
+  // Path segment (in place of the formId) for the per-form instance counts
+  // of an app: content://authority/appName/_counts
+  public static final String COUNTS_URI_SEGMENT = "_counts";
+  // Columns returned by the counts query (along with _ID of the form,
+  // DATA_TABLE_TABLE_ID and XML_PUBLISH_FORM_ID). These are disjoint:
+  // COUNT_COMPLETE only counts finalized instances that have not been sent.
+  public static final String COUNT_INCOMPLETE = "_countIncomplete";
+  public static final String COUNT_COMPLETE = "_countComplete";
+  public static final String COUNT_SUBMITTED = "_countSubmitted";
+  public static final String COUNT_SUBMISSION_FAILED = "_countSubmissionFailed";
+
   /**
    * Get the create sql for the forms table (ODK Survey only).
    *
@@ -15,16 +15,25 @@
 package org.opendatakit.common.android.provider.impl;
 
 import java.io.File;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.opendatakit.common.android.database.DataModelDatabaseHelper;
+import org.opendatakit.common.android.database.OpenDatabaseBudget;
 import org.opendatakit.common.android.database.WebDbDefinition;
 import org.opendatakit.common.android.database.WebSqlDatabaseHelper;
 import org.opendatakit.common.android.utilities.ODKFileUtils;
 
+import android.annotation.TargetApi;
+import android.content.BroadcastReceiver;
 import android.content.ContentProvider;
 import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.os.Build;
+import android.os.CancellationSignal;
 import android.util.Log;
 
 /**
@@ -35,51 +44,228 @@ import android.util.Log;
  *
  */
 public abstract class CommonContentProvider extends ContentProvider {
-  // array of the underlying database handles used by all the content provider
-  // instances
-  private static final Map<String, DataModelDatabaseHelper> dbHelpers = new HashMap<String, DataModelDatabaseHelper>();
+  private static final String t = "CommonContentProvider";
+
+  // map of appName to the underlying database handles used by all the content
+  // provider instances. Reads are lock-free; helpers are created under
+  // registryLock.
+  private static final ConcurrentHashMap<String, DataModelDatabaseHelper> dbHelpers = new ConcurrentHashMap<String, DataModelDatabaseHelper>();
+
+  private static final Object registryLock = new Object();
+
+  // appNames that opted in to write-ahead logging (see
+  // setWriteAheadLoggingEnabled())
+  private static final ConcurrentHashMap<String, Boolean> writeAheadLoggingAppNames = new ConcurrentHashMap<String, Boolean>();
+
+  // true once external storage has been verified. Cleared (and dbHelpers
+  // purged) by the media broadcasts rather than re-checked on every call.
+  private static volatile boolean storageVerified = false;
+
+  private static BroadcastReceiver mediaReceiver = null;
+
+  // bounds the number of databases held open across all appNames
+  private static final OpenDatabaseBudget openDatabaseBudget = new OpenDatabaseBudget(
+      OpenDatabaseBudget.DEFAULT_MAX_OPEN_DATABASES, OpenDatabaseBudget.DEFAULT_IDLE_CLOSE_MILLIS);
 
   /**
-   * Shared accessor to get a database handle.
-   *
-   * @param appName
-   * @return an entry in dbHelpers
+   * Any change in the mount state of external storage invalidates the cached
+   * storage check and the database handles that live on it.
    */
-  public synchronized static DataModelDatabaseHelper getDbHelper(Context context, String appName) {
+  private static class MediaStateReceiver extends BroadcastReceiver {
+    @Override
+    public void onReceive(Context context, Intent intent) {
+      Log.i(t, "Media state changed (" + intent.getAction() + ") -- purging dbHelpers");
+      invalidate();
+    }
+  }
 
-    try {
-      ODKFileUtils.verifyExternalStorageAvailability();
-    } catch ( Exception e ) {
-      Log.e("CommonContentProvider", "External storage not available -- purging dbHelpers");
+  private static void invalidate() {
+    synchronized (registryLock) {
+      storageVerified = false;
       dbHelpers.clear();
-      return null;
+      openDatabaseBudget.clear();
+    }
+  }
+
+  /**
+   * The maximum number of open databases and the idle-close timeout can be
+   * adjusted through the returned object.
+   *
+   * @return the budget shared by all the database handles.
+   */
+  public static OpenDatabaseBudget getOpenDatabaseBudget() {
+    return openDatabaseBudget;
+  }
+
+  /**
+   * Opt the database of an appName in to write-ahead logging, so that queries
+   * from different threads run concurrently and are not blocked by a long
+   * write transaction. Off by default: ODK Survey opens the same file through
+   * WebKit's WebSQL connection, and per-table files (see
+   * DataModelDatabaseHelper.setPerTableFilesEnabled()) cannot be used with it.
+   * Only honored on API 16 and higher. Takes effect on the open database
+   * immediately, or when it is next opened if it is in use.
+   *
+   * @param appName
+   * @param enabled
+   */
+  public static void setWriteAheadLoggingEnabled(String appName, boolean enabled) {
+    synchronized (registryLock) {
+      if (enabled) {
+        writeAheadLoggingAppNames.put(appName, Boolean.TRUE);
+      } else {
+        writeAheadLoggingAppNames.remove(appName);
+      }
+      DataModelDatabaseHelper dbHelper = dbHelpers.get(appName);
+      if (dbHelper != null) {
+        dbHelper.setWriteAheadLoggingEnabled(enabled);
+      }
     }
+  }
+
+  public static boolean isWriteAheadLoggingEnabled(String appName) {
+    return writeAheadLoggingAppNames.containsKey(appName);
+  }
 
-    String path = ODKFileUtils.getWebDbFolder(appName);
-    File webDb = new File(path);
-    if ( !webDb.exists() || !webDb.isDirectory()) {
-      ODKFileUtils.assertDirectoryStructure(appName);
+  private static void registerMediaReceiver(Context context) {
+    if (mediaReceiver != null) {
+      return;
     }
+    IntentFilter filter = new IntentFilter();
+    filter.addAction(Intent.ACTION_MEDIA_MOUNTED);
+    filter.addAction(Intent.ACTION_MEDIA_UNMOUNTED);
+    filter.addAction(Intent.ACTION_MEDIA_EJECT);
+    filter.addAction(Intent.ACTION_MEDIA_REMOVED);
+    filter.addAction(Intent.ACTION_MEDIA_BAD_REMOVAL);
+    filter.addAction(Intent.ACTION_MEDIA_SHARED);
+    filter.addDataScheme("file");
+    mediaReceiver = new MediaStateReceiver();
+    context.getApplicationContext().registerReceiver(mediaReceiver, filter);
+  }
 
-    // the assert above should have created it...
-    if ( !webDb.exists() || !webDb.isDirectory()) {
-      Log.e("CommonContentProvider", "webDb directory not available -- purging dbHelpers");
-      dbHelpers.clear();
-      return null;
+  /**
+   * Shared accessor to get a database handle.
+   *
+   * @param appName
+   * @return an entry in dbHelpers
+   */
+  public static DataModelDatabaseHelper getDbHelper(Context context, String appName) {
+    // fast path: storage already verified and the helper already exists
+    if (storageVerified) {
+      DataModelDatabaseHelper dbHelper = dbHelpers.get(appName);
+      if (dbHelper != null) {
+        return dbHelper;
+      }
     }
 
-    DataModelDatabaseHelper dbHelper = dbHelpers.get(appName);
-    if (dbHelper == null) {
-      WebSqlDatabaseHelper h;
-      h = new WebSqlDatabaseHelper(context, path);
-      WebDbDefinition defn = h.getWebKitDatabaseInfoHelper();
+    synchronized (registryLock) {
+      registerMediaReceiver(context);
+
+      if (!storageVerified) {
+        try {
+          ODKFileUtils.verifyExternalStorageAvailability();
+        } catch (Exception e) {
+          Log.e(t, "External storage not available -- purging dbHelpers");
+          dbHelpers.clear();
+          openDatabaseBudget.clear();
+          return null;
+        }
+        storageVerified = true;
+      }
+
+      DataModelDatabaseHelper dbHelper = dbHelpers.get(appName);
+      if (dbHelper != null) {
+        return dbHelper;
+      }
+
+      String path = ODKFileUtils.getWebDbFolder(appName);
+      File webDb = new File(path);
+      if (!webDb.exists() || !webDb.isDirectory()) {
+        ODKFileUtils.assertDirectoryStructure(appName);
+      }
+
+      // the assert above should have created it...
+      if (!webDb.exists() || !webDb.isDirectory()) {
+        Log.e(t, "webDb directory not available -- purging dbHelpers");
+        storageVerified = false;
+        dbHelpers.clear();
+        openDatabaseBudget.clear();
+        return null;
+      }
+
+      WebDbDefinition defn = WebSqlDatabaseHelper.getInstanceDatabaseDefinition(context, path);
       if (defn != null) {
         defn.dbFile.getParentFile().mkdirs();
-        dbHelper = new DataModelDatabaseHelper(defn.dbFile.getParent(), defn.dbFile.getName());
+        dbHelper = new DataModelDatabaseHelper(appName, defn.dbFile.getParent(),
+            defn.dbFile.getName());
+        if (writeAheadLoggingAppNames.containsKey(appName)) {
+          dbHelper.setWriteAheadLoggingEnabled(true);
+        }
+        openDatabaseBudget.register(dbHelper);
         dbHelpers.put(appName, dbHelper);
       }
+      return dbHelper;
+    }
+  }
+
+  /**
+   * rawQuery that honors the cancellationSignal when one is supplied. The
+   * framework only hands us a signal on API 16 and higher, so the older
+   * rawQuery is used whenever cancellationSignal is null.
+   *
+   * @param db
+   * @param sql
+   * @param selectionArgs
+   * @param cancellationSignal
+   *          -- may be null
+   * @return
+   */
+  @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+  protected static Cursor rawQuery(SQLiteDatabase db, String sql, String[] selectionArgs,
+      CancellationSignal cancellationSignal) {
+    if (cancellationSignal == null) {
+      return db.rawQuery(sql, selectionArgs);
+    }
+    return db.rawQuery(sql, selectionArgs, cancellationSignal);
+  }
+
+  /**
+   * Parse the limit query parameter of a paged query. Every provider applies
+   * the same rule: the limit must be a positive integer.
+   *
+   * @param limit
+   * @param uri
+   *          -- the query uri, for the error message
+   * @return the limit.
+   * @throws IllegalArgumentException
+   *           if limit is not a positive integer.
+   */
+  protected static int parseLimit(String limit, Uri uri) {
+    try {
+      int value = Integer.parseInt(limit);
+      if (value > 0) {
+        return value;
+      }
+    } catch (NumberFormatException e) {
+      // fall through
+    }
+    throw new IllegalArgumentException("Invalid limit (must be a positive integer) " + uri);
+  }
+
+  /**
+   * Table query that honors the cancellationSignal when one is supplied.
+   *
+   * @see #rawQuery(SQLiteDatabase, String, String[], CancellationSignal)
+   */
+  @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+  protected static Cursor query(SQLiteDatabase db, String table, String[] columns,
+      String selection, String[] selectionArgs, String orderBy, String limit,
+      CancellationSignal cancellationSignal) {
+    if (cancellationSignal == null) {
+      return db.query(table, columns, selection, selectionArgs, null, null, orderBy, limit);
     }
-    return dbHelper;
+    return db.query(false, table, columns, selection, selectionArgs, null, null, orderBy, limit,
+        cancellationSignal);
   }
 
 }
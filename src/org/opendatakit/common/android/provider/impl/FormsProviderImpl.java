@@ -31,14 +31,18 @@ import org.apache.commons.io.FileUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.opendatakit.common.android.R;
 import org.opendatakit.common.android.database.DataModelDatabaseHelper;
+import org.opendatakit.common.android.database.SqlTracer;
 import org.opendatakit.common.android.provider.FormsColumns;
 import org.opendatakit.common.android.utilities.ODKFileUtils;
 
+import android.annotation.TargetApi;
 import android.content.ContentValues;
 import android.database.Cursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
+import android.os.Build;
+import android.os.CancellationSignal;
 import android.text.TextUtils;
 import android.util.Log;
 
@@ -115,6 +119,17 @@ public abstract class FormsProviderImpl extends CommonContentProvider {
   @Override
   public Cursor query(Uri uri, String[] projection, String where, String[] whereArgs,
                       String sortOrder) {
+    return query(uri, projection, where, whereArgs, sortOrder, null);
+  }
+
+  /**
+   * Cancellation-aware query. The cancellationSignal (API 16+) is handed to
+   * the underlying query so that abandoned CursorLoader loads stop running.
+   */
+  @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+  @Override
+  public Cursor query(Uri uri, String[] projection, String where, String[] whereArgs,
+                      String sortOrder, CancellationSignal cancellationSignal) {
     List<String> segments = uri.getPathSegments();
 
     if (segments.size() < 1 || segments.size() > 2) {
@@ -151,6 +166,36 @@ public abstract class FormsProviderImpl extends CommonContentProvider {
       }
     }
 
+    // keyset pagination -- _ID of the last row seen
+    String limit = uri.getQueryParameter(FormsColumns.QUERY_PARAM_LIMIT);
+    String afterId = uri.getQueryParameter(FormsColumns.QUERY_PARAM_AFTER_ID);
+    String limitClause = null;
+    if (limit != null || afterId != null) {
+      if (sortOrder != null) {
+        throw new IllegalArgumentException("sortOrder cannot be specified for a paged query " + uri);
+      }
+      if (afterId != null) {
+        String afterWhere = FormsColumns._ID + " > CAST(? AS INTEGER)";
+        if (TextUtils.isEmpty(whereId)) {
+          whereId = afterWhere;
+          whereIdArgs = new String[] { afterId };
+        } else {
+          whereId = "(" + whereId + ") AND " + afterWhere;
+          int len = (whereIdArgs == null) ? 0 : whereIdArgs.length;
+          String[] tempArgs = new String[len + 1];
+          for (int i = 0; i < len; ++i) {
+            tempArgs[i] = whereIdArgs[i];
+          }
+          tempArgs[len] = afterId;
+          whereIdArgs = tempArgs;
+        }
+      }
+      sortOrder = FormsColumns._ID + " ASC";
+      if (limit != null) {
+        limitClause = Integer.toString(parseLimit(limit, uri));
+      }
+    }
+
     // Get the database and run the query
     Cursor c = null;
     try {
@@ -161,9 +206,13 @@ public abstract class FormsProviderImpl extends CommonContentProvider {
       }
 
       SQLiteDatabase db = dbh.getReadableDatabase();
-      c = db.query(DataModelDatabaseHelper.FORMS_TABLE_NAME, projection, whereId, whereIdArgs,
-          null, null, sortOrder);
+      c = query(db, DataModelDatabaseHelper.FORMS_TABLE_NAME, projection, whereId, whereIdArgs,
+          sortOrder, limitClause, cancellationSignal);
     } catch (Exception e) {
+      if (cancellationSignal != null) {
+        // report cancellation to the caller rather than returning null
+        cancellationSignal.throwIfCanceled();
+      }
       Log.w(t, "Unable to query database for appName: " + appName);
       return null;
     }
@@ -370,7 +419,8 @@ public abstract class FormsProviderImpl extends CommonContentProvider {
 
     try {
       SQLiteDatabase db = dbh.getWritableDatabase();
-      long rowId = db.insert(DataModelDatabaseHelper.FORMS_TABLE_NAME, null, values);
+      long rowId = SqlTracer.getTracer(appName).insert(db, DataModelDatabaseHelper.FORMS_TABLE_NAME,
+          null, values);
       if (rowId > 0) {
         Uri formUri = Uri.withAppendedPath(
             Uri.withAppendedPath(Uri.parse("content://" + getFormsAuthority()), appName),
@@ -537,7 +587,8 @@ public abstract class FormsProviderImpl extends CommonContentProvider {
         Log.w(t, "Unable to access database for appName " + appName);
         return 0;
       }
-      count = db.delete(DataModelDatabaseHelper.FORMS_TABLE_NAME, whereId, whereIdArgs);
+      count = SqlTracer.getTracer(appName).delete(db, DataModelDatabaseHelper.FORMS_TABLE_NAME,
+          whereId, whereIdArgs);
     } catch (Exception e) {
       e.printStackTrace();
       Log.w(t, "Unable to perform deletion " + e.toString());
@@ -750,7 +801,8 @@ public abstract class FormsProviderImpl extends CommonContentProvider {
         return 0;
       }
 
-      count = db.update(DataModelDatabaseHelper.FORMS_TABLE_NAME, values, whereId, whereIdArgs);
+      count = SqlTracer.getTracer(appName).update(db, DataModelDatabaseHelper.FORMS_TABLE_NAME,
+          values, whereId, whereIdArgs);
     } catch (Exception e) {
       e.printStackTrace();
       Log.w(t, "Unable to perform update " + uri);
@@ -21,9 +21,13 @@ import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
 
 import org.apache.commons.io.FileUtils;
 import org.codehaus.jackson.JsonParseException;
@@ -31,17 +35,28 @@ import org.codehaus.jackson.map.JsonMappingException;
 import org.opendatakit.aggregate.odktables.rest.TableConstants;
 import org.opendatakit.common.android.R;
 import org.opendatakit.common.android.database.DataModelDatabaseHelper;
+import org.opendatakit.common.android.database.SqlTracer;
 import org.opendatakit.common.android.database.DataModelDatabaseHelper.ColumnDefinition;
 import org.opendatakit.common.android.database.DataModelDatabaseHelper.IdInstanceNameStruct;
 import org.opendatakit.common.android.provider.DataTableColumns;
+import org.opendatakit.common.android.provider.FormsColumns;
 import org.opendatakit.common.android.provider.InstanceColumns;
+import org.opendatakit.common.android.provider.TableDefinitionsColumns;
 import org.opendatakit.common.android.utilities.ODKFileUtils;
 
+import android.annotation.TargetApi;
+import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.database.Cursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
+import android.os.Build;
+import android.os.CancellationSignal;
+import android.text.TextUtils;
 
 /**
  * TODO: convert to true app-scoped instance provider
@@ -54,8 +69,17 @@ public abstract class InstanceProviderImpl extends CommonContentProvider {
   private static final String DATA_TABLE_SAVEPOINT_TIMESTAMP_COLUMN = DataTableColumns.SAVEPOINT_TIMESTAMP;
   private static final String DATA_TABLE_SAVEPOINT_TYPE_COLUMN = DataTableColumns.SAVEPOINT_TYPE;
 
+  // stay well under SQLite's default limit of 999 host parameters
+  private static final int MAX_IN_LIST_SIZE = 500;
+
+  // row change journal consumer that back-fills UPLOADS_TABLE_NAME
+  private static final String UPLOADS_JOURNAL_CONSUMER = DataModelDatabaseHelper.UPLOADS_TABLE_NAME;
+
   private static HashMap<String, String> sInstancesProjectionMap;
 
+  // while applyBatch() runs on this thread, the URIs to notify once it commits
+  private static final ThreadLocal<Set<Uri>> pendingNotifications = new ThreadLocal<Set<Uri>>();
+
   public abstract String getInstanceAuthority();
 
   private static class IdStruct {
@@ -68,6 +92,38 @@ public abstract class InstanceProviderImpl extends CommonContentProvider {
     }
   }
 
+  /**
+   * Turn user-entered search terms into a full-text query that matches the
+   * rows containing every term. Each term is quoted so that FTS operators
+   * (OR, NOT, NEAR, -, *, parentheses) in the input are searched for as
+   * words rather than interpreted.
+   *
+   * @param searchTerms
+   * @return the MATCH argument, or null if there are no terms.
+   */
+  private static String getFullTextQuery(String searchTerms) {
+    // a double-quote cannot be escaped within an FTS3 phrase; the tokenizer
+    // treats it as a separator anyway
+    String[] terms = searchTerms.replace('"', ' ').trim().split("\\s+");
+    StringBuilder b = new StringBuilder();
+    for (String term : terms) {
+      if (term.length() != 0) {
+        if (b.length() != 0) {
+          b.append(" ");
+        }
+        b.append('"').append(term).append('"');
+      }
+    }
+    return (b.length() == 0) ? null : b.toString();
+  }
+
+  /**
+   * Escape the LIKE wildcards (and the escape character) for LIKE ? ESCAPE '\'.
+   */
+  private static String escapeLikePattern(String value) {
+    return value.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_");
+  }
+
   @Override
   public boolean onCreate() {
 
@@ -77,9 +133,26 @@ public abstract class InstanceProviderImpl extends CommonContentProvider {
   @Override
   public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
       String sortOrder) {
+    return query(uri, projection, selection, selectionArgs, sortOrder, null);
+  }
+
+  /**
+   * Cancellation-aware query. CursorLoader supplies the cancellationSignal
+   * (API 16+) and cancels it when the load is abandoned; it is checked between
+   * the setup steps and handed to the final rawQuery so that SQLite stops
+   * evaluating the instance query.
+   */
+  @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+  @Override
+  public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
+      String sortOrder, CancellationSignal cancellationSignal) {
     List<String> segments = uri.getPathSegments();
 
-    if (segments.size() < 2 || segments.size() > 3) {
+    // appName/formId/_search/terms is a full-text search
+    boolean isSearch = (segments.size() == 4
+        && InstanceColumns.SEARCH_URI_SEGMENT.equals(segments.get(2)));
+
+    if (segments.size() < 2 || (segments.size() > 3 && !isSearch)) {
       throw new SQLException("Unknown URI (too many segments!) " + uri);
     }
 
@@ -87,6 +160,7 @@ public abstract class InstanceProviderImpl extends CommonContentProvider {
     String uriFormId = segments.get(1);
     // _ID in UPLOADS_TABLE_NAME
     String instanceId = (segments.size() == 3 ? segments.get(2) : null);
+    String searchTerms = (isSearch ? segments.get(3) : null);
 
     DataModelDatabaseHelper dbh = getDbHelper(getContext(), appName);
     if ( dbh == null ) {
@@ -95,6 +169,10 @@ public abstract class InstanceProviderImpl extends CommonContentProvider {
 
     SQLiteDatabase db = dbh.getReadableDatabase();
 
+    if (segments.size() == 2 && InstanceColumns.COUNTS_URI_SEGMENT.equals(uriFormId)) {
+      return queryCounts(db, appName, uri, cancellationSignal);
+    }
+
     IdInstanceNameStruct ids;
     try {
       ids = DataModelDatabaseHelper.getIds(db, uriFormId);
@@ -116,34 +194,84 @@ public abstract class InstanceProviderImpl extends CommonContentProvider {
       throw new SQLException("Unknown URI (missing data table for formId) " + uri);
     }
 
-    dbTableName = "\"" + dbTableName + "\"";
+    String rawDbTableName = dbTableName;
+    // a data table in an attached file is schema-qualified in FROM clauses
+    // and referenced by its bare name everywhere else
+    String fromTableName = DataModelDatabaseHelper.quoteDbTableName(rawDbTableName);
+    dbTableName = "\"" + DataModelDatabaseHelper.getUnqualifiedTableName(rawDbTableName) + "\"";
 
     // ARGH! we must ensure that we have records in our UPLOADS_TABLE_NAME
-    // for every distinct instance in the data table.
+    // for every distinct instance in the data table. After the first full
+    // scan, only the instances in the row change journal since the last
+    // back-fill are considered. Checking for that is a read; only a back-fill
+    // needs the writable database.
     StringBuilder b = new StringBuilder();
-    //@formatter:off
-    b.append("INSERT INTO ").append(DataModelDatabaseHelper.UPLOADS_TABLE_NAME).append("(")
-        .append(InstanceColumns.DATA_INSTANCE_ID).append(",")
-        .append(InstanceColumns.DATA_TABLE_TABLE_ID).append(",")
-        .append(InstanceColumns.XML_PUBLISH_FORM_ID).append(") ").append("SELECT ")
-        .append(InstanceColumns.DATA_INSTANCE_ID).append(",")
-        .append(InstanceColumns.DATA_TABLE_TABLE_ID).append(",")
-        .append(InstanceColumns.XML_PUBLISH_FORM_ID).append(" FROM (")
-          .append("SELECT DISTINCT ").append(DATA_TABLE_ID_COLUMN).append(" as ")
-          .append(InstanceColumns.DATA_INSTANCE_ID).append(",").append("? as ")
+    if (DataModelDatabaseHelper.isRowChangeConsumerBehind(db, UPLOADS_JOURNAL_CONSUMER,
+        ids.tableId, rawDbTableName)) {
+      SQLiteDatabase wdb = dbh.getWritableDatabase();
+      boolean journaled = DataModelDatabaseHelper.ensureRowChangeJournal(wdb, ids.tableId,
+          rawDbTableName);
+      long journalSeq = DataModelDatabaseHelper.getRowChangeCursor(wdb, UPLOADS_JOURNAL_CONSUMER,
+          ids.tableId);
+      long latestSeq = DataModelDatabaseHelper.getLatestRowChangeSeq(wdb, rawDbTableName);
+      //@formatter:off
+      b.append("INSERT INTO ").append(DataModelDatabaseHelper.UPLOADS_TABLE_NAME).append("(")
+          .append(InstanceColumns.DATA_INSTANCE_ID).append(",")
           .append(InstanceColumns.DATA_TABLE_TABLE_ID).append(",")
-          .append(DataTableColumns.FORM_ID).append(" as ")
-          .append(InstanceColumns.XML_PUBLISH_FORM_ID).append(" FROM ")
-          .append(dbTableName).append(" EXCEPT SELECT DISTINCT ")
+          .append(InstanceColumns.XML_PUBLISH_FORM_ID).append(") ").append("SELECT ")
           .append(InstanceColumns.DATA_INSTANCE_ID).append(",")
           .append(InstanceColumns.DATA_TABLE_TABLE_ID).append(",")
-          .append(InstanceColumns.XML_PUBLISH_FORM_ID).append(" FROM ")
-          .append(DataModelDatabaseHelper.UPLOADS_TABLE_NAME).append(")");
-    //@formatter:on
+          .append(InstanceColumns.XML_PUBLISH_FORM_ID).append(" FROM (")
+            .append("SELECT DISTINCT ").append(DATA_TABLE_ID_COLUMN).append(" as ")
+            .append(InstanceColumns.DATA_INSTANCE_ID).append(",").append("? as ")
+            .append(InstanceColumns.DATA_TABLE_TABLE_ID).append(",")
+            .append(DataTableColumns.FORM_ID).append(" as ")
+            .append(InstanceColumns.XML_PUBLISH_FORM_ID).append(" FROM ")
+            .append(fromTableName);
+      if (journaled && journalSeq != -1L) {
+        b.append(" WHERE ").append(DATA_TABLE_ID_COLUMN).append(" IN (SELECT ")
+            .append(DataModelDatabaseHelper.ROW_CHANGE_ROW_ID).append(" FROM ")
+            .append(DataModelDatabaseHelper.getRowChangeJournalTableName(rawDbTableName))
+            .append(" WHERE ")
+            .append(DataModelDatabaseHelper.ROW_CHANGE_TABLE_ID).append("=? AND ")
+            .append(DataModelDatabaseHelper.ROW_CHANGE_SEQ).append(">? AND ")
+            .append(DataModelDatabaseHelper.ROW_CHANGE_SEQ).append("<=?)");
+      }
+      b.append(" EXCEPT SELECT DISTINCT ")
+            .append(InstanceColumns.DATA_INSTANCE_ID).append(",")
+            .append(InstanceColumns.DATA_TABLE_TABLE_ID).append(",")
+            .append(InstanceColumns.XML_PUBLISH_FORM_ID).append(" FROM ")
+            .append(DataModelDatabaseHelper.UPLOADS_TABLE_NAME).append(")");
+      //@formatter:on
 
-    // TODO: should we collapse across FORM_ID or leave it this way?
-    String[] args = { ids.tableId };
-    db.execSQL(b.toString(), args);
+      // TODO: should we collapse across FORM_ID or leave it this way?
+      String[] args;
+      if (journaled && journalSeq != -1L) {
+        String[] tempArgs = { ids.tableId, ids.tableId, Long.toString(journalSeq),
+            Long.toString(latestSeq) };
+        args = tempArgs;
+      } else {
+        String[] tempArgs = { ids.tableId };
+        args = tempArgs;
+      }
+      if (cancellationSignal != null) {
+        cancellationSignal.throwIfCanceled();
+      }
+      if (!journaled || journalSeq != latestSeq) {
+        wdb.beginTransaction();
+        try {
+          wdb.execSQL(b.toString(), args);
+          DataModelDatabaseHelper.setRowChangeCursor(wdb, UPLOADS_JOURNAL_CONSUMER, ids.tableId,
+              latestSeq);
+          wdb.setTransactionSuccessful();
+        } finally {
+          wdb.endTransaction();
+        }
+      }
+    }
+    if (cancellationSignal != null) {
+      cancellationSignal.throwIfCanceled();
+    }
 
     // Can't get away with dataTable.* because of collision with _ID column
     // get map of (elementKey -> ColumnDefinition)
@@ -207,14 +335,16 @@ public abstract class InstanceProviderImpl extends CommonContentProvider {
         .append(" > ").append(InstanceColumns.XML_PUBLISH_TIMESTAMP).append(" THEN null")
         .append(" ELSE ").append(InstanceColumns.DISPLAY_SUBTEXT).append(" END as ")
         .append(InstanceColumns.DISPLAY_SUBTEXT).append(",");
+    String displayNameExpression;
     if ( ids.instanceName == null ) {
-      b.append( "datetime(").append(DATA_TABLE_SAVEPOINT_TIMESTAMP_COLUMN).append("/1000000, 'unixepoch', 'localtime')");
+      displayNameExpression = "datetime(" + DATA_TABLE_SAVEPOINT_TIMESTAMP_COLUMN + "/1000000, 'unixepoch', 'localtime')";
     } else {
-      b.append(ids.instanceName);
+      displayNameExpression = ids.instanceName;
     }
+    b.append(displayNameExpression);
     b.append(" as ").append(InstanceColumns.DISPLAY_NAME);
     b.append(" FROM ");
-    b.append("( SELECT * FROM ").append(dbTableName).append(" GROUP BY ")
+    b.append("( SELECT * FROM ").append(fromTableName).append(" GROUP BY ")
         .append(DATA_TABLE_ID_COLUMN).append(" HAVING ").append(DATA_TABLE_SAVEPOINT_TIMESTAMP_COLUMN)
         .append(" = MAX(").append(DATA_TABLE_SAVEPOINT_TIMESTAMP_COLUMN).append(")").append(") as ")
         .append(dbTableName);
@@ -240,6 +370,31 @@ public abstract class InstanceProviderImpl extends CommonContentProvider {
       filterArgs = tempArgs;
     }
 
+    String ftsQuery = (searchTerms == null) ? null : getFullTextQuery(searchTerms);
+    if (ftsQuery != null) {
+      // use the full-text index when the table has one; otherwise fall back
+      // to a LIKE scan over the display name.
+      String searchArg;
+      if (DataModelDatabaseHelper.getFullTextIndexColumns(db, rawDbTableName) != null) {
+        String ftsTableName = "\""
+            + DataModelDatabaseHelper.getFullTextIndexTableName(rawDbTableName) + "\"";
+        b.append(" AND ").append(dbTableName).append(".").append(DATA_TABLE_ID_COLUMN)
+         .append(" IN (SELECT ").append(DATA_TABLE_ID_COLUMN).append(" FROM ").append(fromTableName)
+         .append(" WHERE rowid IN (SELECT docid FROM ").append(ftsTableName)
+         .append(" WHERE ").append(ftsTableName).append(" MATCH ?))");
+        searchArg = ftsQuery;
+      } else {
+        b.append(" AND (").append(displayNameExpression).append(") LIKE ? ESCAPE '\\'");
+        searchArg = "%" + escapeLikePattern(searchTerms.trim()) + "%";
+      }
+      String[] tempArgs = new String[filterArgs.length + 1];
+      for (int i = 0; i < filterArgs.length; ++i) {
+        tempArgs[i] = filterArgs[i];
+      }
+      tempArgs[filterArgs.length] = searchArg;
+      filterArgs = tempArgs;
+    }
+
     if (selection != null) {
       b.append(" AND (").append(selection).append(")");
     }
@@ -255,16 +410,190 @@ public abstract class InstanceProviderImpl extends CommonContentProvider {
       filterArgs = tempArgs;
     }
 
-    if (sortOrder != null) {
+    // keyset pagination -- (savepoint timestamp, _ID) of the last row seen
+    String limit = uri.getQueryParameter(InstanceColumns.QUERY_PARAM_LIMIT);
+    String afterTimestamp = uri.getQueryParameter(InstanceColumns.QUERY_PARAM_AFTER_SAVEPOINT_TIMESTAMP);
+    String afterId = uri.getQueryParameter(InstanceColumns.QUERY_PARAM_AFTER_ID);
+    boolean isPaged = (limit != null || afterTimestamp != null || afterId != null);
+
+    if (isPaged) {
+      if (sortOrder != null) {
+        throw new IllegalArgumentException("sortOrder cannot be specified for a paged query " + uri);
+      }
+      if ((afterTimestamp == null) != (afterId == null)) {
+        throw new IllegalArgumentException("Both " + InstanceColumns.QUERY_PARAM_AFTER_SAVEPOINT_TIMESTAMP
+            + " and " + InstanceColumns.QUERY_PARAM_AFTER_ID + " must be specified " + uri);
+      }
+      String timestampColumn = dbTableName + "." + DATA_TABLE_SAVEPOINT_TIMESTAMP_COLUMN;
+      String idColumn = DataModelDatabaseHelper.UPLOADS_TABLE_NAME + "." + InstanceColumns._ID;
+      if (afterTimestamp != null) {
+        b.append(" AND ").append(getPageAfterClause(timestampColumn, idColumn));
+        String[] tempArgs = new String[filterArgs.length + 3];
+        for (int i = 0; i < filterArgs.length; ++i) {
+          tempArgs[i] = filterArgs[i];
+        }
+        tempArgs[filterArgs.length] = afterTimestamp;
+        tempArgs[filterArgs.length + 1] = afterTimestamp;
+        tempArgs[filterArgs.length + 2] = afterId;
+        filterArgs = tempArgs;
+      }
+      b.append(" ORDER BY ").append(getPageOrderBy(timestampColumn, idColumn));
+      if (limit != null) {
+        b.append(" LIMIT ").append(parseLimit(limit, uri));
+      }
+    } else if (sortOrder != null) {
       b.append(" ORDER BY ").append(sortOrder);
     }
-    Cursor c = db.rawQuery(b.toString(), filterArgs);
+    Cursor c = rawQuery(db, b.toString(), filterArgs, cancellationSignal);
     // Tell the cursor what uri to watch, so it knows when its source data
     // changes
     c.setNotificationUri(getContext().getContentResolver(), uri);
     return c;
   }
 
+  /**
+   * Return one row per form of the app with the number of incomplete,
+   * complete (not yet sent), submitted and submission-failed instances. This
+   * is a single aggregate query over all the data tables and does not touch
+   * the UPLOADS_TABLE_NAME other than to read the publish status.
+   *
+   * @param db
+   * @param appName
+   * @param uri
+   * @param cancellationSignal
+   *          -- may be null
+   * @return
+   */
+  private Cursor queryCounts(SQLiteDatabase db, String appName, Uri uri,
+      CancellationSignal cancellationSignal) {
+    // find the data tables that back forms and that actually exist
+    List<String> tableIds = new ArrayList<String>();
+    List<String> dbTableNames = new ArrayList<String>();
+    Cursor t = null;
+    try {
+      StringBuilder b = new StringBuilder();
+      b.append("SELECT ").append(TableDefinitionsColumns.TABLE_ID).append(",")
+          .append(TableDefinitionsColumns.DB_TABLE_NAME).append(" FROM ")
+          .append(DataModelDatabaseHelper.TABLE_DEFS_TABLE_NAME).append(" WHERE ")
+          .append("(").append(TableDefinitionsColumns.DB_TABLE_NAME)
+          .append(" IN (SELECT name FROM sqlite_master WHERE type='table') OR ")
+          .append(TableDefinitionsColumns.DB_TABLE_NAME).append(" LIKE '%.%') AND ")
+          .append(TableDefinitionsColumns.TABLE_ID).append(" IN (SELECT ")
+          .append(FormsColumns.TABLE_ID).append(" FROM ")
+          .append(DataModelDatabaseHelper.FORMS_TABLE_NAME).append(")");
+      t = rawQuery(db, b.toString(), null, cancellationSignal);
+      while (t.moveToNext()) {
+        tableIds.add(t.getString(0));
+        dbTableNames.add(t.getString(1));
+      }
+    } finally {
+      if (t != null && !t.isClosed()) {
+        t.close();
+      }
+    }
+
+    String uploads = DataModelDatabaseHelper.UPLOADS_TABLE_NAME;
+    String forms = DataModelDatabaseHelper.FORMS_TABLE_NAME;
+    List<String> args = new ArrayList<String>();
+
+    StringBuilder b = new StringBuilder();
+    // @formatter:off
+    b.append("SELECT ").append(forms).append(".").append(FormsColumns._ID).append(" as ")
+        .append(InstanceColumns._ID).append(",")
+     .append(forms).append(".").append(FormsColumns.TABLE_ID).append(" as ")
+        .append(InstanceColumns.DATA_TABLE_TABLE_ID).append(",")
+     .append(forms).append(".").append(FormsColumns.FORM_ID).append(" as ")
+        .append(InstanceColumns.XML_PUBLISH_FORM_ID);
+    String[] countColumns = { InstanceColumns.COUNT_INCOMPLETE, InstanceColumns.COUNT_COMPLETE,
+        InstanceColumns.COUNT_SUBMITTED, InstanceColumns.COUNT_SUBMISSION_FAILED };
+    for (String countColumn : countColumns) {
+      b.append(",");
+      if (tableIds.isEmpty()) {
+        b.append("0");
+      } else {
+        b.append("IFNULL(agg.").append(countColumn).append(",0)");
+      }
+      b.append(" as ").append(countColumn);
+    }
+    b.append(" FROM ").append(forms);
+    if (!tableIds.isEmpty()) {
+      // the current publish status, as computed by the instance query
+      String publishStatus = "CASE WHEN pts IS NULL THEN null WHEN ts > pts THEN null ELSE ps END";
+      b.append(" LEFT JOIN (SELECT tid, fid,")
+       .append(" SUM(CASE WHEN st = ? THEN 0 ELSE 1 END) as ")
+          .append(InstanceColumns.COUNT_INCOMPLETE).append(",")
+       .append(" SUM(CASE WHEN st = ? AND (").append(publishStatus).append(") IS NULL THEN 1 ELSE 0 END) as ")
+          .append(InstanceColumns.COUNT_COMPLETE).append(",")
+       .append(" SUM(CASE WHEN st = ? AND (").append(publishStatus).append(") = ? THEN 1 ELSE 0 END) as ")
+          .append(InstanceColumns.COUNT_SUBMITTED).append(",")
+       .append(" SUM(CASE WHEN st = ? AND (").append(publishStatus).append(") = ? THEN 1 ELSE 0 END) as ")
+          .append(InstanceColumns.COUNT_SUBMISSION_FAILED)
+       .append(" FROM (");
+      args.add(InstanceColumns.STATUS_COMPLETE);
+      args.add(InstanceColumns.STATUS_COMPLETE);
+      args.add(InstanceColumns.STATUS_COMPLETE);
+      args.add(InstanceColumns.STATUS_SUBMITTED);
+      args.add(InstanceColumns.STATUS_COMPLETE);
+      args.add(InstanceColumns.STATUS_SUBMISSION_FAILED);
+      for (int i = 0; i < tableIds.size(); ++i) {
+        String dbTableName = DataModelDatabaseHelper.quoteDbTableName(dbTableNames.get(i));
+        if (i != 0) {
+          b.append(" UNION ALL ");
+        }
+        b.append("SELECT ? as tid, d.").append(DataTableColumns.FORM_ID).append(" as fid,")
+         .append(" d.").append(DATA_TABLE_SAVEPOINT_TYPE_COLUMN).append(" as st,")
+         .append(" d.").append(DATA_TABLE_SAVEPOINT_TIMESTAMP_COLUMN).append(" as ts,")
+         .append(" u.").append(InstanceColumns.XML_PUBLISH_TIMESTAMP).append(" as pts,")
+         .append(" u.").append(InstanceColumns.XML_PUBLISH_STATUS).append(" as ps")
+         .append(" FROM (SELECT ").append(DATA_TABLE_ID_COLUMN).append(",")
+            .append(DataTableColumns.FORM_ID).append(",")
+            .append(DATA_TABLE_SAVEPOINT_TYPE_COLUMN).append(",")
+            .append(DATA_TABLE_SAVEPOINT_TIMESTAMP_COLUMN)
+         .append(" FROM ").append(dbTableName).append(" GROUP BY ").append(DATA_TABLE_ID_COLUMN)
+         .append(" HAVING ").append(DATA_TABLE_SAVEPOINT_TIMESTAMP_COLUMN)
+            .append(" = MAX(").append(DATA_TABLE_SAVEPOINT_TIMESTAMP_COLUMN).append(")) as d")
+         .append(" LEFT JOIN ").append(uploads).append(" as u ON u.")
+            .append(InstanceColumns.DATA_INSTANCE_ID).append(" = d.").append(DATA_TABLE_ID_COLUMN)
+         .append(" AND u.").append(InstanceColumns.DATA_TABLE_TABLE_ID).append(" = ?")
+         .append(" AND u.").append(InstanceColumns.XML_PUBLISH_FORM_ID).append(" = d.")
+            .append(DataTableColumns.FORM_ID);
+        args.add(tableIds.get(i));
+        args.add(tableIds.get(i));
+      }
+      b.append(") GROUP BY tid, fid) as agg ON agg.tid = ").append(forms).append(".")
+          .append(FormsColumns.TABLE_ID).append(" AND agg.fid = ").append(forms).append(".")
+          .append(FormsColumns.FORM_ID);
+    }
+    b.append(" WHERE ").append(forms).append(".").append(FormsColumns.TABLE_ID).append(" IS NOT NULL");
+    // @formatter:on
+
+    Cursor c = rawQuery(db, b.toString(), args.toArray(new String[args.size()]),
+        cancellationSignal);
+    // any change to any form's instances changes the counts
+    c.setNotificationUri(getContext().getContentResolver(),
+        Uri.withAppendedPath(Uri.parse("content://" + getInstanceAuthority()), appName));
+    return c;
+  }
+
+  /**
+   * Keyset pagination: the condition selecting the rows that come after the
+   * last row seen in getPageOrderBy() order. Its arguments are that row's
+   * (timestamp, timestamp, _id). The _id is compared as an integer.
+   */
+  static String getPageAfterClause(String timestampColumn, String idColumn) {
+    return "(" + timestampColumn + " > ? OR (" + timestampColumn + " = ? AND " + idColumn
+        + " > CAST(? AS INTEGER)))";
+  }
+
+  /**
+   * The order of paged queries. Ties on the timestamp are broken by _id, so the
+   * order is total and a page never repeats or skips rows that share the
+   * timestamp of the last row of the previous page.
+   */
+  static String getPageOrderBy(String timestampColumn, String idColumn) {
+    return timestampColumn + "," + idColumn;
+  }
+
   @Override
   public String getType(Uri uri) {
     // don't see the point of trying to implement this call...
@@ -346,7 +675,7 @@ public abstract class InstanceProviderImpl extends CommonContentProvider {
       throw new SQLException("Unknown URI (missing data table for formId) " + uri);
     }
 
-    dbTableName = "\"" + dbTableName + "\"";
+    dbTableName = DataModelDatabaseHelper.quoteDbTableName(dbTableName);
 
     if (segments.size() == 2) {
       where = "(" + where + ") AND (" + InstanceColumns.DATA_INSTANCE_ID + "=? )";
@@ -391,12 +720,14 @@ public abstract class InstanceProviderImpl extends CommonContentProvider {
       }
     }
 
+    SqlTracer tracer = SqlTracer.getTracer(appName);
     for (IdStruct idStruct : idStructs) {
-      db.delete(DataModelDatabaseHelper.UPLOADS_TABLE_NAME, InstanceColumns.DATA_INSTANCE_ID
-          + "=?", new String[] { idStruct.idUploadsTable });
-      db.delete(dbTableName, DATA_TABLE_ID_COLUMN + "=?", new String[] { idStruct.idDataTable });
+      tracer.delete(db, DataModelDatabaseHelper.UPLOADS_TABLE_NAME,
+          InstanceColumns.DATA_INSTANCE_ID + "=?", new String[] { idStruct.idUploadsTable });
+      tracer.delete(db, dbTableName, DATA_TABLE_ID_COLUMN + "=?",
+          new String[] { idStruct.idDataTable });
     }
-    getContext().getContentResolver().notifyChange(uri, null);
+    notifyChange(uri);
     return idStructs.size();
   }
 
@@ -441,7 +772,7 @@ public abstract class InstanceProviderImpl extends CommonContentProvider {
       throw new SQLException("Unknown URI (missing data table for formId) " + uri);
     }
 
-    dbTableName = "\"" + dbTableName + "\"";
+    dbTableName = DataModelDatabaseHelper.quoteDbTableName(dbTableName);
 
     // run the query to get all the ids...
     List<IdStruct> idStructs = new ArrayList<IdStruct>();
@@ -466,23 +797,301 @@ public abstract class InstanceProviderImpl extends CommonContentProvider {
 
     // update the values string...
     if (values.containsKey(InstanceColumns.XML_PUBLISH_STATUS)) {
-      Date xmlPublishDate = new Date();
-      values.put(InstanceColumns.XML_PUBLISH_TIMESTAMP, TableConstants.nanoSecondsFromMillis(xmlPublishDate.getTime()));
-      String xmlPublishStatus = values.getAsString(InstanceColumns.XML_PUBLISH_STATUS);
-      if (values.containsKey(InstanceColumns.DISPLAY_SUBTEXT) == false) {
-        String text = getDisplaySubtext(xmlPublishStatus, xmlPublishDate);
-        values.put(InstanceColumns.DISPLAY_SUBTEXT, text);
+      putPublishTimestampAndSubtext(values);
+    }
+
+    List<String> uploadIds = new ArrayList<String>();
+    for (IdStruct idStruct : idStructs) {
+      uploadIds.add(idStruct.idUploadsTable);
+    }
+    int count = updateUploads(SqlTracer.getTracer(appName), db, values, uploadIds, null, null);
+    notifyChange(uri);
+    return count;
+  }
+
+  /**
+   * When all the operations are on the instances of one appName, they are
+   * applied within a single transaction, and the change notifications are sent
+   * once, after it commits.
+   * <p>
+   * A batch of upload results -- one update() of each instance URI of a form,
+   * setting only XML_PUBLISH_STATUS (and optionally DISPLAY_SUBTEXT), with no
+   * selection -- is applied as set-based updates of UPLOADS_TABLE_NAME: one
+   * chunked _ID IN (...) statement per distinct status, without running the
+   * instance query of each update(). The count of each result tells whether
+   * that instance was found and updated.
+   */
+  @Override
+  public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+      throws OperationApplicationException {
+    String appName = null;
+    for (ContentProviderOperation op : operations) {
+      List<String> segments = op.getUri().getPathSegments();
+      String opAppName = segments.isEmpty() ? null : segments.get(0);
+      if (opAppName == null || (appName != null && !appName.equals(opAppName))) {
+        return super.applyBatch(operations);
       }
+      appName = opAppName;
+    }
+    if (appName == null) {
+      return super.applyBatch(operations);
     }
 
-    String[] args = new String[1];
+    DataModelDatabaseHelper dbh = getDbHelper(getContext(), appName);
+    if ( dbh == null ) {
+      throw new SQLException("Unable to access database for appName " + appName);
+    }
+
+    List<UpdateRecorder> statusUpdates = getStatusUpdates(operations);
+
+    SQLiteDatabase db = dbh.getWritableDatabase();
+    Set<Uri> notifications = new LinkedHashSet<Uri>();
+    ContentProviderResult[] results;
+    pendingNotifications.set(notifications);
+    db.beginTransaction();
+    try {
+      if (statusUpdates != null) {
+        results = applyStatusUpdates(db, appName, statusUpdates);
+      } else {
+        results = super.applyBatch(operations);
+      }
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+      pendingNotifications.remove();
+    }
+    for (Uri uri : notifications) {
+      getContext().getContentResolver().notifyChange(uri, null);
+    }
+    return results;
+  }
+
+  /**
+   * Stands in for the provider while an operation is applied, to find out what
+   * it does: ContentProviderOperation does not expose its type or values
+   * before API 23. Only update() is supported.
+   */
+  private static final class UpdateRecorder extends ContentProvider {
+    private final int count;
+
+    Uri uri;
+    ContentValues values;
+    String selection;
+
+    UpdateRecorder(int count) {
+      this.count = count;
+    }
+
+    @Override
+    public boolean onCreate() {
+      return true;
+    }
+
+    @Override
+    public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
+        String sortOrder) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public String getType(Uri uri) {
+      return null;
+    }
+
+    @Override
+    public Uri insert(Uri uri, ContentValues values) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public int delete(Uri uri, String selection, String[] selectionArgs) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+      this.uri = uri;
+      this.values = values;
+      this.selection = selection;
+      return count;
+    }
+  }
+
+  /**
+   * @param operations
+   * @return the recorded update of each operation, or null unless every
+   *         operation is a status update of an instance of the same form
+   *         without back-references or an expected count.
+   */
+  private static List<UpdateRecorder> getStatusUpdates(List<ContentProviderOperation> operations) {
+    List<UpdateRecorder> updates = new ArrayList<UpdateRecorder>();
+    String uriFormId = null;
+    for (ContentProviderOperation op : operations) {
+      UpdateRecorder r = new UpdateRecorder(0);
+      try {
+        op.apply(r, null, 0);
+        // fails if the operation has an expected count
+        op.apply(new UpdateRecorder(1), null, 0);
+      } catch (OperationApplicationException e) {
+        return null;
+      } catch (RuntimeException e) {
+        // not an update, or has back-references
+        return null;
+      }
+      List<String> segments = r.uri.getPathSegments();
+      if (segments.size() != 3 || !TextUtils.isEmpty(r.selection) || r.values == null
+          || !r.values.containsKey(InstanceColumns.XML_PUBLISH_STATUS)
+          || (uriFormId != null && !uriFormId.equals(segments.get(1)))) {
+        return null;
+      }
+      for (Map.Entry<String, Object> e : r.values.valueSet()) {
+        if (!e.getKey().equals(InstanceColumns.XML_PUBLISH_STATUS)
+            && !e.getKey().equals(InstanceColumns.DISPLAY_SUBTEXT)) {
+          return null;
+        }
+      }
+      uriFormId = segments.get(1);
+      updates.add(r);
+    }
+    return updates.isEmpty() ? null : updates;
+  }
+
+  private ContentProviderResult[] applyStatusUpdates(SQLiteDatabase db, String appName,
+      List<UpdateRecorder> updates) {
+    String uriFormId = updates.get(0).uri.getPathSegments().get(1);
+    IdInstanceNameStruct ids;
+    try {
+      ids = DataModelDatabaseHelper.getIds(db, uriFormId);
+    } catch ( Exception e ) {
+      throw new SQLException("Unable to retrieve formId " + uriFormId);
+    }
+    if (ids == null) {
+      throw new SQLException("Unknown formId " + uriFormId);
+    }
+
+    // group the instance ids by the values to set
+    Map<String, List<String>> groups = new LinkedHashMap<String, List<String>>();
+    Map<String, ContentValues> groupValues = new HashMap<String, ContentValues>();
+    for (UpdateRecorder r : updates) {
+      String status = r.values.getAsString(InstanceColumns.XML_PUBLISH_STATUS);
+      String subtext = r.values.getAsString(InstanceColumns.DISPLAY_SUBTEXT);
+      String key = status + "\0" + (r.values.containsKey(InstanceColumns.DISPLAY_SUBTEXT)
+          ? "=" + subtext : "");
+      List<String> instanceIds = groups.get(key);
+      if (instanceIds == null) {
+        instanceIds = new ArrayList<String>();
+        groups.put(key, instanceIds);
+        ContentValues values = new ContentValues(r.values);
+        putPublishTimestampAndSubtext(values);
+        groupValues.put(key, values);
+      }
+      instanceIds.add(r.uri.getPathSegments().get(2));
+      notifyChange(r.uri);
+    }
+
+    SqlTracer tracer = SqlTracer.getTracer(appName);
+    Set<String> matched = new HashSet<String>();
+    for (Map.Entry<String, List<String>> e : groups.entrySet()) {
+      updateUploads(tracer, db, groupValues.get(e.getKey()), e.getValue(), new String[] {
+          ids.tableId, ids.formId }, matched);
+    }
+
+    ContentProviderResult[] results = new ContentProviderResult[updates.size()];
+    for (int i = 0; i < results.length; ++i) {
+      String instanceId = updates.get(i).uri.getPathSegments().get(2);
+      results[i] = new ContentProviderResult(matched.contains(instanceId) ? 1 : 0);
+    }
+    return results;
+  }
+
+  private void notifyChange(Uri uri) {
+    Set<Uri> pending = pendingNotifications.get();
+    if (pending != null) {
+      pending.add(uri);
+    } else {
+      getContext().getContentResolver().notifyChange(uri, null);
+    }
+  }
+
+  private void putPublishTimestampAndSubtext(ContentValues values) {
+    Date xmlPublishDate = new Date();
+    values.put(InstanceColumns.XML_PUBLISH_TIMESTAMP, TableConstants.nanoSecondsFromMillis(xmlPublishDate.getTime()));
+    String xmlPublishStatus = values.getAsString(InstanceColumns.XML_PUBLISH_STATUS);
+    if (values.containsKey(InstanceColumns.DISPLAY_SUBTEXT) == false) {
+      String text = getDisplaySubtext(xmlPublishStatus, xmlPublishDate);
+      values.put(InstanceColumns.DISPLAY_SUBTEXT, text);
+    }
+  }
+
+  /**
+   * Apply values to the UPLOADS_TABLE_NAME rows with the given _ID values. The
+   * ids are processed in IN-list chunks that stay under SQLite's host parameter
+   * limit, and everything is done in one transaction.
+   *
+   * @param db
+   * @param values
+   * @param uploadIds
+   *          -- _ID values in the UPLOADS_TABLE_NAME
+   * @param tableIdFormId
+   *          -- if not null, { tableId, formId } that the rows must belong to
+   * @param matched
+   *          -- if not null, receives the _ID values that were updated
+   * @return number of rows updated
+   */
+  private static int updateUploads(SqlTracer tracer, SQLiteDatabase db, ContentValues values,
+      List<String> uploadIds, String[] tableIdFormId, Set<String> matched) {
+    if (uploadIds.isEmpty()) {
+      return 0;
+    }
+    int scopeCount = (tableIdFormId == null) ? 0 : tableIdFormId.length;
+
     int count = 0;
-    for (IdStruct idStruct : idStructs) {
-      args[0] = idStruct.idUploadsTable;
-      count += db.update(DataModelDatabaseHelper.UPLOADS_TABLE_NAME, values,
-                         InstanceColumns._ID + "=?", args);
+    db.beginTransaction();
+    try {
+      for (int start = 0; start < uploadIds.size(); start += MAX_IN_LIST_SIZE) {
+        int end = Math.min(start + MAX_IN_LIST_SIZE, uploadIds.size());
+
+        StringBuilder b = new StringBuilder();
+        b.append(InstanceColumns._ID).append(" IN (");
+        for (int i = start; i < end; ++i) {
+          b.append((i == start) ? "?" : ",?");
+        }
+        b.append(")");
+        if (tableIdFormId != null) {
+          b.append(" AND ").append(InstanceColumns.DATA_TABLE_TABLE_ID).append("=?")
+           .append(" AND ").append(InstanceColumns.XML_PUBLISH_FORM_ID).append("=?");
+        }
+        String where = b.toString();
+
+        String[] args = new String[end - start + scopeCount];
+        for (int i = start; i < end; ++i) {
+          args[i - start] = uploadIds.get(i);
+        }
+        for (int i = 0; i < scopeCount; ++i) {
+          args[end - start + i] = tableIdFormId[i];
+        }
+
+        if (matched != null) {
+          Cursor c = null;
+          try {
+            c = db.query(DataModelDatabaseHelper.UPLOADS_TABLE_NAME,
+                new String[] { InstanceColumns._ID }, where, args, null, null, null);
+            while (c.moveToNext()) {
+              matched.add(c.getString(0));
+            }
+          } finally {
+            if (c != null && !c.isClosed()) {
+              c.close();
+            }
+          }
+        }
+
+        count += tracer.update(db, DataModelDatabaseHelper.UPLOADS_TABLE_NAME, values, where, args);
+      }
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
     }
-    getContext().getContentResolver().notifyChange(uri, null);
     return count;
   }
 
@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2014 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.common.android.utilities;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.BitSet;
+
+/**
+ * Streaming reader for RFC 4180 comma-separated values. Fields may be quoted
+ * with double-quotes, in which case they may contain commas, line breaks and
+ * doubled ("") double-quotes. Only one record is held in memory at a time.
+ * Both an empty field and a quoted empty field ("") are read as an empty
+ * string; use wasQuoted() to tell them apart.
+ */
+public class CsvReader implements Closeable {
+
+  private static final int BUFFER_SIZE = 8192;
+
+  private final Reader reader;
+  private final char[] buffer = new char[BUFFER_SIZE];
+  private int bufferLength = 0;
+  private int bufferPos = 0;
+  private boolean atStart = true;
+  private long lineNumber = 0L;
+  // the quoted fields of the last record
+  private final BitSet quotedFields = new BitSet();
+
+  public CsvReader(Reader reader) {
+    this.reader = reader;
+  }
+
+  /**
+   * @return the line number at which the last record returned by readNext()
+   *         ended (1-based).
+   */
+  public long getLineNumber() {
+    return lineNumber;
+  }
+
+  /**
+   * @param index
+   * @return true if the field at index of the last record returned by
+   *         readNext() was quoted.
+   */
+  public boolean wasQuoted(int index) {
+    return quotedFields.get(index);
+  }
+
+  private int read() throws IOException {
+    if (bufferPos == bufferLength) {
+      bufferLength = reader.read(buffer, 0, BUFFER_SIZE);
+      bufferPos = 0;
+      if (bufferLength <= 0) {
+        bufferLength = 0;
+        return -1;
+      }
+    }
+    return buffer[bufferPos++];
+  }
+
+  private int peek() throws IOException {
+    int ch = read();
+    if (ch != -1) {
+      --bufferPos;
+    }
+    return ch;
+  }
+
+  /**
+   * Read the next record.
+   *
+   * @return the fields of the record, or null at the end of the input.
+   * @throws IOException
+   */
+  public String[] readNext() throws IOException {
+    int ch = read();
+    if (atStart) {
+      atStart = false;
+      if (ch == '\uFEFF') {
+        // skip the byte-order mark
+        ch = read();
+      }
+    }
+    quotedFields.clear();
+    if (ch == -1) {
+      return null;
+    }
+
+    ArrayList<String> fields = new ArrayList<String>();
+    StringBuilder field = new StringBuilder();
+    boolean quoted = false;
+    boolean wasQuoted = false;
+    ++lineNumber;
+    for (;; ch = read()) {
+      if (quoted) {
+        if (ch == -1) {
+          throw new IOException("Unterminated quoted field at line " + lineNumber);
+        } else if (ch == '"') {
+          if (peek() == '"') {
+            read();
+            field.append('"');
+          } else {
+            quoted = false;
+          }
+        } else {
+          if (ch == '\n') {
+            ++lineNumber;
+          }
+          field.append((char) ch);
+        }
+      } else if (ch == '"' && field.length() == 0 && !wasQuoted) {
+        quoted = true;
+        wasQuoted = true;
+      } else if (ch == ',') {
+        quotedFields.set(fields.size(), wasQuoted);
+        fields.add(field.toString());
+        field.setLength(0);
+        wasQuoted = false;
+      } else if (ch == '\r' || ch == '\n' || ch == -1) {
+        if (ch == '\r' && peek() == '\n') {
+          read();
+        }
+        quotedFields.set(fields.size(), wasQuoted);
+        fields.add(field.toString());
+        return fields.toArray(new String[fields.size()]);
+      } else {
+        field.append((char) ch);
+      }
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    reader.close();
+  }
+}
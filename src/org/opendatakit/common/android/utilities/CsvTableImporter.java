@@ -0,0 +1,274 @@
+/*
+ * Copyright (C) 2014 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.common.android.utilities;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+import org.opendatakit.aggregate.odktables.rest.TableConstants;
+import org.opendatakit.common.android.database.DataModelDatabaseHelper;
+import org.opendatakit.common.android.database.DataModelDatabaseHelper.ColumnDefinition;
+import org.opendatakit.common.android.database.DataTableRowWriter;
+import org.opendatakit.common.android.provider.DataTableColumns;
+import org.opendatakit.common.android.provider.InstanceColumns;
+import org.opendatakit.common.android.provider.SyncState;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+/**
+ * Streams a CSV file into a data table.
+ * <p>
+ * The header row names the columns: either elementKeys of unit-of-retention
+ * columns of the table, or data-table metadata columns (_id,
+ * _savepoint_timestamp, etc.). Values are converted according to the
+ * elementType of the column (integer, number, boolean, or text for everything
+ * else); an empty field is stored as null, but a quoted empty field ("") in a
+ * text column is stored as an empty string. Metadata columns of the table that
+ * are not in the file are filled with defaults (a new UUID for _id, the
+ * current time for _savepoint_timestamp, etc.).
+ * </p>
+ * <p>
+ * Rows are written through a {@link DataTableRowWriter}, committing every
+ * batchSize rows; only one row is held in memory at a time. If the import
+ * fails, the rows of the current batch are rolled back, but the batches
+ * already committed remain in the table.
+ * </p>
+ */
+public class CsvTableImporter {
+  private static final String t = "CsvTableImporter";
+
+  public interface ProgressListener {
+    /**
+     * Called after each batch of rows is committed.
+     *
+     * @param rowsImported
+     *          -- total rows committed so far
+     */
+    void onProgress(long rowsImported);
+  }
+
+  private static final int TYPE_TEXT = 0;
+  private static final int TYPE_INTEGER = 1;
+  private static final int TYPE_NUMBER = 2;
+  private static final int TYPE_BOOLEAN = 3;
+
+  private final SQLiteDatabase db;
+  private final String tableId;
+
+  public CsvTableImporter(SQLiteDatabase db, String tableId) {
+    this.db = db;
+    this.tableId = tableId;
+  }
+
+  private static int getType(String elementType) {
+    if ("integer".equals(elementType)) {
+      return TYPE_INTEGER;
+    } else if ("number".equals(elementType)) {
+      return TYPE_NUMBER;
+    } else if ("boolean".equals(elementType)) {
+      return TYPE_BOOLEAN;
+    }
+    return TYPE_TEXT;
+  }
+
+  private Set<String> getTableColumns(String dbTableName) {
+    Set<String> columns = new HashSet<String>();
+    Cursor c = null;
+    try {
+      c = db.rawQuery(DataModelDatabaseHelper.getTableInfoSql(dbTableName), null);
+      int idxName = c.getColumnIndex("name");
+      while (c.moveToNext()) {
+        columns.add(c.getString(idxName));
+      }
+    } finally {
+      if (c != null && !c.isClosed()) {
+        c.close();
+      }
+    }
+    return columns;
+  }
+
+  /**
+   * Import the CSV file (UTF-8) into the table.
+   *
+   * @param csvFile
+   * @param batchSize
+   *          -- rows per transaction
+   * @param listener
+   *          -- may be null
+   * @return the number of rows imported
+   * @throws IOException
+   */
+  public long importCsv(File csvFile, int batchSize, ProgressListener listener)
+      throws IOException {
+    String dbTableName = DataModelDatabaseHelper.getDbTableName(db, tableId);
+    if (dbTableName == null) {
+      throw new IllegalArgumentException("Unknown tableId " + tableId);
+    }
+    Map<String, ColumnDefinition> defns = DataModelDatabaseHelper.getColumnDefinitions(db, tableId);
+    Set<String> tableColumns = getTableColumns(dbTableName);
+
+    CsvReader reader = new CsvReader(new BufferedReader(new InputStreamReader(
+        new FileInputStream(csvFile), "UTF-8")));
+    DataTableRowWriter writer = null;
+    boolean success = false;
+    try {
+      String[] header = reader.readNext();
+      if (header == null) {
+        Log.i(t, "importCsv: empty file " + csvFile.getAbsolutePath());
+        return 0L;
+      }
+
+      // map the header onto the table columns
+      List<String> columns = new ArrayList<String>();
+      int[] types = new int[header.length];
+      for (int i = 0; i < header.length; ++i) {
+        String name = header[i].trim();
+        ColumnDefinition cd = (defns == null) ? null : defns.get(name);
+        if (cd != null && cd.isUnitOfRetention) {
+          types[i] = getType(cd.elementType);
+        } else if (name.startsWith("_") && tableColumns.contains(name)) {
+          types[i] = DataTableColumns.CONFLICT_TYPE.equals(name) ? TYPE_INTEGER : TYPE_TEXT;
+        } else {
+          throw new IllegalArgumentException("Column " + name + " is not a column of " + tableId);
+        }
+        if (columns.contains(name)) {
+          throw new IllegalArgumentException("Column " + name + " is repeated in the header");
+        }
+        columns.add(name);
+      }
+
+      // default the metadata columns that are not supplied
+      List<String> defaulted = new ArrayList<String>();
+      for (String name : new String[] { DataTableColumns.ID, DataTableColumns.SYNC_STATE,
+          DataTableColumns.SAVEPOINT_TIMESTAMP, DataTableColumns.SAVEPOINT_TYPE,
+          DataTableColumns.SAVEPOINT_CREATOR, DataTableColumns.LOCALE }) {
+        if (tableColumns.contains(name) && !columns.contains(name)) {
+          defaulted.add(name);
+        }
+      }
+      List<String> allColumns = new ArrayList<String>(columns);
+      allColumns.addAll(defaulted);
+
+      writer = new DataTableRowWriter(db, dbTableName, batchSize);
+      DataTableRowWriter.Row row = writer.getRow(allColumns.toArray(new String[allColumns.size()]));
+      String savepointTimestamp = TableConstants.nanoSecondsFromMillis(System.currentTimeMillis());
+
+      long lastReported = 0L;
+      String[] fields;
+      while ((fields = reader.readNext()) != null) {
+        if (fields.length == 1 && fields[0].length() == 0 && !reader.wasQuoted(0)) {
+          // blank line
+          continue;
+        }
+        if (fields.length != header.length) {
+          throw new IllegalArgumentException("Expected " + header.length + " fields but found "
+              + fields.length + " at line " + reader.getLineNumber());
+        }
+        for (int i = 0; i < fields.length; ++i) {
+          String value = fields[i];
+          if (value.length() == 0) {
+            if (types[i] == TYPE_TEXT && reader.wasQuoted(i)) {
+              row.bindString(i, value);
+            } else {
+              row.bindNull(i);
+            }
+            continue;
+          }
+          try {
+            switch (types[i]) {
+            case TYPE_INTEGER:
+              row.bindLong(i, Long.parseLong(value.trim()));
+              break;
+            case TYPE_NUMBER:
+              row.bindDouble(i, Double.parseDouble(value.trim()));
+              break;
+            case TYPE_BOOLEAN:
+              row.bindBoolean(i, parseBoolean(value.trim()));
+              break;
+            default:
+              row.bindString(i, value);
+            }
+          } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid value '" + value + "' for column "
+                + columns.get(i) + " at line " + reader.getLineNumber());
+          }
+        }
+        int idx = columns.size();
+        for (String name : defaulted) {
+          if (DataTableColumns.ID.equals(name)) {
+            row.bindString(idx, UUID.randomUUID().toString());
+          } else if (DataTableColumns.SYNC_STATE.equals(name)) {
+            row.bindString(idx, SyncState.inserting.name());
+          } else if (DataTableColumns.SAVEPOINT_TIMESTAMP.equals(name)) {
+            row.bindString(idx, savepointTimestamp);
+          } else if (DataTableColumns.SAVEPOINT_TYPE.equals(name)) {
+            row.bindString(idx, InstanceColumns.STATUS_COMPLETE);
+          } else if (DataTableColumns.SAVEPOINT_CREATOR.equals(name)) {
+            row.bindString(idx, DataTableColumns.DEFAULT_SAVEPOINT_CREATOR);
+          } else {
+            row.bindString(idx, DataTableColumns.DEFAULT_LOCALE);
+          }
+          ++idx;
+        }
+        row.insert();
+
+        if (listener != null && writer.getRowsWritten() != lastReported) {
+          lastReported = writer.getRowsWritten();
+          listener.onProgress(lastReported);
+        }
+      }
+      writer.flush();
+      if (listener != null && writer.getRowsWritten() != lastReported) {
+        listener.onProgress(writer.getRowsWritten());
+      }
+      Log.i(t, "importCsv: imported " + writer.getRowsWritten() + " rows into " + tableId);
+      success = true;
+      return writer.getRowsWritten();
+    } finally {
+      try {
+        if (writer != null) {
+          if (success) {
+            writer.close();
+          } else {
+            writer.abort();
+          }
+        }
+      } finally {
+        reader.close();
+      }
+    }
+  }
+
+  private static boolean parseBoolean(String value) {
+    if ("true".equalsIgnoreCase(value) || "1".equals(value)) {
+      return true;
+    } else if ("false".equalsIgnoreCase(value) || "0".equals(value)) {
+      return false;
+    }
+    throw new NumberFormatException("Not a boolean: " + value);
+  }
+}
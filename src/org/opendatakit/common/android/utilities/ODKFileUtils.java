@@ -402,6 +402,11 @@ public class ODKFileUtils {
     return path;
   }
 
+  public static String getOutputFolder(String appName) {
+    String path = getAppFolder(appName) + File.separator + OUTPUT_FOLDER_NAME;
+    return path;
+  }
+
   public static String getLoggingFolder(String appName) {
     String path = getAppFolder(appName) + File.separator + LOGGING_FOLDER_NAME;
     return path;
@@ -0,0 +1,379 @@
+/*
+ * Copyright (C) 2014 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.common.android.utilities;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPOutputStream;
+
+import org.codehaus.jackson.JsonGenerator;
+import org.opendatakit.common.android.database.DataModelDatabaseHelper;
+import org.opendatakit.common.android.database.DataModelDatabaseHelper.ColumnDefinition;
+import org.opendatakit.common.android.database.ODKSQLiteOpenHelper;
+import org.opendatakit.common.android.provider.DataTableColumns;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+/**
+ * Streams the rows of data tables to CSV or JSON-lines files in the output
+ * folder of the appName (which is excluded from sync).
+ * <p>
+ * Rows are read in windows of windowSize rows, in rowid order, and written
+ * through a buffered (optionally gzipped) writer, so memory use does not
+ * depend on the size of the table. Rows inserted after the export starts are
+ * not exported. For a fully consistent snapshot (no concurrent updates or
+ * deletes), pass snapshot = true: the export then runs in a single
+ * transaction on the writable database, which blocks writers until it
+ * completes. Otherwise the readable database is used, which, with
+ * write-ahead logging enabled, lets several tables export in parallel.
+ * </p>
+ */
+public class TableExporter {
+  private static final String t = "TableExporter";
+
+  public enum Format {
+    CSV(".csv"), JSON_LINES(".jsonl");
+
+    final String extension;
+
+    Format(String extension) {
+      this.extension = extension;
+    }
+  }
+
+  public static final int DEFAULT_WINDOW_SIZE = 1000;
+
+  private static final int WRITER_BUFFER_SIZE = 64 * 1024;
+  private static final String ROWID_COLUMN = "_export_rowid";
+
+  private static final int TYPE_TEXT = 0;
+  private static final int TYPE_INTEGER = 1;
+  private static final int TYPE_NUMBER = 2;
+  private static final int TYPE_BOOLEAN = 3;
+
+  private final ODKSQLiteOpenHelper dbh;
+  private final String appName;
+  private int windowSize = DEFAULT_WINDOW_SIZE;
+
+  public TableExporter(ODKSQLiteOpenHelper dbh, String appName) {
+    this.dbh = dbh;
+    this.appName = appName;
+  }
+
+  public void setWindowSize(int windowSize) {
+    if (windowSize < 1) {
+      throw new IllegalArgumentException("windowSize must be >= 1, was " + windowSize);
+    }
+    this.windowSize = windowSize;
+  }
+
+  /**
+   * Export the tables in parallel.
+   *
+   * @param tableIds
+   * @param format
+   * @param gzip
+   * @param snapshot
+   * @param maxThreads
+   * @return map of (tableId -> exported file), in the order of tableIds
+   * @throws IOException
+   *           if any export fails (the other exports are still completed)
+   */
+  public Map<String, File> exportTables(List<String> tableIds, final Format format,
+      final boolean gzip, final boolean snapshot, int maxThreads) throws IOException {
+    ExecutorService executor = Executors.newFixedThreadPool(Math.max(1,
+        Math.min(maxThreads, tableIds.size())));
+    try {
+      Map<String, Future<File>> futures = new LinkedHashMap<String, Future<File>>();
+      for (final String tableId : tableIds) {
+        futures.put(tableId, executor.submit(new Callable<File>() {
+          @Override
+          public File call() throws Exception {
+            return exportTable(tableId, format, gzip, snapshot);
+          }
+        }));
+      }
+      Map<String, File> files = new LinkedHashMap<String, File>();
+      IOException failure = null;
+      for (Map.Entry<String, Future<File>> e : futures.entrySet()) {
+        try {
+          files.put(e.getKey(), e.getValue().get());
+        } catch (ExecutionException ex) {
+          Log.e(t, "exportTables: " + e.getKey() + " failed: " + ex.getCause().toString());
+          if (failure == null) {
+            failure = (ex.getCause() instanceof IOException) ? (IOException) ex.getCause()
+                : new IOException("Export of " + e.getKey() + " failed: "
+                    + ex.getCause().toString());
+          }
+        } catch (InterruptedException ex) {
+          Thread.currentThread().interrupt();
+          throw new IOException("Export interrupted");
+        }
+      }
+      if (failure != null) {
+        throw failure;
+      }
+      return files;
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  /**
+   * Export one table to outputFolder/tableId.csv (or .jsonl), with .gz
+   * appended if gzip is true. The file is written under a temporary name and
+   * renamed when complete.
+   *
+   * @param tableId
+   * @param format
+   * @param gzip
+   * @param snapshot
+   * @return the exported file
+   * @throws IOException
+   */
+  public File exportTable(String tableId, Format format, boolean gzip, boolean snapshot)
+      throws IOException {
+    // keep the database open (see OpenDatabaseBudget) for the whole export
+    dbh.acquire();
+    try {
+      SQLiteDatabase db = snapshot ? dbh.getWritableDatabase() : dbh.getReadableDatabase();
+      return exportTable(db, tableId, format, gzip, snapshot);
+    } finally {
+      dbh.release();
+    }
+  }
+
+  private File exportTable(SQLiteDatabase db, String tableId, Format format, boolean gzip,
+      boolean snapshot) throws IOException {
+    String dbTableName = DataModelDatabaseHelper.getDbTableName(db, tableId);
+    if (dbTableName == null) {
+      throw new IllegalArgumentException("Unknown tableId " + tableId);
+    }
+    Map<String, ColumnDefinition> defns = DataModelDatabaseHelper.getColumnDefinitions(db, tableId);
+
+    String outputFolder = ODKFileUtils.getOutputFolder(appName);
+    ODKFileUtils.createFolder(outputFolder);
+    File file = new File(outputFolder, tableId + format.extension + (gzip ? ".gz" : ""));
+    File tmpFile = new File(outputFolder, file.getName() + ".tmp");
+
+    long rows = 0L;
+    boolean success = false;
+    if (snapshot) {
+      db.beginTransaction();
+    }
+    try {
+      OutputStream os = new FileOutputStream(tmpFile);
+      if (gzip) {
+        os = new GZIPOutputStream(os, WRITER_BUFFER_SIZE);
+      }
+      Writer writer = new BufferedWriter(new OutputStreamWriter(os, "UTF-8"), WRITER_BUFFER_SIZE);
+      try {
+        rows = writeRows(db, dbTableName, defns, format, writer);
+      } finally {
+        writer.close();
+      }
+      if (snapshot) {
+        db.setTransactionSuccessful();
+      }
+      success = true;
+    } finally {
+      if (snapshot) {
+        db.endTransaction();
+      }
+      if (!success) {
+        tmpFile.delete();
+      }
+    }
+
+    if (file.exists()) {
+      file.delete();
+    }
+    if (!tmpFile.renameTo(file)) {
+      tmpFile.delete();
+      throw new IOException("Unable to rename " + tmpFile.getAbsolutePath());
+    }
+    Log.i(t, "exportTable: " + rows + " rows of " + tableId + " to " + file.getAbsolutePath());
+    return file;
+  }
+
+  private static int getType(String columnName, Map<String, ColumnDefinition> defns) {
+    ColumnDefinition cd = (defns == null) ? null : defns.get(columnName);
+    if (cd == null) {
+      return DataTableColumns.CONFLICT_TYPE.equals(columnName) ? TYPE_INTEGER : TYPE_TEXT;
+    } else if ("integer".equals(cd.elementType)) {
+      return TYPE_INTEGER;
+    } else if ("number".equals(cd.elementType)) {
+      return TYPE_NUMBER;
+    } else if ("boolean".equals(cd.elementType)) {
+      return TYPE_BOOLEAN;
+    }
+    return TYPE_TEXT;
+  }
+
+  private long getMaxRowId(SQLiteDatabase db, String dbTableName) {
+    Cursor c = null;
+    try {
+      c = db.rawQuery("SELECT max(rowid) FROM "
+          + DataModelDatabaseHelper.quoteDbTableName(dbTableName), null);
+      if (c.moveToFirst() && !c.isNull(0)) {
+        return c.getLong(0);
+      }
+      return 0L;
+    } finally {
+      if (c != null && !c.isClosed()) {
+        c.close();
+      }
+    }
+  }
+
+  private long writeRows(SQLiteDatabase db, String dbTableName,
+      Map<String, ColumnDefinition> defns, Format format, Writer writer) throws IOException {
+    long maxRowId = getMaxRowId(db, dbTableName);
+    String sql = "SELECT rowid AS " + ROWID_COLUMN + ", * FROM "
+        + DataModelDatabaseHelper.quoteDbTableName(dbTableName)
+        + " WHERE rowid > ? AND rowid <= ? ORDER BY rowid LIMIT " + windowSize;
+
+    JsonGenerator jg = null;
+    if (format == Format.JSON_LINES) {
+      jg = ODKFileUtils.mapper.getJsonFactory().createJsonGenerator(writer);
+      jg.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+    }
+
+    String[] names = null;
+    int[] types = null;
+    long rows = 0L;
+    long lastRowId = Long.MIN_VALUE;
+    for (;;) {
+      Cursor c = null;
+      int windowRows = 0;
+      try {
+        c = db.rawQuery(sql,
+            new String[] { Long.toString(lastRowId), Long.toString(maxRowId) });
+        if (names == null) {
+          // column 0 is the rowid
+          String[] all = c.getColumnNames();
+          names = new String[all.length - 1];
+          types = new int[names.length];
+          for (int i = 0; i < names.length; ++i) {
+            names[i] = all[i + 1];
+            types[i] = getType(names[i], defns);
+          }
+          if (format == Format.CSV) {
+            for (int i = 0; i < names.length; ++i) {
+              if (i != 0) {
+                writer.write(',');
+              }
+              writeCsvField(writer, names[i]);
+            }
+            writer.write("\r\n");
+          }
+        }
+        while (c.moveToNext()) {
+          lastRowId = c.getLong(0);
+          if (format == Format.CSV) {
+            writeCsvRow(writer, c, names.length);
+          } else {
+            writeJsonRow(jg, c, names, types);
+          }
+          ++windowRows;
+        }
+      } finally {
+        if (c != null && !c.isClosed()) {
+          c.close();
+        }
+      }
+      rows += windowRows;
+      if (windowRows < windowSize) {
+        break;
+      }
+    }
+    if (jg != null) {
+      jg.flush();
+    }
+    return rows;
+  }
+
+  private static void writeCsvRow(Writer writer, Cursor c, int columnCount) throws IOException {
+    for (int i = 0; i < columnCount; ++i) {
+      if (i != 0) {
+        writer.write(',');
+      }
+      if (!c.isNull(i + 1)) {
+        writeCsvField(writer, c.getString(i + 1));
+      }
+    }
+    writer.write("\r\n");
+  }
+
+  private static void writeCsvField(Writer writer, String value) throws IOException {
+    boolean quote = value.length() == 0;
+    for (int i = 0; !quote && i < value.length(); ++i) {
+      char ch = value.charAt(i);
+      quote = (ch == ',' || ch == '"' || ch == '\r' || ch == '\n');
+    }
+    if (!quote) {
+      writer.write(value);
+      return;
+    }
+    // empty strings are quoted so that they can be told apart from null (see
+    // CsvReader.wasQuoted())
+    writer.write('"');
+    writer.write(value.replace("\"", "\"\""));
+    writer.write('"');
+  }
+
+  private static void writeJsonRow(JsonGenerator jg, Cursor c, String[] names, int[] types)
+      throws IOException {
+    jg.writeStartObject();
+    for (int i = 0; i < names.length; ++i) {
+      int idx = i + 1;
+      jg.writeFieldName(names[i]);
+      if (c.isNull(idx)) {
+        jg.writeNull();
+        continue;
+      }
+      switch (types[i]) {
+      case TYPE_INTEGER:
+        jg.writeNumber(c.getLong(idx));
+        break;
+      case TYPE_NUMBER:
+        jg.writeNumber(c.getDouble(idx));
+        break;
+      case TYPE_BOOLEAN:
+        jg.writeBoolean(c.getLong(idx) != 0L);
+        break;
+      default:
+        jg.writeString(c.getString(idx));
+      }
+    }
+    jg.writeEndObject();
+    jg.writeRaw('\n');
+  }
+}
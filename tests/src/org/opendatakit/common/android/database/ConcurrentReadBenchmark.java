@@ -0,0 +1,215 @@
+/*
+ * Copyright (C) 2014 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.common.android.database;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Build;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+/**
+ * Reads issued from several threads while another thread holds write
+ * transactions, with and without write-ahead logging. The throughput figures
+ * are logged under this class's tag. Write-ahead logging needs API 16, so
+ * the tests do nothing on older devices.
+ */
+public class ConcurrentReadBenchmark extends AndroidTestCase {
+  private static final String t = "ConcurrentReadBenchmark";
+
+  private static final String DB_NAME = "benchmark.db";
+  private static final int ROWS = 2000;
+  private static final long RUN_MILLIS = 2000L;
+  private static final long WRITE_TRANSACTION_MILLIS = 50L;
+
+  private static final class BenchmarkHelper extends ODKSQLiteOpenHelper {
+    BenchmarkHelper(File dir) {
+      super(dir.getAbsolutePath(), DB_NAME, null, 1);
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+      db.execSQL("CREATE TABLE t (_id INTEGER PRIMARY KEY, v TEXT)");
+      for (int i = 0; i < ROWS; ++i) {
+        db.execSQL("INSERT INTO t (v) VALUES (?)", new Object[] { "value " + i });
+      }
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+    }
+  }
+
+  private File dir;
+  private BenchmarkHelper dbh;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    dir = new File(getContext().getCacheDir(), t);
+    deleteDatabaseFiles();
+    dir.mkdirs();
+    dbh = new BenchmarkHelper(dir);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    dbh.close();
+    deleteDatabaseFiles();
+    super.tearDown();
+  }
+
+  private void deleteDatabaseFiles() {
+    for (String suffix : new String[] { "", "-journal", "-wal", "-shm" }) {
+      new File(dir, DB_NAME + suffix).delete();
+    }
+  }
+
+  private static long countRows(SQLiteDatabase db) {
+    Cursor c = null;
+    try {
+      c = db.rawQuery("SELECT count(*), max(v) FROM t", null);
+      return c.moveToFirst() ? c.getLong(0) : -1L;
+    } finally {
+      if (c != null && !c.isClosed()) {
+        c.close();
+      }
+    }
+  }
+
+  /**
+   * With write-ahead logging, a read from another thread completes while a
+   * write transaction is open, and does not see its uncommitted changes.
+   */
+  public void testReadDoesNotWaitForWriteTransaction() throws Exception {
+    if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+      return;
+    }
+    dbh.setWriteAheadLoggingEnabled(true);
+    final SQLiteDatabase db = dbh.getWritableDatabase();
+    final CountDownLatch inTransaction = new CountDownLatch(1);
+    final CountDownLatch readDone = new CountDownLatch(1);
+    Thread writer = new Thread() {
+      @Override
+      public void run() {
+        db.beginTransaction();
+        try {
+          db.execSQL("DELETE FROM t");
+          inTransaction.countDown();
+          readDone.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        } finally {
+          db.endTransaction();
+        }
+      }
+    };
+    writer.start();
+    ExecutorService reader = Executors.newSingleThreadExecutor();
+    try {
+      assertTrue(inTransaction.await(10, TimeUnit.SECONDS));
+      Future<Long> count = reader.submit(new Callable<Long>() {
+        @Override
+        public Long call() {
+          return countRows(dbh.getReadableDatabase());
+        }
+      });
+      assertEquals(ROWS, count.get(5, TimeUnit.SECONDS).longValue());
+    } finally {
+      readDone.countDown();
+      writer.join();
+      reader.shutdown();
+    }
+  }
+
+  public void testConcurrentReadThroughput() throws Exception {
+    if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+      return;
+    }
+    for (boolean wal : new boolean[] { false, true }) {
+      for (int readers : new int[] { 1, 2, 4 }) {
+        long reads = measureReads(wal, readers);
+        assertTrue(reads > 0L);
+        Log.i(t, "wal: " + wal + " readers: " + readers + " reads/s: "
+            + (reads * 1000L / RUN_MILLIS));
+      }
+    }
+  }
+
+  /**
+   * For RUN_MILLIS, one thread repeatedly holds a write transaction open for
+   * WRITE_TRANSACTION_MILLIS while the reader threads query as fast as they
+   * can.
+   *
+   * @return the number of queries completed by the readers.
+   */
+  private long measureReads(boolean wal, int readers) throws Exception {
+    dbh.setWriteAheadLoggingEnabled(wal);
+    final SQLiteDatabase db = dbh.getWritableDatabase();
+    final long deadline = SystemClock.elapsedRealtime() + RUN_MILLIS;
+    final AtomicLong reads = new AtomicLong(0L);
+
+    ExecutorService executor = Executors.newFixedThreadPool(readers + 1);
+    try {
+      List<Future<?>> futures = new ArrayList<Future<?>>();
+      futures.add(executor.submit(new Callable<Void>() {
+        @Override
+        public Void call() throws InterruptedException {
+          while (SystemClock.elapsedRealtime() < deadline) {
+            db.beginTransaction();
+            try {
+              db.execSQL("UPDATE t SET v = v WHERE _id % 10 = 0");
+              Thread.sleep(WRITE_TRANSACTION_MILLIS);
+              db.setTransactionSuccessful();
+            } finally {
+              db.endTransaction();
+            }
+          }
+          return null;
+        }
+      }));
+      for (int i = 0; i < readers; ++i) {
+        futures.add(executor.submit(new Callable<Void>() {
+          @Override
+          public Void call() {
+            while (SystemClock.elapsedRealtime() < deadline) {
+              assertEquals(ROWS, countRows(dbh.getReadableDatabase()));
+              reads.incrementAndGet();
+            }
+            return null;
+          }
+        }));
+      }
+      for (Future<?> f : futures) {
+        f.get(RUN_MILLIS * 5, TimeUnit.MILLISECONDS);
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+    return reads.get();
+  }
+}
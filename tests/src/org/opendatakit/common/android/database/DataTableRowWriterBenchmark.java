@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2014 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.common.android.database;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.opendatakit.common.android.database.DataModelDatabaseHelper.ColumnDefinition;
+import org.opendatakit.common.android.provider.DataTableColumns;
+import org.opendatakit.common.android.provider.SyncState;
+
+import android.content.ContentValues;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+/**
+ * Loads ROWS rows into a data table through SQLiteDatabase.insert() with
+ * ContentValues and through a DataTableRowWriter, both committing every
+ * BATCH_SIZE rows. The rows/s figures are logged under this class's tag.
+ */
+public class DataTableRowWriterBenchmark extends AndroidTestCase {
+  private static final String t = "DataTableRowWriterBenchmark";
+
+  private static final String DB_NAME = "rowwriter.db";
+  private static final String TABLE = "survey";
+  private static final int ROWS = 100000;
+  private static final int BATCH_SIZE = DataTableRowWriter.DEFAULT_BATCH_SIZE;
+  private static final String TIMESTAMP = "2014-06-01T00:00:00.000000000";
+
+  private static final String[] COLUMNS = { DataTableColumns.ID, DataTableColumns.SYNC_STATE,
+      DataTableColumns.SAVEPOINT_TIMESTAMP, "name", "age", "weight", "smoker" };
+
+  private File dir;
+  private SQLiteDatabase db;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    dir = new File(getContext().getCacheDir(), t);
+    deleteDatabaseFiles();
+    dir.mkdirs();
+    db = SQLiteDatabase.openOrCreateDatabase(new File(dir, DB_NAME).getAbsolutePath(), null);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    db.close();
+    deleteDatabaseFiles();
+    super.tearDown();
+  }
+
+  private void deleteDatabaseFiles() {
+    for (String suffix : new String[] { "", "-journal", "-wal", "-shm" }) {
+      new File(dir, DB_NAME + suffix).delete();
+    }
+  }
+
+  private void createTable() {
+    Map<String, ColumnDefinition> defns = new HashMap<String, ColumnDefinition>();
+    defns.put("name", new ColumnDefinition("name", "name", "string", true));
+    defns.put("age", new ColumnDefinition("age", "age", "integer", true));
+    defns.put("weight", new ColumnDefinition("weight", "weight", "number", true));
+    defns.put("smoker", new ColumnDefinition("smoker", "smoker", "boolean", true));
+    db.execSQL("DROP TABLE IF EXISTS \"" + TABLE + "\"");
+    db.execSQL(DataModelDatabaseHelper.getDataTableCreateSql(TABLE, defns));
+  }
+
+  private long countRows() {
+    return db.compileStatement("SELECT count(*) FROM \"" + TABLE + "\"").simpleQueryForLong();
+  }
+
+  private long insertWithContentValues() {
+    long start = SystemClock.elapsedRealtime();
+    for (int i = 0; i < ROWS; i += BATCH_SIZE) {
+      db.beginTransaction();
+      try {
+        for (int j = i; j < i + BATCH_SIZE && j < ROWS; ++j) {
+          ContentValues v = new ContentValues();
+          v.put(DataTableColumns.ID, "uuid:" + j);
+          v.put(DataTableColumns.SYNC_STATE, SyncState.inserting.name());
+          v.put(DataTableColumns.SAVEPOINT_TIMESTAMP, TIMESTAMP);
+          v.put("name", "name " + j);
+          v.put("age", j % 100);
+          v.put("weight", 50.0 + j / 8.0);
+          v.put("smoker", (j % 2 == 0) ? 1 : 0);
+          db.insertOrThrow(TABLE, null, v);
+        }
+        db.setTransactionSuccessful();
+      } finally {
+        db.endTransaction();
+      }
+    }
+    return SystemClock.elapsedRealtime() - start;
+  }
+
+  private long insertWithRowWriter() {
+    long start = SystemClock.elapsedRealtime();
+    DataTableRowWriter w = new DataTableRowWriter(db, TABLE, BATCH_SIZE);
+    boolean success = false;
+    try {
+      DataTableRowWriter.Row row = w.getRow(COLUMNS);
+      for (int j = 0; j < ROWS; ++j) {
+        row.bindString(0, "uuid:" + j).bindString(1, SyncState.inserting.name())
+            .bindString(2, TIMESTAMP).bindString(3, "name " + j).bindLong(4, j % 100)
+            .bindDouble(5, 50.0 + j / 8.0).bindBoolean(6, j % 2 == 0).insert();
+      }
+      success = true;
+    } finally {
+      if (success) {
+        w.close();
+      } else {
+        w.abort();
+      }
+    }
+    return SystemClock.elapsedRealtime() - start;
+  }
+
+  private static long rowsPerSecond(long millis) {
+    return (millis == 0L) ? ROWS : ROWS * 1000L / millis;
+  }
+
+  public void testInsertThroughput() {
+    createTable();
+    long contentValuesMillis = insertWithContentValues();
+    assertEquals(ROWS, countRows());
+
+    createTable();
+    long rowWriterMillis = insertWithRowWriter();
+    assertEquals(ROWS, countRows());
+
+    Log.i(t, "rows: " + ROWS + " batch: " + BATCH_SIZE + " ContentValues rows/s: "
+        + rowsPerSecond(contentValuesMillis) + " DataTableRowWriter rows/s: "
+        + rowsPerSecond(rowWriterMillis));
+  }
+}
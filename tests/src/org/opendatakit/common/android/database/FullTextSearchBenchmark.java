@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2014 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.common.android.database;
+
+import java.io.File;
+import java.util.Collections;
+
+import org.opendatakit.common.android.provider.ColumnDefinitionsColumns;
+import org.opendatakit.common.android.provider.DataTableColumns;
+import org.opendatakit.common.android.provider.SyncState;
+import org.opendatakit.common.android.provider.TableDefinitionsColumns;
+
+import android.content.ContentValues;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+/**
+ * Searches a ROWS-row data table for an instance name, through its full-text
+ * index and through a LIKE scan, in the forms the instances provider uses for
+ * its _search segment. The time per query is logged under this class's tag.
+ */
+public class FullTextSearchBenchmark extends AndroidTestCase {
+  private static final String t = "FullTextSearchBenchmark";
+
+  private static final String DB_NAME = "fts.db";
+  private static final String TABLE_ID = "survey";
+  private static final String NAME = "name";
+  private static final int ROWS = 100000;
+  private static final int VILLAGES = 500;
+  private static final int QUERIES = 20;
+
+  private File dir;
+  private DataModelDatabaseHelper dbh;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    dir = new File(getContext().getCacheDir(), t);
+    deleteDatabaseFiles();
+    dir.mkdirs();
+    dbh = new DataModelDatabaseHelper(dir.getAbsolutePath(), DB_NAME);
+    SQLiteDatabase db = dbh.getWritableDatabase();
+    dbh.getMaintenance().setEnabled(false);
+
+    ContentValues v = new ContentValues();
+    v.put(TableDefinitionsColumns.TABLE_ID, TABLE_ID);
+    v.put(TableDefinitionsColumns.DB_TABLE_NAME, TABLE_ID);
+    v.put(TableDefinitionsColumns.LAST_SYNC_TIME, "-1");
+    v.put(TableDefinitionsColumns.SYNC_STATE, SyncState.inserting.name());
+    v.put(TableDefinitionsColumns.TRANSACTIONING, 0);
+    db.insertOrThrow(DataModelDatabaseHelper.TABLE_DEFS_TABLE_NAME, null, v);
+    v = new ContentValues();
+    v.put(ColumnDefinitionsColumns.TABLE_ID, TABLE_ID);
+    v.put(ColumnDefinitionsColumns.ELEMENT_KEY, NAME);
+    v.put(ColumnDefinitionsColumns.ELEMENT_NAME, NAME);
+    v.put(ColumnDefinitionsColumns.ELEMENT_TYPE, "string");
+    v.put(ColumnDefinitionsColumns.IS_UNIT_OF_RETENTION, 1);
+    db.insertOrThrow(DataModelDatabaseHelper.COLUMN_DEFINITIONS_TABLE_NAME, null, v);
+    DataModelDatabaseHelper.createDataTable(db, TABLE_ID);
+
+    DataTableRowWriter w = new DataTableRowWriter(db, TABLE_ID);
+    boolean success = false;
+    try {
+      DataTableRowWriter.Row row = w.getRow(new String[] { DataTableColumns.ID,
+          DataTableColumns.SYNC_STATE, DataTableColumns.SAVEPOINT_TIMESTAMP, NAME });
+      for (int i = 0; i < ROWS; ++i) {
+        row.bindString(0, "uuid:" + i).bindString(1, SyncState.inserting.name())
+            .bindString(2, "2014-06-01T00:00:00.000000000")
+            .bindString(3, "respondent " + i + " of village" + (i % VILLAGES)).insert();
+      }
+      success = true;
+    } finally {
+      if (success) {
+        w.close();
+      } else {
+        w.abort();
+      }
+    }
+    DataModelDatabaseHelper.createFullTextIndex(db, TABLE_ID, Collections.singletonList(NAME));
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    dbh.close();
+    deleteDatabaseFiles();
+    super.tearDown();
+  }
+
+  private void deleteDatabaseFiles() {
+    for (String suffix : new String[] { "", "-journal", "-wal", "-shm" }) {
+      new File(dir, DB_NAME + suffix).delete();
+    }
+  }
+
+  /**
+   * @return the milliseconds per query; every query must count expected rows.
+   */
+  private long timeQuery(SQLiteDatabase db, String sql, String arg, long expected) {
+    SQLiteStatement stmt = db.compileStatement(sql);
+    try {
+      long start = SystemClock.elapsedRealtime();
+      for (int i = 0; i < QUERIES; ++i) {
+        stmt.bindString(1, arg);
+        assertEquals(expected, stmt.simpleQueryForLong());
+      }
+      return (SystemClock.elapsedRealtime() - start) / QUERIES;
+    } finally {
+      stmt.close();
+    }
+  }
+
+  public void testSearchTime() {
+    SQLiteDatabase db = dbh.getReadableDatabase();
+    String ftsTableName = "\"" + DataModelDatabaseHelper.getFullTextIndexTableName(TABLE_ID)
+        + "\"";
+    long expected = ROWS / VILLAGES;
+
+    long ftsMillis = timeQuery(db, "SELECT count(*) FROM \"" + TABLE_ID + "\" WHERE rowid IN"
+        + " (SELECT docid FROM " + ftsTableName + " WHERE " + ftsTableName + " MATCH ?)",
+        "\"village123\"", expected);
+    long likeMillis = timeQuery(db, "SELECT count(*) FROM \"" + TABLE_ID + "\" WHERE \"" + NAME
+        + "\" LIKE ? ESCAPE '\\'", "%village123%", expected);
+
+    Log.i(t, "rows: " + ROWS + " matches: " + expected + " full-text ms/query: " + ftsMillis
+        + " LIKE ms/query: " + likeMillis);
+  }
+}
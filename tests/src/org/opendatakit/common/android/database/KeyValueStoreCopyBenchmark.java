@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2014 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.common.android.database;
+
+import java.io.File;
+
+import org.opendatakit.common.android.database.DataModelDatabaseHelper.KeyValueStoreChanges;
+import org.opendatakit.common.android.database.DataModelDatabaseHelper.KeyValueStoreDiff;
+import org.opendatakit.common.android.provider.KeyValueStoreColumns;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+/**
+ * Copies the KEYS entries of a tableId from the default to the active
+ * key-value store, row by row through Java and with
+ * copyKeyValueStoreEntries(), and diffs the two stores. The destination
+ * starts with half of the keys (a quarter with a different value), EXTRA
+ * keys of its own and the entries of another tableId. The times are logged
+ * under this class's tag.
+ */
+public class KeyValueStoreCopyBenchmark extends AndroidTestCase {
+  private static final String t = "KeyValueStoreCopyBenchmark";
+
+  private static final String DB_NAME = "kvs.db";
+  private static final String FROM = DataModelDatabaseHelper.KEY_VALUE_STORE_DEFAULT_TABLE_NAME;
+  private static final String TO = DataModelDatabaseHelper.KEY_VALUE_STORE_ACTIVE_TABLE_NAME;
+  private static final String TABLE_ID = "survey";
+  private static final String OTHER_TABLE_ID = "other";
+  private static final int KEYS = 5000;
+  private static final int EXTRA = 500;
+
+  private static final String[] KVS_COLUMNS = { KeyValueStoreColumns.TABLE_ID,
+      KeyValueStoreColumns.PARTITION, KeyValueStoreColumns.ASPECT, KeyValueStoreColumns.KEY,
+      KeyValueStoreColumns.VALUE_TYPE, KeyValueStoreColumns.VALUE };
+
+  private File dir;
+  private SQLiteDatabase db;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    dir = new File(getContext().getCacheDir(), t);
+    deleteDatabaseFiles();
+    dir.mkdirs();
+    db = SQLiteDatabase.openOrCreateDatabase(new File(dir, DB_NAME).getAbsolutePath(), null);
+    db.execSQL(KeyValueStoreColumns.getTableCreateSql(FROM));
+    db.execSQL(KeyValueStoreColumns.getTableCreateSql(TO));
+    db.beginTransaction();
+    try {
+      for (int i = 0; i < KEYS; ++i) {
+        insert(FROM, TABLE_ID, i, "value " + i);
+      }
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    db.close();
+    deleteDatabaseFiles();
+    super.tearDown();
+  }
+
+  private void deleteDatabaseFiles() {
+    for (String suffix : new String[] { "", "-journal", "-wal", "-shm" }) {
+      new File(dir, DB_NAME + suffix).delete();
+    }
+  }
+
+  private void insert(String kvsTableName, String tableId, int key, String value) {
+    db.execSQL("INSERT INTO " + kvsTableName + " (" + KeyValueStoreColumns.TABLE_ID + ","
+        + KeyValueStoreColumns.PARTITION + "," + KeyValueStoreColumns.ASPECT + ","
+        + KeyValueStoreColumns.KEY + "," + KeyValueStoreColumns.VALUE_TYPE + ","
+        + KeyValueStoreColumns.VALUE + ") VALUES (?,'Table','default',?,'string',?)",
+        new Object[] { tableId, "key" + key, value });
+  }
+
+  private void resetDestination() {
+    db.beginTransaction();
+    try {
+      db.delete(TO, null, null);
+      for (int i = 0; i < KEYS; i += 2) {
+        insert(TO, TABLE_ID, i, (i % 4 == 0) ? "changed " + i : "value " + i);
+      }
+      for (int i = KEYS; i < KEYS + EXTRA; ++i) {
+        insert(TO, TABLE_ID, i, "extra " + i);
+        insert(TO, OTHER_TABLE_ID, i, "other " + i);
+      }
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+  }
+
+  /**
+   * The copy made without set-based statements: every source entry is read
+   * into Java and written back individually.
+   */
+  private void copyRowByRow() {
+    db.beginTransaction();
+    try {
+      db.delete(TO, KeyValueStoreColumns.TABLE_ID + "=?", new String[] { TABLE_ID });
+      Cursor c = null;
+      try {
+        c = db.query(FROM, KVS_COLUMNS, KeyValueStoreColumns.TABLE_ID + "=?",
+            new String[] { TABLE_ID }, null, null, null);
+        while (c.moveToNext()) {
+          ContentValues v = new ContentValues();
+          for (int i = 0; i < KVS_COLUMNS.length; ++i) {
+            v.put(KVS_COLUMNS[i], c.getString(i));
+          }
+          assertTrue(db.replace(TO, null, v) != -1L);
+        }
+      } finally {
+        if (c != null && !c.isClosed()) {
+          c.close();
+        }
+      }
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+  }
+
+  private void assertStoresEqual() {
+    KeyValueStoreDiff diff = DataModelDatabaseHelper.diffKeyValueStoreEntries(db, FROM, TO,
+        TABLE_ID);
+    assertEquals(0, diff.added.size());
+    assertEquals(0, diff.removed.size());
+    assertEquals(0, diff.changed.size());
+    SQLiteStatement stmt = db.compileStatement("SELECT count(*) FROM " + TO + " WHERE "
+        + KeyValueStoreColumns.TABLE_ID + "='" + OTHER_TABLE_ID + "'");
+    try {
+      assertEquals(EXTRA, stmt.simpleQueryForLong());
+    } finally {
+      stmt.close();
+    }
+  }
+
+  public void testCopyTime() {
+    resetDestination();
+    long start = SystemClock.elapsedRealtime();
+    KeyValueStoreDiff diff = DataModelDatabaseHelper.diffKeyValueStoreEntries(db, FROM, TO,
+        TABLE_ID);
+    long diffMillis = SystemClock.elapsedRealtime() - start;
+    assertEquals(KEYS / 2, diff.added.size());
+    assertEquals(EXTRA, diff.removed.size());
+    assertEquals(KEYS / 4, diff.changed.size());
+
+    start = SystemClock.elapsedRealtime();
+    copyRowByRow();
+    long rowByRowMillis = SystemClock.elapsedRealtime() - start;
+    assertStoresEqual();
+
+    resetDestination();
+    start = SystemClock.elapsedRealtime();
+    KeyValueStoreChanges changes = DataModelDatabaseHelper.copyKeyValueStoreEntries(db, FROM, TO,
+        TABLE_ID);
+    long setBasedMillis = SystemClock.elapsedRealtime() - start;
+    assertEquals(KEYS / 2 + KEYS / 4, changes.written);
+    assertEquals(EXTRA, changes.deleted);
+    assertStoresEqual();
+
+    Log.i(t, "keys: " + KEYS + " diff ms: " + diffMillis + " row-by-row copy ms: "
+        + rowByRowMillis + " set-based copy ms: " + setBasedMillis);
+  }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2014 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.common.android.database;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.opendatakit.common.android.database.DataModelDatabaseHelper.ColumnDefinition;
+import org.opendatakit.common.android.provider.DataTableColumns;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+/**
+ * Data tables created by getDataTableCreateSql() against the same table with
+ * every column TEXT: the on-disk size and the range queries on a numeric
+ * column. Both tables are filled with the same rows.
+ */
+public class TypedDataTableTest extends AndroidTestCase {
+  private static final String t = "TypedDataTableTest";
+
+  private static final String TABLE = "survey";
+  private static final String AGE = "age";
+  private static final String WEIGHT = "weight";
+  private static final String NAME = "name";
+  private static final int ROWS = 5000;
+
+  private SQLiteDatabase typed;
+  private SQLiteDatabase untyped;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    Map<String, ColumnDefinition> defns = new HashMap<String, ColumnDefinition>();
+    defns.put(AGE, new ColumnDefinition(AGE, AGE, "integer", true));
+    defns.put(WEIGHT, new ColumnDefinition(WEIGHT, WEIGHT, "number", true));
+    defns.put(NAME, new ColumnDefinition(NAME, NAME, "string", true));
+    String sql = DataModelDatabaseHelper.getDataTableCreateSql(TABLE, defns);
+
+    typed = SQLiteDatabase.create(null);
+    typed.execSQL(sql);
+    untyped = SQLiteDatabase.create(null);
+    untyped.execSQL(sql.replace(" INTEGER ", " TEXT ").replace(" REAL ", " TEXT "));
+    fill(typed);
+    fill(untyped);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    typed.close();
+    untyped.close();
+    super.tearDown();
+  }
+
+  /**
+   * The values are bound as strings, as the content providers do.
+   */
+  private static void fill(SQLiteDatabase db) {
+    db.beginTransaction();
+    try {
+      for (int i = 0; i < ROWS; ++i) {
+        db.execSQL("INSERT INTO \"" + TABLE + "\" (" + DataTableColumns.ID + ", "
+            + DataTableColumns.SYNC_STATE + ", " + DataTableColumns.SAVEPOINT_TIMESTAMP + ", \""
+            + AGE + "\", \"" + WEIGHT + "\", \"" + NAME + "\") VALUES (?, 'new_row', ?, ?, ?, ?)",
+            new String[] { "uuid:" + i, "2014-06-01T00:00:00.000000000",
+                Integer.toString(1000000000 + i), Double.toString(50.0 + i / 8.0), "name " + i });
+      }
+      db.execSQL("CREATE INDEX \"" + TABLE + "_age\" ON \"" + TABLE + "\" (\"" + AGE + "\")");
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+  }
+
+  private static long queryLong(SQLiteDatabase db, String sql, String[] args) {
+    Cursor c = null;
+    try {
+      c = db.rawQuery(sql, args);
+      return c.moveToFirst() ? c.getLong(0) : -1L;
+    } finally {
+      if (c != null && !c.isClosed()) {
+        c.close();
+      }
+    }
+  }
+
+  private static String getQueryPlan(SQLiteDatabase db, String sql, String[] args) {
+    StringBuilder b = new StringBuilder();
+    Cursor c = null;
+    try {
+      c = db.rawQuery("EXPLAIN QUERY PLAN " + sql, args);
+      while (c.moveToNext()) {
+        // the detail is the last column on every SQLite version
+        b.append(c.getString(c.getColumnCount() - 1)).append('\n');
+      }
+    } finally {
+      if (c != null && !c.isClosed()) {
+        c.close();
+      }
+    }
+    return b.toString();
+  }
+
+  public void testColumnsHaveTheirAffinity() {
+    assertEquals("integer", typed.compileStatement(
+        "SELECT typeof(\"" + AGE + "\") FROM \"" + TABLE + "\" LIMIT 1").simpleQueryForString());
+    assertEquals("real", typed.compileStatement(
+        "SELECT typeof(\"" + WEIGHT + "\") FROM \"" + TABLE + "\" LIMIT 1").simpleQueryForString());
+    assertEquals("text", untyped.compileStatement(
+        "SELECT typeof(\"" + AGE + "\") FROM \"" + TABLE + "\" LIMIT 1").simpleQueryForString());
+  }
+
+  public void testTypedTableIsSmaller() {
+    long typedPages = queryLong(typed, "PRAGMA page_count", null);
+    long untypedPages = queryLong(untyped, "PRAGMA page_count", null);
+    Log.i(t, "pages typed: " + typedPages + " untyped: " + untypedPages);
+    assertTrue(typedPages < untypedPages);
+  }
+
+  public void testRangeQueryUsesIndex() {
+    String sql = "SELECT count(*) FROM \"" + TABLE + "\" WHERE \"" + AGE + "\" BETWEEN ? AND ?";
+    String[] args = new String[] { "1000000100", "1000000199" };
+    String plan = getQueryPlan(typed, sql, args);
+    assertTrue(plan, plan.contains(TABLE + "_age"));
+    assertEquals(100L, queryLong(typed, sql, args));
+  }
+
+  public void testRangeQueryComparesNumbers() {
+    // 99 < 100 as numbers, but "99" > "100" as text
+    String sql = "SELECT count(*) FROM \"" + TABLE + "\" WHERE \"" + WEIGHT + "\" < ?";
+    String[] args = new String[] { "100" };
+    assertEquals(400L, queryLong(typed, sql, args));
+    assertFalse(400L == queryLong(untyped, sql, args));
+  }
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2014 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.common.android.provider.impl;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.test.AndroidTestCase;
+
+/**
+ * Keyset pagination of the instances provider, run against an in-memory table
+ * with the same (savepoint timestamp, _id) keys, and the limit rule shared by
+ * the providers.
+ */
+public class PagedQueryTest extends AndroidTestCase {
+
+  private static final String TIMESTAMP = "ts";
+  private static final String ID = "_id";
+  private static final int ROWS = 40;
+  private static final int PAGE_SIZE = 3;
+
+  private SQLiteDatabase db;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    db = SQLiteDatabase.create(null);
+    db.execSQL("CREATE TABLE t (" + ID + " INTEGER PRIMARY KEY, " + TIMESTAMP + " TEXT NOT NULL)");
+    // inserted out of _id order; few distinct timestamps, so most pages end
+    // within a run of equal timestamps
+    for (int i = ROWS; i >= 1; --i) {
+      insert(i, timestamp(i % 4));
+    }
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    db.close();
+    super.tearDown();
+  }
+
+  private static String timestamp(int n) {
+    return "2014-06-0" + (n + 1) + "T00:00:00.000000000";
+  }
+
+  private void insert(int id, String timestamp) {
+    db.execSQL("INSERT INTO t (" + ID + ", " + TIMESTAMP + ") VALUES (?, ?)", new Object[] { id,
+        timestamp });
+  }
+
+  private static class Row {
+    final long id;
+    final String timestamp;
+
+    Row(long id, String timestamp) {
+      this.id = id;
+      this.timestamp = timestamp;
+    }
+  }
+
+  /**
+   * @param after
+   *          -- the last row of the previous page, or null for the first page.
+   */
+  private List<Row> queryPage(Row after) {
+    StringBuilder b = new StringBuilder();
+    b.append("SELECT ").append(ID).append(", ").append(TIMESTAMP).append(" FROM t");
+    String[] args = null;
+    if (after != null) {
+      b.append(" WHERE ").append(InstanceProviderImpl.getPageAfterClause(TIMESTAMP, ID));
+      args = new String[] { after.timestamp, after.timestamp, Long.toString(after.id) };
+    }
+    b.append(" ORDER BY ").append(InstanceProviderImpl.getPageOrderBy(TIMESTAMP, ID));
+    b.append(" LIMIT ").append(PAGE_SIZE);
+    return readRows(b.toString(), args);
+  }
+
+  private List<Row> readRows(String sql, String[] args) {
+    List<Row> rows = new ArrayList<Row>();
+    Cursor c = null;
+    try {
+      c = db.rawQuery(sql, args);
+      while (c.moveToNext()) {
+        rows.add(new Row(c.getLong(0), c.getString(1)));
+      }
+    } finally {
+      if (c != null && !c.isClosed()) {
+        c.close();
+      }
+    }
+    return rows;
+  }
+
+  private List<Long> readAllPages() {
+    List<Long> ids = new ArrayList<Long>();
+    Row last = null;
+    for (;;) {
+      List<Row> page = queryPage(last);
+      for (Row r : page) {
+        ids.add(r.id);
+      }
+      if (page.size() < PAGE_SIZE) {
+        return ids;
+      }
+      last = page.get(page.size() - 1);
+    }
+  }
+
+  private List<Long> readAllUnpaged() {
+    List<Long> ids = new ArrayList<Long>();
+    for (Row r : readRows("SELECT " + ID + ", " + TIMESTAMP + " FROM t ORDER BY " + TIMESTAMP
+        + ", " + ID, null)) {
+      ids.add(r.id);
+    }
+    return ids;
+  }
+
+  public void testPagesCoverEveryRowOnceInOrder() {
+    List<Long> paged = readAllPages();
+    assertEquals(ROWS, paged.size());
+    assertEquals(ROWS, new HashSet<Long>(paged).size());
+    assertEquals(readAllUnpaged(), paged);
+  }
+
+  public void testPagingIsRepeatable() {
+    assertEquals(readAllPages(), readAllPages());
+  }
+
+  public void testIdsCompareAsIntegers() {
+    // "13" sorts before "9" as text
+    List<Row> page = queryPage(new Row(9L, timestamp(1)));
+    assertEquals(13L, page.get(0).id);
+  }
+
+  public void testRowsAddedBetweenPages() {
+    List<Row> first = queryPage(null);
+    Row last = first.get(first.size() - 1);
+    // behind the position reached (same timestamp, lower _id): not returned;
+    // ahead of it: returned once
+    insert(-1, last.timestamp);
+    insert(ROWS + 1, last.timestamp);
+
+    Set<Long> seen = new HashSet<Long>();
+    for (Row r : first) {
+      seen.add(r.id);
+    }
+    List<Long> rest = new ArrayList<Long>();
+    for (;;) {
+      List<Row> page = queryPage(last);
+      for (Row r : page) {
+        assertTrue("row " + r.id + " repeated", seen.add(r.id));
+        rest.add(r.id);
+      }
+      if (page.size() < PAGE_SIZE) {
+        break;
+      }
+      last = page.get(page.size() - 1);
+    }
+    assertFalse(rest.contains(-1L));
+    assertTrue(rest.contains((long) (ROWS + 1)));
+    assertEquals(ROWS + 1, seen.size());
+  }
+
+  public void testLimitMustBePositive() {
+    Uri uri = Uri.parse("content://org.opendatakit.common.android.provider.forms/tables");
+    assertEquals(5, CommonContentProvider.parseLimit("5", uri));
+    for (String limit : new String[] { "0", "-1", "", "1.5", "ten" }) {
+      try {
+        CommonContentProvider.parseLimit(limit, uri);
+        fail("accepted limit: " + limit);
+      } catch (IllegalArgumentException e) {
+        // expected
+      }
+    }
+  }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2014 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.common.android.utilities;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+import org.opendatakit.common.android.database.DataModelDatabaseHelper;
+import org.opendatakit.common.android.provider.ColumnDefinitionsColumns;
+import org.opendatakit.common.android.provider.SyncState;
+import org.opendatakit.common.android.provider.TableDefinitionsColumns;
+
+import android.content.ContentValues;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+/**
+ * Imports a generated CSV file of ROWS rows into a data table, logging the
+ * rows/s under this class's tag. The heap in use is sampled (after a GC)
+ * every SAMPLE_BATCHES batches; the importer holds one row at a time, so it
+ * must stay within MAX_HEAP_GROWTH of the heap in use before the import.
+ */
+public class CsvTableImporterBenchmark extends AndroidTestCase {
+  private static final String t = "CsvTableImporterBenchmark";
+
+  private static final String DB_NAME = "csvimport.db";
+  private static final String CSV_NAME = "rows.csv";
+  private static final String TABLE_ID = "survey";
+  private static final int ROWS = 1000000;
+  private static final int BATCH_SIZE = 1000;
+  private static final int SAMPLE_BATCHES = 50;
+  private static final long MAX_HEAP_GROWTH = 4L * 1024L * 1024L;
+
+  private static final String[][] COLUMNS = { { "name", "string" }, { "age", "integer" },
+      { "weight", "number" }, { "smoker", "boolean" } };
+
+  private File dir;
+  private DataModelDatabaseHelper dbh;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    dir = new File(getContext().getCacheDir(), t);
+    deleteFiles();
+    dir.mkdirs();
+    dbh = new DataModelDatabaseHelper(dir.getAbsolutePath(), DB_NAME);
+    SQLiteDatabase db = dbh.getWritableDatabase();
+    // keep background work out of the measurements
+    dbh.getMaintenance().setEnabled(false);
+
+    ContentValues v = new ContentValues();
+    v.put(TableDefinitionsColumns.TABLE_ID, TABLE_ID);
+    v.put(TableDefinitionsColumns.DB_TABLE_NAME, TABLE_ID);
+    v.put(TableDefinitionsColumns.LAST_SYNC_TIME, "-1");
+    v.put(TableDefinitionsColumns.SYNC_STATE, SyncState.inserting.name());
+    v.put(TableDefinitionsColumns.TRANSACTIONING, 0);
+    db.insertOrThrow(DataModelDatabaseHelper.TABLE_DEFS_TABLE_NAME, null, v);
+    for (String[] column : COLUMNS) {
+      v = new ContentValues();
+      v.put(ColumnDefinitionsColumns.TABLE_ID, TABLE_ID);
+      v.put(ColumnDefinitionsColumns.ELEMENT_KEY, column[0]);
+      v.put(ColumnDefinitionsColumns.ELEMENT_NAME, column[0]);
+      v.put(ColumnDefinitionsColumns.ELEMENT_TYPE, column[1]);
+      v.put(ColumnDefinitionsColumns.IS_UNIT_OF_RETENTION, 1);
+      db.insertOrThrow(DataModelDatabaseHelper.COLUMN_DEFINITIONS_TABLE_NAME, null, v);
+    }
+    DataModelDatabaseHelper.createDataTable(db, TABLE_ID);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    dbh.close();
+    deleteFiles();
+    super.tearDown();
+  }
+
+  private void deleteFiles() {
+    for (String suffix : new String[] { "", "-journal", "-wal", "-shm" }) {
+      new File(dir, DB_NAME + suffix).delete();
+    }
+    new File(dir, CSV_NAME).delete();
+  }
+
+  private File writeCsv() throws IOException {
+    File csvFile = new File(dir, CSV_NAME);
+    Writer w = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(csvFile), "UTF-8"));
+    try {
+      w.write("name,age,weight,smoker\n");
+      for (int i = 0; i < ROWS; ++i) {
+        w.write("\"name, " + i + "\"," + (i % 100) + "," + (50.0 + i / 8.0) + ","
+            + ((i % 2 == 0) ? "true" : "false") + "\n");
+      }
+    } finally {
+      w.close();
+    }
+    return csvFile;
+  }
+
+  private static long getHeapInUse() {
+    Runtime runtime = Runtime.getRuntime();
+    System.gc();
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+
+  public void testImportInBoundedMemory() throws IOException {
+    File csvFile = writeCsv();
+    SQLiteDatabase db = dbh.getWritableDatabase();
+    final long baseline = getHeapInUse();
+    final long[] maxHeap = { baseline };
+    CsvTableImporter.ProgressListener listener = new CsvTableImporter.ProgressListener() {
+      @Override
+      public void onProgress(long rowsImported) {
+        if ((rowsImported / BATCH_SIZE) % SAMPLE_BATCHES == 0) {
+          maxHeap[0] = Math.max(maxHeap[0], getHeapInUse());
+        }
+      }
+    };
+
+    long start = SystemClock.elapsedRealtime();
+    long rows = new CsvTableImporter(db, TABLE_ID).importCsv(csvFile, BATCH_SIZE, listener);
+    long elapsed = SystemClock.elapsedRealtime() - start;
+
+    assertEquals(ROWS, rows);
+    assertEquals(ROWS, db.compileStatement("SELECT count(*) FROM \"" + TABLE_ID + "\"")
+        .simpleQueryForLong());
+    Log.i(t, "rows: " + ROWS + " file bytes: " + csvFile.length() + " elapsed: " + elapsed
+        + "ms rows/s: " + ((elapsed == 0L) ? ROWS : ROWS * 1000L / elapsed)
+        + " heap growth: " + (maxHeap[0] - baseline) + " bytes");
+    assertTrue("heap grew by " + (maxHeap[0] - baseline) + " bytes",
+        maxHeap[0] - baseline < MAX_HEAP_GROWTH);
+  }
+}